@@ -0,0 +1,98 @@
+package com.geoimage.app.util;
+
+import android.os.Build;
+import android.os.Debug;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the objects the formatter allocates on the device, and checks its
+ * digits against the platform's own String.format. Only the formatter is
+ * measured, not the adapter binding that uses it.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation")
+public class DisplayFormatterAllocationTest {
+    private static final int COUNT = 100000;
+
+    private final double[] values = new double[COUNT];
+
+    @Before
+    public void setUp() {
+        Random random = new Random(20);
+        for (int i = 0; i < COUNT; i++) {
+            // Full precision values practically never fall near a tie, which is rounded as a decimal
+            values[i] = random.nextDouble() * 360 - 180;
+        }
+        Debug.startAllocCounting();
+    }
+
+    @After
+    public void tearDown() {
+        Debug.stopAllocCounting();
+    }
+
+    @Test
+    public void appendsWithoutAllocating() {
+        StringBuilder builder = new StringBuilder(32);
+        Debug.resetThreadAllocCount();
+        for (double value : values) {
+            builder.setLength(0);
+            DisplayFormatter.appendFixed(builder, value, 4);
+        }
+        assertEquals(0, Debug.getThreadAllocCount());
+    }
+
+    @Test
+    public void formatsCoordinatesIntoOneString() {
+        DisplayFormatter formatter = new DisplayFormatter("MMMM d, yyyy", Locale.US);
+        formatter.formatCoordinates(0, 0, 4);
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i + 1 < COUNT; i += 2) {
+            formatter.formatCoordinates(values[i] / 2, values[i + 1], 4);
+        }
+        // Only the result, which before Android 6 keeps its chars in a separate array
+        int perCall = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? 1 : 2;
+        int calls = COUNT / 2;
+        int allocations = Debug.getThreadAllocCount();
+        assertTrue(allocations + " allocations for " + calls + " calls", allocations <= perCall * calls);
+    }
+
+    @Test
+    public void reusesDateLabels() {
+        DisplayFormatter formatter = new DisplayFormatter("MMMM d, yyyy", Locale.US);
+        long day = 1700000000000L;
+        String label = formatter.formatDate(day);
+        for (int hour = 0; hour < 12; hour++) {
+            assertSame(label, formatter.formatDate(day + hour * 3600000L));
+        }
+    }
+
+    @Test
+    public void matchesPlatformFormat() {
+        StringBuilder builder = new StringBuilder(32);
+        Random random = new Random(21);
+        for (int i = 0; i < COUNT; i++) {
+            // Half with five decimals, which land on ties of "%.4f"
+            double value = i % 2 == 0 ? values[i] : (random.nextInt(36000001) - 18000000) / 1e5;
+            builder.setLength(0);
+            DisplayFormatter.appendFixed(builder, value, 4);
+            assertEquals(String.valueOf(value), String.format(Locale.ROOT, "%.4f", value), builder.toString());
+        }
+        builder.setLength(0);
+        DisplayFormatter.appendFixed(builder, -0.00001, 4);
+        assertEquals(String.format(Locale.ROOT, "%.4f", -0.00001), builder.toString());
+    }
+}
@@ -0,0 +1,308 @@
+package com.geoimage.app.data;
+
+import com.geoimage.app.model.GeoImageStore;
+
+import java.util.Arrays;
+
+/**
+ * Marker clusters for every zoom level, computed once in the background so the
+ * map only has to look them up as the camera moves. At each zoom the world is
+ * divided into square cells of {@link #CELL_PIXELS} screen pixels in Web
+ * Mercator, and every cell holding images becomes one cluster at the images'
+ * mean position. Cells are keyed in Z-order, interleaving the bits of their
+ * row and column, so the four cells that make up a coarser cell are adjacent
+ * and its key is theirs shifted right by two. The images are sorted once into
+ * the cells of the finest level, and every coarser level is then merged from
+ * the one below in a single pass. The same order makes every cluster a range
+ * of the sorted images, so its members can be listed where zooming in no
+ * longer splits it. A viewport query descends the quadrants of the level,
+ * with one binary search per quadrant crossing the viewport's edge.
+ */
+public class ClusterPyramid {
+    public static final int MIN_ZOOM = 0;
+    public static final int MAX_ZOOM = 17;
+    /** Cluster cell size, in pixels of a 256 pixel map tile */
+    public static final int CELL_PIXELS = 64;
+    // log2(256 / CELL_PIXELS): cells per axis at zoom z are 1 << (z + CELL_SHIFT)
+    private static final int CELL_SHIFT = 2;
+    // Points are sorted on (key << INDEX_BITS | index), which must stay positive
+    private static final int INDEX_BITS = 24;
+    // Cluster keys are (zoom << ZOOM_SHIFT | cell key)
+    private static final int ZOOM_SHIFT = 48;
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private final Level[] levels = new Level[MAX_ZOOM + 1];
+    // Store indexes sorted by finest cell; each cluster is a range of it
+    private final int[] order;
+
+    /**
+     * Clusters of one zoom level, sorted by cell key, in parallel arrays
+     */
+    private static class Level {
+        final int cellsPerAxis;
+        final long[] keys;
+        // Mean position in normalized Web Mercator coordinates, 0 to 1
+        final double[] xs;
+        final double[] ys;
+        final int[] counts;
+        final int[] representatives;
+        // Start of the cluster's images in the order
+        final int[] firsts;
+
+        Level(int zoom, int size) {
+            cellsPerAxis = 1 << (zoom + CELL_SHIFT);
+            keys = new long[size];
+            xs = new double[size];
+            ys = new double[size];
+            counts = new int[size];
+            representatives = new int[size];
+            firsts = new int[size];
+        }
+
+        Level trim(int zoom, int size) {
+            Level level = new Level(zoom, size);
+            System.arraycopy(keys, 0, level.keys, 0, size);
+            System.arraycopy(xs, 0, level.xs, 0, size);
+            System.arraycopy(ys, 0, level.ys, 0, size);
+            System.arraycopy(counts, 0, level.counts, 0, size);
+            System.arraycopy(representatives, 0, level.representatives, 0, size);
+            System.arraycopy(firsts, 0, level.firsts, 0, size);
+            return level;
+        }
+
+        int lowerBound(long key, int from, int to) {
+            int index = Arrays.binarySearch(keys, from, to, key);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+
+    /**
+     * Receives the clusters found by a query
+     */
+    public interface ClusterVisitor {
+        /**
+         * @param key Key identifying the cluster, unique across zoom levels
+         * @param latitude Mean latitude of the images
+         * @param longitude Mean longitude of the images
+         * @param count Number of images in the cluster
+         * @param representative Store index of the newest image in the cluster
+         */
+        void visit(long key, double latitude, double longitude, int count, int representative);
+    }
+
+    /**
+     * Build the pyramid. Takes one sort of the images plus time proportional to
+     * their number, so don't call on the main thread.
+     *
+     * @param store Images to cluster, newest first
+     */
+    public ClusterPyramid(GeoImageStore store) {
+        int size = store.size();
+        if (size >= 1 << INDEX_BITS) {
+            throw new IllegalArgumentException("Too many images to cluster: " + size);
+        }
+
+        // Sort the images into the cells of the finest level
+        int cellsPerAxis = 1 << (MAX_ZOOM + CELL_SHIFT);
+        double[] xs = new double[size];
+        double[] ys = new double[size];
+        long[] sortKeys = new long[size];
+        for (int i = 0; i < size; i++) {
+            xs[i] = mercatorX(store.getLongitude(i));
+            ys[i] = mercatorY(store.getLatitude(i));
+            long key = cellKey(cell(ys[i], cellsPerAxis), cell(xs[i], cellsPerAxis));
+            sortKeys[i] = key << INDEX_BITS | i;
+        }
+        Arrays.sort(sortKeys);
+
+        order = new int[size];
+        Level finest = new Level(MAX_ZOOM, size);
+        int clusters = 0;
+        for (int position = 0; position < size; position++) {
+            long key = sortKeys[position] >>> INDEX_BITS;
+            int index = (int) (sortKeys[position] & ((1 << INDEX_BITS) - 1));
+            order[position] = index;
+            clusters = merge(finest, clusters, key, xs[index], ys[index], 1, index, position);
+        }
+        levels[MAX_ZOOM] = finest.trim(MAX_ZOOM, clusters);
+
+        for (int zoom = MAX_ZOOM - 1; zoom >= MIN_ZOOM; zoom--) {
+            levels[zoom] = buildParent(levels[zoom + 1], zoom);
+        }
+    }
+
+    /**
+     * Visit the clusters in a viewport. A viewport whose west edge is east of its
+     * east edge crosses the antimeridian.
+     *
+     * @param zoom Camera zoom; fractional zooms use the level below
+     * @param south Southern latitude
+     * @param west Western longitude
+     * @param north Northern latitude
+     * @param east Eastern longitude
+     * @param visitor Visitor for the clusters
+     */
+    public void query(float zoom, double south, double west, double north, double east, ClusterVisitor visitor) {
+        int z = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, (int) Math.floor(zoom)));
+        Level level = levels[z];
+        int cells = level.cellsPerAxis;
+        int firstColumn = cell(mercatorX(west), cells);
+        int lastColumn = cell(mercatorX(east), cells);
+        // Mercator y grows southwards
+        int firstRow = cell(mercatorY(north), cells);
+        int lastRow = cell(mercatorY(south), cells);
+        if (west > east && firstColumn > lastColumn + 1) {
+            queryQuadrant(level, z, z + CELL_SHIFT, 0, 0, 0, level.keys.length,
+                    firstRow, firstColumn, lastRow, cells - 1, visitor);
+            queryQuadrant(level, z, z + CELL_SHIFT, 0, 0, 0, level.keys.length,
+                    firstRow, 0, lastRow, lastColumn, visitor);
+        } else if (west > east) {
+            // Both sides of the antimeridian meet in a cell, so every column is in view once
+            queryQuadrant(level, z, z + CELL_SHIFT, 0, 0, 0, level.keys.length,
+                    firstRow, 0, lastRow, cells - 1, visitor);
+        } else {
+            queryQuadrant(level, z, z + CELL_SHIFT, 0, 0, 0, level.keys.length,
+                    firstRow, firstColumn, lastRow, lastColumn, visitor);
+        }
+    }
+
+    /**
+     * Get the images of a cluster
+     *
+     * @param key Cluster key, as passed to a {@link ClusterVisitor}
+     * @return Store indexes of the images, newest first; empty for an unknown key
+     */
+    public int[] getMembers(long key) {
+        int zoom = (int) (key >>> ZOOM_SHIFT);
+        if (zoom < MIN_ZOOM || zoom > MAX_ZOOM) {
+            return new int[0];
+        }
+        Level level = levels[zoom];
+        int i = Arrays.binarySearch(level.keys, key & ((1L << ZOOM_SHIFT) - 1));
+        if (i < 0) {
+            return new int[0];
+        }
+        int[] members = Arrays.copyOfRange(order, level.firsts[i], level.firsts[i] + level.counts[i]);
+        // Lower store indexes are newer
+        Arrays.sort(members);
+        return members;
+    }
+
+    /**
+     * Visit the clusters of a quadrant of cells that lie in a range of rows and columns
+     *
+     * @param depth Quadrant side, as log2 of the number of cells
+     * @param row First row of the quadrant
+     * @param column First column of the quadrant
+     * @param from First cluster in the quadrant
+     * @param to End of the clusters in the quadrant
+     */
+    private static void queryQuadrant(Level level, int zoom, int depth, int row, int column, int from, int to,
+                                      int firstRow, int firstColumn, int lastRow, int lastColumn,
+                                      ClusterVisitor visitor) {
+        int side = 1 << depth;
+        if (from >= to || row > lastRow || column > lastColumn
+                || row + side <= firstRow || column + side <= firstColumn) {
+            return;
+        }
+        if (row >= firstRow && row + side - 1 <= lastRow && column >= firstColumn && column + side - 1 <= lastColumn) {
+            for (int i = from; i < to; i++) {
+                visitor.visit((long) zoom << ZOOM_SHIFT | level.keys[i], latitude(level.ys[i]),
+                        longitude(level.xs[i]), level.counts[i], level.representatives[i]);
+            }
+            return;
+        }
+
+        // The four smaller quadrants are consecutive ranges of keys, rows before columns
+        int half = side / 2;
+        long firstKey = cellKey(row, column);
+        long quarter = 1L << (2 * (depth - 1));
+        int start = from;
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int end = quadrant == 3 ? to : level.lowerBound(firstKey + (quadrant + 1) * quarter, start, to);
+            queryQuadrant(level, zoom, depth - 1, row + (quadrant >> 1) * half, column + (quadrant & 1) * half,
+                    start, end, firstRow, firstColumn, lastRow, lastColumn, visitor);
+            start = end;
+        }
+    }
+
+    private static Level buildParent(Level child, int zoom) {
+        int size = child.keys.length;
+        Level parent = new Level(zoom, size);
+        int clusters = 0;
+        // Siblings are adjacent in Z-order, and their parents come out sorted
+        for (int i = 0; i < size; i++) {
+            clusters = merge(parent, clusters, child.keys[i] >>> 2, child.xs[i], child.ys[i],
+                    child.counts[i], child.representatives[i], child.firsts[i]);
+        }
+        return parent.trim(zoom, clusters);
+    }
+
+    /**
+     * Add a point or cluster to the level, merging it into the last cluster if it has the same key
+     *
+     * @param first Start of the point's or cluster's images in the order
+     * @return New number of clusters in the level
+     */
+    private static int merge(Level level, int clusters, long key, double x, double y, int count,
+                             int representative, int first) {
+        int last = clusters - 1;
+        if (last >= 0 && level.keys[last] == key) {
+            int total = level.counts[last] + count;
+            level.xs[last] += (x - level.xs[last]) * count / total;
+            level.ys[last] += (y - level.ys[last]) * count / total;
+            level.counts[last] = total;
+            // Lower store indexes are newer
+            level.representatives[last] = Math.min(level.representatives[last], representative);
+            return clusters;
+        }
+        level.keys[clusters] = key;
+        level.xs[clusters] = x;
+        level.ys[clusters] = y;
+        level.counts[clusters] = count;
+        level.representatives[clusters] = representative;
+        level.firsts[clusters] = first;
+        return clusters + 1;
+    }
+
+    /**
+     * @return Z-order key of a cell: its row and column bits interleaved, row bits higher
+     */
+    private static long cellKey(int row, int column) {
+        return interleave(row) << 1 | interleave(column);
+    }
+
+    /**
+     * @return The bits of the value spread out to the even bits of a long
+     */
+    private static long interleave(int value) {
+        long bits = value & 0xffffffffL;
+        bits = (bits | bits << 16) & 0x0000ffff0000ffffL;
+        bits = (bits | bits << 8) & 0x00ff00ff00ff00ffL;
+        bits = (bits | bits << 4) & 0x0f0f0f0f0f0f0f0fL;
+        bits = (bits | bits << 2) & 0x3333333333333333L;
+        bits = (bits | bits << 1) & 0x5555555555555555L;
+        return bits;
+    }
+
+    private static int cell(double coordinate, int cellsPerAxis) {
+        return Math.max(0, Math.min(cellsPerAxis - 1, (int) (coordinate * cellsPerAxis)));
+    }
+
+    private static double mercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    private static double mercatorY(double latitude) {
+        double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    private static double longitude(double x) {
+        return x * 360 - 180;
+    }
+
+    private static double latitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+    }
+}
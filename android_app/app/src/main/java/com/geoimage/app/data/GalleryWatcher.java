@@ -0,0 +1,103 @@
+package com.geoimage.app.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+
+import java.io.File;
+
+/**
+ * Watches the app's image directory and the MediaStore images URI, and tells
+ * the listener when the gallery may have changed. Bursts of events, such as a
+ * save writing its temporary file and renaming it, are debounced into one
+ * notification. The listener is called on the main thread.
+ */
+public class GalleryWatcher {
+    private static final long DEBOUNCE_MILLIS = 500;
+    private static final int FILE_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.MOVED_FROM | FileObserver.DELETE;
+
+    private final Context context;
+    private final File directory;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable notifyChange;
+    private FileObserver fileObserver;
+    private ContentObserver contentObserver;
+    // File events arrive on the observer's own thread, possibly after stop()
+    private volatile boolean watching;
+
+    public interface Listener {
+        void onGalleryChanged();
+    }
+
+    /**
+     * @param context Any context
+     * @param directory Directory the app saves images to
+     * @param listener Listener for changes
+     */
+    public GalleryWatcher(Context context, File directory, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.directory = directory;
+        this.notifyChange = () -> {
+            if (watching) {
+                listener.onGalleryChanged();
+            }
+        };
+    }
+
+    /**
+     * Start watching, e.g. when the gallery becomes visible
+     */
+    @SuppressWarnings("deprecation")
+    public void start() {
+        if (fileObserver != null) {
+            return;
+        }
+        watching = true;
+
+        // The directory must exist for inotify to watch it
+        directory.mkdirs();
+        fileObserver = new FileObserver(directory.getAbsolutePath(), FILE_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (path != null && path.toLowerCase().endsWith(".jpg")) {
+                    scheduleNotify();
+                }
+            }
+        };
+        fileObserver.startWatching();
+
+        contentObserver = new ContentObserver(mainHandler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                scheduleNotify();
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, contentObserver);
+    }
+
+    /**
+     * Stop watching and drop any pending notification
+     */
+    public void stop() {
+        if (fileObserver == null) {
+            return;
+        }
+        watching = false;
+        fileObserver.stopWatching();
+        fileObserver = null;
+        context.getContentResolver().unregisterContentObserver(contentObserver);
+        contentObserver = null;
+        mainHandler.removeCallbacks(notifyChange);
+    }
+
+    private void scheduleNotify() {
+        mainHandler.removeCallbacks(notifyChange);
+        mainHandler.postDelayed(notifyChange, DEBOUNCE_MILLIS);
+    }
+}
@@ -0,0 +1,759 @@
+package com.geoimage.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.geoimage.app.model.GeoImage;
+import com.geoimage.app.model.GeoImageStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Persistent catalog of scanned images, keyed by path, size and modification
+ * time. Files that haven't changed since the last scan are served from the
+ * catalog without opening them again.
+ */
+public class GeoImageCatalog extends SQLiteOpenHelper {
+    private static final String TAG = "GeoImageCatalog";
+    private static final String DATABASE_NAME = "geoimage_catalog.db";
+    private static final int DATABASE_VERSION = 1;
+
+    /** Source flags, recording where a file was listed from */
+    public static final int SOURCE_DIRECTORY = 1;
+    public static final int SOURCE_MEDIA_STORE = 2;
+
+    // Files are scanned in small units so fast threads pick up the slack of slow ones
+    private static final int SCAN_UNIT_SIZE = 32;
+    private static final int SCAN_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    static final String TABLE_IMAGES = "images";
+    static final String COLUMN_ID = "_id";
+    static final String COLUMN_PATH = "path";
+    static final String COLUMN_FILENAME = "filename";
+    static final String COLUMN_SIZE = "size";
+    static final String COLUMN_MODIFIED = "modified";
+    static final String COLUMN_HAS_LOCATION = "has_location";
+    static final String COLUMN_LATITUDE = "latitude";
+    static final String COLUMN_LONGITUDE = "longitude";
+    static final String COLUMN_LOCATION_NAME = "location_name";
+    static final String COLUMN_TIMESTAMP = "timestamp";
+    static final String COLUMN_SOURCE = "source";
+    static final String COLUMN_UPDATED = "updated";
+    // 1 while the location name is a stand-in, e.g. from the offline gazetteer
+    static final String COLUMN_NAME_PROVISIONAL = "name_provisional";
+
+    private static final String GEOTAGGED = COLUMN_HAS_LOCATION + " = 1";
+    private static final String NEWEST_FIRST = COLUMN_TIMESTAMP + " DESC, " + COLUMN_ID + " DESC";
+    private static final String[] IMAGE_COLUMNS = { COLUMN_ID, COLUMN_FILENAME, COLUMN_PATH, COLUMN_LATITUDE,
+            COLUMN_LONGITUDE, COLUMN_LOCATION_NAME, COLUMN_TIMESTAMP };
+
+    private static final String SPATIAL_INDEX_FILE = "spatial_index.bin";
+    private static final int MAX_QUERY_IDS = 500;
+
+    private static GeoImageCatalog instance;
+
+    private final File spatialIndexFile;
+    // Guards spatialIndex, and index updates together with the rows they mirror
+    private final Object spatialIndexLock = new Object();
+    private SpatialIndex spatialIndex;
+
+    /**
+     * Parses a file that is new or has changed since it was cataloged. Called from
+     * several scan threads at once.
+     */
+    public interface ImageParser {
+        /**
+         * @param file Image file
+         * @return GeoImage for the file, or null if it carries no location
+         */
+        GeoImage parse(File file);
+    }
+
+    /**
+     * Supplies the files to sync, passing each one on as soon as it is found
+     */
+    public interface FileSource {
+        /**
+         * @param visitor Visitor to pass every file to; may see the same file more than once
+         */
+        void forEachFile(FileVisitor visitor);
+    }
+
+    public interface FileVisitor {
+        /**
+         * @param file Image file
+         * @param source Source flag of the listing the file came from
+         */
+        void visit(File file, int source);
+    }
+
+    /**
+     * Visits the location of every geotagged image
+     */
+    public interface LocationVisitor {
+        /**
+         * @param id Image ID
+         * @param latitude Latitude
+         * @param longitude Longitude
+         * @param locationName Stored location name, or null
+         * @param provisional true if the name was stored as a stand-in to be replaced
+         */
+        void visit(long id, double latitude, double longitude, String locationName, boolean provisional);
+    }
+
+    /**
+     * Follows a sync while it runs
+     */
+    public interface SyncListener {
+        /**
+         * Called on the syncing thread each time a scanned chunk has been written,
+         * so the catalog can be read again to show progress
+         */
+        void onChunkWritten();
+    }
+
+    /**
+     * IDs of the geotagged images in display order, newest first, with the time each
+     * row was last written and the time each image was taken. Only three longs are
+     * held per image; the images themselves are loaded a page at a time with
+     * {@link #getGeoImages(long[], int, int)}.
+     */
+    public static final class Snapshot {
+        public final long[] ids;
+        public final long[] versions;
+        public final long[] timestamps;
+        public final TimeIndex timeIndex;
+
+        Snapshot(long[] ids, long[] versions, long[] timestamps) {
+            this.ids = ids;
+            this.versions = versions;
+            this.timestamps = timestamps;
+            this.timeIndex = new TimeIndex(timestamps, TimeZone.getDefault());
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        /**
+         * Take part of the snapshot, e.g. a date range found with the time index
+         *
+         * @param start First position
+         * @param end End position, exclusive
+         * @return Snapshot of the images in the range
+         */
+        public Snapshot slice(int start, int end) {
+            return new Snapshot(Arrays.copyOfRange(ids, start, end), Arrays.copyOfRange(versions, start, end),
+                    Arrays.copyOfRange(timestamps, start, end));
+        }
+    }
+
+    /**
+     * A cataloged file: its recorded size, modification time and sources
+     */
+    private static class CatalogEntry {
+        final long id;
+        final long size;
+        final long modified;
+        final int source;
+
+        CatalogEntry(long id, long size, long modified, int source) {
+            this.id = id;
+            this.size = size;
+            this.modified = modified;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Result of scanning one file
+     */
+    private static class ScannedFile {
+        final String path;
+        final boolean missing;
+        // Null when the file is unchanged since it was cataloged
+        final ContentValues values;
+
+        ScannedFile(String path, boolean missing, ContentValues values) {
+            this.path = path;
+            this.missing = missing;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Get the shared catalog instance
+     *
+     * @param context Any context; the application context is retained
+     * @return Catalog instance
+     */
+    public static synchronized GeoImageCatalog getInstance(Context context) {
+        if (instance == null) {
+            instance = new GeoImageCatalog(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private GeoImageCatalog(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        spatialIndexFile = new File(context.getFilesDir(), SPATIAL_INDEX_FILE);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_IMAGES + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_PATH + " TEXT NOT NULL UNIQUE, "
+                + COLUMN_FILENAME + " TEXT NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_HAS_LOCATION + " INTEGER NOT NULL, "
+                + COLUMN_LATITUDE + " REAL, "
+                + COLUMN_LONGITUDE + " REAL, "
+                + COLUMN_LOCATION_NAME + " TEXT, "
+                + COLUMN_TIMESTAMP + " INTEGER, "
+                + COLUMN_SOURCE + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_UPDATED + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_NAME_PROVISIONAL + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX idx_images_timestamp ON " + TABLE_IMAGES
+                + " (" + COLUMN_TIMESTAMP + ")");
+        db.execSQL("CREATE INDEX idx_images_location ON " + TABLE_IMAGES
+                + " (" + COLUMN_LATITUDE + ", " + COLUMN_LONGITUDE + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The catalog is a cache of the image files, so it can always be rebuilt
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGES);
+        onCreate(db);
+    }
+
+    /**
+     * Bring the catalog in line with the given files. Files are merged on their
+     * canonical path as the source produces them and scanned in parallel units, so
+     * scanning overlaps with listing. Only files that are new or whose size or
+     * modification time changed are parsed. Rows for files that are no longer
+     * present are removed.
+     *
+     * @param source Source of the current image files
+     * @param parser Parser for new or changed files; must be thread-safe
+     * @param listener Listener for the sync's progress, or null
+     * @return true if every visited file was synced; false if the sync was aborted, in which
+     *         case files visited after the failure may be missing and must be listed again
+     */
+    public synchronized boolean sync(FileSource source, ImageParser parser, SyncListener listener) {
+        Sync sync = new Sync(parser, listener);
+        try {
+            source.forEachFile(sync);
+            sync.finish();
+        } finally {
+            sync.executor.shutdownNow();
+        }
+        if (sync.spatialIndexChanged) {
+            saveSpatialIndex();
+        }
+        return !sync.aborted;
+    }
+
+    /**
+     * One sync pass. Files are visited, merged and written on the syncing thread;
+     * only the scan units run on the pool.
+     */
+    private class Sync implements FileVisitor {
+        final ImageParser parser;
+        final SyncListener listener;
+        final Map<String, CatalogEntry> known = getEntries();
+        final SourceMerge merge = new SourceMerge(SCAN_UNIT_SIZE, this::submitUnit);
+        // Source flags stored for rows written during this pass
+        final Map<String, Integer> writtenSources = new HashMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(SCAN_THREADS);
+        final CompletionService<List<ScannedFile>> completionService = new ExecutorCompletionService<>(executor);
+        int pendingUnits;
+        boolean aborted;
+        boolean spatialIndexChanged;
+
+        Sync(ImageParser parser, SyncListener listener) {
+            this.parser = parser;
+            this.listener = listener;
+        }
+
+        @Override
+        public void visit(File file, int source) {
+            if (aborted) {
+                return;
+            }
+            merge.add(file, source);
+        }
+
+        void finish() {
+            merge.flush();
+            collect(true);
+            if (aborted) {
+                // Unvisited files may still exist, so nothing is deleted
+                return;
+            }
+
+            SQLiteDatabase db = getWritableDatabase();
+            synchronized (spatialIndexLock) {
+                db.beginTransaction();
+                try {
+                    Map<String, Integer> sources = merge.getSources();
+                    for (Map.Entry<String, CatalogEntry> entry : known.entrySet()) {
+                        if (!sources.containsKey(entry.getKey())) {
+                            long id = entry.getValue().id;
+                            db.delete(TABLE_IMAGES, COLUMN_ID + " = ?", new String[] { String.valueOf(id) });
+                            if (spatialIndex != null) {
+                                spatialIndexChanged |= spatialIndex.remove(id);
+                            }
+                        }
+                    }
+
+                    // A file may have been listed by another source after its row was written
+                    for (Map.Entry<String, Integer> entry : sources.entrySet()) {
+                        Integer written = writtenSources.get(entry.getKey());
+                        CatalogEntry cataloged = known.get(entry.getKey());
+                        int stored = written != null ? written
+                                : cataloged != null ? cataloged.source : entry.getValue();
+                        if (stored != entry.getValue()) {
+                            ContentValues values = new ContentValues();
+                            values.put(COLUMN_SOURCE, entry.getValue());
+                            db.update(TABLE_IMAGES, values, COLUMN_PATH + " = ?", new String[] { entry.getKey() });
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+
+        private void submitUnit(List<File> files) {
+            completionService.submit(() -> scan(files, known, parser));
+            pendingUnits++;
+            // Write whatever has finished meanwhile, so results stream out during listing
+            collect(false);
+        }
+
+        /**
+         * Write finished units and tell the listener
+         *
+         * @param wait true to wait for every pending unit, false to take only those already done
+         */
+        private void collect(boolean wait) {
+            try {
+                while (pendingUnits > 0) {
+                    Future<List<ScannedFile>> future = wait ? completionService.take() : completionService.poll();
+                    if (future == null) {
+                        return;
+                    }
+                    pendingUnits--;
+                    write(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                aborted = true;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error scanning images: " + e.getCause());
+                aborted = true;
+            }
+        }
+
+        private void write(List<ScannedFile> scanned) {
+            SQLiteDatabase db = getWritableDatabase();
+            // The index is updated within the lock, so it can't be rebuilt from rows
+            // that don't include this chunk and then miss its changes
+            synchronized (spatialIndexLock) {
+                db.beginTransaction();
+                try {
+                    for (ScannedFile scannedFile : scanned) {
+                        if (scannedFile.missing) {
+                            // Listed by a source but gone from disk; drop any stale row
+                            merge.remove(scannedFile.path);
+                            continue;
+                        }
+                        if (scannedFile.values == null) {
+                            continue;
+                        }
+
+                        int source = merge.getSource(scannedFile.path);
+                        scannedFile.values.put(COLUMN_SOURCE, source);
+                        writtenSources.put(scannedFile.path, source);
+                        CatalogEntry entry = known.get(scannedFile.path);
+                        long id;
+                        if (entry != null) {
+                            id = entry.id;
+                            db.update(TABLE_IMAGES, scannedFile.values, COLUMN_ID + " = ?",
+                                    new String[] { String.valueOf(id) });
+                        } else {
+                            id = db.insert(TABLE_IMAGES, null, scannedFile.values);
+                        }
+                        updateSpatialIndex(id, scannedFile.values);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            if (listener != null) {
+                listener.onChunkWritten();
+            }
+        }
+
+        private void updateSpatialIndex(long id, ContentValues values) {
+            if (spatialIndex == null || id < 0) {
+                return;
+            }
+            if (values.getAsInteger(COLUMN_HAS_LOCATION) == 1) {
+                spatialIndex.put(id, values.getAsDouble(COLUMN_LATITUDE), values.getAsDouble(COLUMN_LONGITUDE));
+                spatialIndexChanged = true;
+            } else {
+                spatialIndexChanged |= spatialIndex.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Check a unit of files against the catalog, parsing the ones that changed.
+     * Runs on a scan thread and only reads the shared state.
+     */
+    private static List<ScannedFile> scan(List<File> files, Map<String, CatalogEntry> known, ImageParser parser) {
+        List<ScannedFile> scanned = new ArrayList<>(files.size());
+        for (File file : files) {
+            String path = file.getPath();
+            long size = file.length();
+            long modified = file.lastModified();
+            if (modified == 0 && !file.exists()) {
+                scanned.add(new ScannedFile(path, true, null));
+                continue;
+            }
+
+            CatalogEntry entry = known.get(path);
+            if (entry != null && entry.size == size && entry.modified == modified) {
+                scanned.add(new ScannedFile(path, false, null));
+            } else {
+                GeoImage image;
+                try {
+                    image = parser.parse(file);
+                } catch (RuntimeException e) {
+                    // A malformed file is cataloged without a location rather than failing
+                    // the whole sync, and isn't parsed again until it changes
+                    Log.e(TAG, "Error parsing " + path + ": " + e);
+                    image = null;
+                }
+                scanned.add(new ScannedFile(path, false, toContentValues(file, size, modified, image)));
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Take a snapshot of the geotagged images in display order
+     *
+     * @return Snapshot, newest first
+     */
+    public Snapshot getSnapshot() {
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_IMAGES,
+                new String[] { COLUMN_ID, COLUMN_UPDATED, COLUMN_TIMESTAMP },
+                GEOTAGGED,
+                null, null, null,
+                NEWEST_FIRST)) {
+
+            long[] ids = new long[cursor.getCount()];
+            long[] versions = new long[ids.length];
+            long[] timestamps = new long[ids.length];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                versions[i] = cursor.getLong(1);
+                timestamps[i] = cursor.getLong(2);
+            }
+            return new Snapshot(ids, versions, timestamps);
+        }
+    }
+
+    /**
+     * Load a window of images by ID, e.g. a page of a {@link Snapshot} or the result
+     * of a {@link SpatialIndex} query
+     *
+     * @param ids Image IDs
+     * @param start First index in ids
+     * @param count Number of IDs to load
+     * @return Images in the order of the IDs; null where a row no longer exists
+     */
+    public GeoImage[] getGeoImages(long[] ids, int start, int count) {
+        GeoImage[] images = new GeoImage[count];
+        Map<Long, Integer> positions = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            positions.put(ids[start + i], i);
+        }
+
+        // Older SQLite builds allow at most 999 parameters per statement
+        for (int batchStart = 0; batchStart < count; batchStart += MAX_QUERY_IDS) {
+            int batchCount = Math.min(MAX_QUERY_IDS, count - batchStart);
+            StringBuilder selection = new StringBuilder(COLUMN_ID).append(" IN (");
+            String[] selectionArgs = new String[batchCount];
+            for (int i = 0; i < batchCount; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = String.valueOf(ids[start + batchStart + i]);
+            }
+            selection.append(')');
+
+            try (Cursor cursor = getReadableDatabase().query(
+                    TABLE_IMAGES, IMAGE_COLUMNS, selection.toString(), selectionArgs,
+                    null, null, null)) {
+
+                while (cursor.moveToNext()) {
+                    images[positions.get(cursor.getLong(0))] = toGeoImage(cursor);
+                }
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Load every geotagged image into a compact column store, for working with the
+     * whole library at once, e.g. sorting, filtering or showing it on a map
+     *
+     * @return Geotagged images, newest first
+     */
+    public GeoImageStore getStore() {
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_IMAGES, IMAGE_COLUMNS, GEOTAGGED, null, null, null, NEWEST_FIRST)) {
+
+            GeoImageStore.Builder builder = new GeoImageStore.Builder(cursor.getCount());
+            while (cursor.moveToNext()) {
+                builder.add(
+                        cursor.getLong(0),
+                        cursor.getString(2),
+                        cursor.getDouble(3),
+                        cursor.getDouble(4),
+                        cursor.getString(5),
+                        cursor.isNull(6) ? GeoImageStore.NO_TIMESTAMP : cursor.getLong(6));
+            }
+            GeoImageStore store = builder.build();
+            Log.d(TAG, "Loaded " + store.size() + " images into a " + store.getFootprintBytes() + " byte store");
+            return store;
+        }
+    }
+
+    /**
+     * Get the spatial index over the geotagged images. On first use the saved index
+     * is loaded, or rebuilt from the catalog if it is missing or out of date; after
+     * that every sync keeps it current and saves it. Don't call on the main thread.
+     *
+     * @return Spatial index keyed by catalog ID
+     */
+    public SpatialIndex getSpatialIndex() {
+        synchronized (spatialIndexLock) {
+            if (spatialIndex == null) {
+                long stamp = getSpatialIndexStamp();
+                spatialIndex = SpatialIndex.readFrom(spatialIndexFile, stamp);
+                if (spatialIndex == null) {
+                    spatialIndex = buildSpatialIndex();
+                    writeSpatialIndex(stamp);
+                }
+            }
+            return spatialIndex;
+        }
+    }
+
+    private SpatialIndex buildSpatialIndex() {
+        SpatialIndex index = new SpatialIndex();
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_IMAGES,
+                new String[] { COLUMN_ID, COLUMN_LATITUDE, COLUMN_LONGITUDE },
+                GEOTAGGED,
+                null, null, null, null)) {
+
+            while (cursor.moveToNext()) {
+                index.put(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Save the spatial index, if it is loaded, stamped with the current state of the rows.
+     * Renames leave the index's entries alone but change the rows' update times, which the
+     * stamp follows, so a batch of renames calls this once at its end.
+     */
+    public void saveSpatialIndex() {
+        synchronized (spatialIndexLock) {
+            if (spatialIndex != null) {
+                writeSpatialIndex(getSpatialIndexStamp());
+            }
+        }
+    }
+
+    private void writeSpatialIndex(long stamp) {
+        try {
+            spatialIndex.writeTo(spatialIndexFile, stamp);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving spatial index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Identify the current state of the geotagged rows. Every write sets the row's
+     * update time, so any insert, update or delete changes the count or the latest time.
+     */
+    private long getSpatialIndexStamp() {
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT COUNT(*), MAX(" + COLUMN_UPDATED + ") FROM " + TABLE_IMAGES + " WHERE " + GEOTAGGED,
+                null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(1) * 31 + cursor.getLong(0);
+        }
+    }
+
+    private static GeoImage toGeoImage(Cursor cursor) {
+        return new GeoImage(
+                cursor.getLong(0),
+                cursor.getString(1),
+                cursor.getString(2),
+                cursor.getDouble(3),
+                cursor.getDouble(4),
+                cursor.getString(5),
+                new Date(cursor.getLong(6)));
+    }
+
+    /**
+     * Visit the location of every geotagged image
+     *
+     * @param visitor Visitor for the locations
+     */
+    public void visitLocations(LocationVisitor visitor) {
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_IMAGES,
+                new String[] { COLUMN_ID, COLUMN_LATITUDE, COLUMN_LONGITUDE, COLUMN_LOCATION_NAME,
+                        COLUMN_NAME_PROVISIONAL },
+                GEOTAGGED,
+                null, null, null, null)) {
+
+            while (cursor.moveToNext()) {
+                visitor.visit(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                        cursor.isNull(3) ? null : cursor.getString(3), cursor.getInt(4) != 0);
+            }
+        }
+    }
+
+    /**
+     * Rename images, e.g. once their coordinates have been reverse geocoded. A row is
+     * only renamed if it still has the name it was read with, so a name parsed from a
+     * changed file isn't overwritten. Renamed rows get a new version. The saved spatial
+     * index isn't touched; call {@link #saveSpatialIndex()} once a batch of renames is done.
+     *
+     * @param ids Image IDs
+     * @param expectedNames Name each image was read with, or null
+     * @param name New name
+     * @param provisional true if the name is a stand-in that a later rename should replace
+     * @return Number of images renamed
+     */
+    public synchronized int setLocationName(long[] ids, String[] expectedNames, String name, boolean provisional) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_LOCATION_NAME, name);
+        values.put(COLUMN_NAME_PROVISIONAL, provisional ? 1 : 0);
+        values.put(COLUMN_UPDATED, System.currentTimeMillis());
+        int renamed = 0;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                String id = String.valueOf(ids[i]);
+                renamed += expectedNames[i] != null
+                        ? db.update(TABLE_IMAGES, values, COLUMN_ID + " = ? AND " + COLUMN_LOCATION_NAME + " = ?",
+                                new String[] { id, expectedNames[i] })
+                        : db.update(TABLE_IMAGES, values, COLUMN_ID + " = ? AND " + COLUMN_LOCATION_NAME + " IS NULL",
+                                new String[] { id });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return renamed;
+    }
+
+    /**
+     * Get the cataloged files listed by a source
+     *
+     * @param source Source flag
+     * @return Files whose last sync saw them in that source
+     */
+    public synchronized List<File> getFiles(int source) {
+        List<File> files = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_IMAGES,
+                new String[] { COLUMN_PATH },
+                "(" + COLUMN_SOURCE + " & " + source + ") != 0",
+                null, null, null, null)) {
+
+            while (cursor.moveToNext()) {
+                files.add(new File(cursor.getString(0)));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Load every cataloged file, keyed by path
+     */
+    private Map<String, CatalogEntry> getEntries() {
+        Map<String, CatalogEntry> entries = new HashMap<>();
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_IMAGES,
+                new String[] { COLUMN_ID, COLUMN_PATH, COLUMN_SIZE, COLUMN_MODIFIED, COLUMN_SOURCE },
+                null, null, null, null, null)) {
+
+            while (cursor.moveToNext()) {
+                entries.put(cursor.getString(1), new CatalogEntry(cursor.getLong(0), cursor.getLong(2),
+                        cursor.getLong(3), cursor.getInt(4)));
+            }
+        }
+        return entries;
+    }
+
+    private static ContentValues toContentValues(File file, long size, long modified, GeoImage image) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, file.getPath());
+        values.put(COLUMN_FILENAME, file.getName());
+        values.put(COLUMN_SIZE, size);
+        values.put(COLUMN_MODIFIED, modified);
+        values.put(COLUMN_UPDATED, System.currentTimeMillis());
+        // A freshly parsed name replaces any stand-in stored for the old file
+        values.put(COLUMN_NAME_PROVISIONAL, 0);
+
+        // Files without a location are kept too, so they aren't parsed again on every scan
+        values.put(COLUMN_HAS_LOCATION, image != null ? 1 : 0);
+        if (image != null) {
+            values.put(COLUMN_LATITUDE, image.getLatitude());
+            values.put(COLUMN_LONGITUDE, image.getLongitude());
+            values.put(COLUMN_LOCATION_NAME, image.getLocationName());
+            values.put(COLUMN_TIMESTAMP, image.getTimestamp().getTime());
+        } else {
+            values.putNull(COLUMN_LATITUDE);
+            values.putNull(COLUMN_LONGITUDE);
+            values.putNull(COLUMN_LOCATION_NAME);
+            values.putNull(COLUMN_TIMESTAMP);
+        }
+        return values;
+    }
+}
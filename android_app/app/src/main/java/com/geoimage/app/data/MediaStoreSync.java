@@ -0,0 +1,141 @@
+package com.geoimage.app.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Incremental listing of the images this app added to the MediaStore. Each
+ * sync only queries rows modified since the last committed checkpoint:
+ * GENERATION_MODIFIED on Android 11+, DATE_MODIFIED before that. Rows are
+ * selected by OWNER_PACKAGE_NAME on Android 10+, or by a DATA prefix on older
+ * releases. Unchanged files from earlier syncs are listed from the catalog
+ * instead, so the catalog keeps them and notices when they are deleted.
+ */
+public class MediaStoreSync {
+    private static final String TAG = "MediaStoreSync";
+    private static final String PREFS_NAME = "media_store_sync";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_GENERATION = "generation";
+    private static final String KEY_DATE_MODIFIED = "date_modified";
+
+    private final Context context;
+    private final File imageDirectory;
+    private final SharedPreferences preferences;
+
+    // Checkpoint reached by the last visit, committed once the catalog is up to date
+    private String version;
+    private long generation;
+    private long dateModified;
+
+    /**
+     * @param context Any context
+     * @param imageDirectory Directory this app saves images to, used to select rows before Android 10
+     */
+    public MediaStoreSync(Context context, File imageDirectory) {
+        this.context = context.getApplicationContext();
+        this.imageDirectory = imageDirectory;
+        this.preferences = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Visit every file the MediaStore listed before and the rows that changed since then.
+     * Rows are visited in checkpoint order.
+     *
+     * @param catalog Catalog holding the files seen by earlier syncs
+     * @param visitor Visitor to pass the files to
+     * @return true if every changed row was visited; false if the query failed, in which
+     *         case the checkpoint must not be committed
+     */
+    public boolean visitChanges(GeoImageCatalog catalog, GeoImageCatalog.FileVisitor visitor) {
+        version = getMediaStoreVersion();
+        generation = preferences.getLong(KEY_GENERATION, 0);
+        dateModified = preferences.getLong(KEY_DATE_MODIFIED, 0);
+        if (!version.equals(preferences.getString(KEY_VERSION, null))) {
+            // The MediaStore was rebuilt, so its counters started over
+            generation = 0;
+            dateModified = 0;
+        } else {
+            for (File file : catalog.getFiles(GeoImageCatalog.SOURCE_MEDIA_STORE)) {
+                visitor.visit(file, GeoImageCatalog.SOURCE_MEDIA_STORE);
+            }
+        }
+
+        String selection;
+        String[] selectionArgs;
+        String checkpointColumn;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            checkpointColumn = MediaStore.MediaColumns.GENERATION_MODIFIED;
+            selection = MediaStore.MediaColumns.OWNER_PACKAGE_NAME + " = ? AND " + checkpointColumn + " > ?";
+            selectionArgs = new String[] { context.getPackageName(), String.valueOf(generation) };
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // DATE_MODIFIED only has second resolution, so the last second is queried again
+            checkpointColumn = MediaStore.MediaColumns.DATE_MODIFIED;
+            selection = MediaStore.MediaColumns.OWNER_PACKAGE_NAME + " = ? AND " + checkpointColumn + " >= ?";
+            selectionArgs = new String[] { context.getPackageName(), String.valueOf(dateModified) };
+        } else {
+            // Files under the directory this app saves to
+            checkpointColumn = MediaStore.MediaColumns.DATE_MODIFIED;
+            selection = MediaStore.MediaColumns.DATA + " LIKE ? AND " + checkpointColumn + " >= ?";
+            selectionArgs = new String[] { imageDirectory.getAbsolutePath() + "/%", String.valueOf(dateModified) };
+        }
+
+        try (Cursor cursor = context.getContentResolver().query(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                new String[] { MediaStore.MediaColumns.DATA, checkpointColumn },
+                selection,
+                selectionArgs,
+                checkpointColumn + " ASC")) {
+
+            if (cursor == null) {
+                Log.e(TAG, "Media store query returned no cursor");
+                return false;
+            }
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(0);
+                if (path != null) {
+                    visitor.visit(new File(path), GeoImageCatalog.SOURCE_MEDIA_STORE);
+                }
+
+                long checkpoint = cursor.getLong(1);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    generation = Math.max(generation, checkpoint);
+                } else {
+                    dateModified = Math.max(dateModified, checkpoint);
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            // A cursor can fail part way through, e.g. when the provider dies
+            Log.e(TAG, "Error querying media store: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Record the checkpoint reached by the last visit, once the catalog sync that
+     * consumed it has completed. Must not be called after a visit that failed.
+     */
+    public void commit() {
+        if (version == null) {
+            return;
+        }
+        preferences.edit()
+                .putString(KEY_VERSION, version)
+                .putLong(KEY_GENERATION, generation)
+                .putLong(KEY_DATE_MODIFIED, dateModified)
+                .apply();
+    }
+
+    private String getMediaStoreVersion() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return MediaStore.getVersion(context);
+        }
+        return "";
+    }
+}
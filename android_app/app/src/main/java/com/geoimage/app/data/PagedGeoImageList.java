@@ -0,0 +1,283 @@
+package com.geoimage.app.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.geoimage.app.model.GeoImage;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Read-only list over a catalog {@link GeoImageCatalog.Snapshot} that holds only
+ * the pages around the positions being shown. Positions whose page isn't loaded
+ * yet read as null placeholders; asking for one loads its page, and the pages
+ * within the prefetch distance, in the background. Memory use is bounded by
+ * the page cache rather than by the size of the library.
+ * <p>
+ * Each image is turned into an item, e.g. with its display strings, by an
+ * {@link ItemFactory} on the loading thread, so the main thread only reads
+ * finished items. Reading a position whose pages are already loaded allocates
+ * nothing, so binding cells while scrolling creates no garbage.
+ * All public methods must be called on the main thread.
+ *
+ * @param <T> Item type
+ */
+public class PagedGeoImageList<T> {
+    static final int PAGE_SIZE = 50;
+    // Load the pages this many positions either side of the one requested, so
+    // scrolling rarely reaches a placeholder
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE;
+    private static final int MAX_PAGES = 8;
+
+    private final GeoImageCatalog catalog;
+    private final GeoImageCatalog.Snapshot snapshot;
+    private final Executor executor;
+    private final ItemFactory<T> itemFactory;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Integer, Page<T>> pages = new LruCache<Integer, Page<T>>(MAX_PAGES) {
+        @Override
+        protected void entryRemoved(boolean evicted, Integer key, Page<T> oldValue, Page<T> newValue) {
+            if (newValue == null) {
+                cachedPages.remove(key);
+                // The page may have been part of the range known to be loaded
+                completeFirstPage = -1;
+                completeLastPage = -1;
+            }
+        }
+    };
+    // The same pages by index, read without boxing or reordering the LRU
+    private final SparseArray<Page<T>> cachedPages = new SparseArray<>();
+    private final Set<Integer> loadingPages = new HashSet<>();
+    // Pages last found to be loaded in full, so reads within them can skip the checks
+    private int completeFirstPage = -1;
+    private int completeLastPage = -1;
+    // Read by page loads that haven't started yet
+    private volatile boolean detached;
+
+    /**
+     * Told when placeholders have been replaced by loaded images
+     */
+    public interface Listener {
+        /**
+         * @param positionStart First loaded position
+         * @param itemCount Number of loaded positions
+         */
+        void onItemRangeLoaded(int positionStart, int itemCount);
+    }
+
+    /**
+     * Builds the item shown for an image. Called on the loading thread.
+     *
+     * @param <T> Item type
+     */
+    public interface ItemFactory<T> {
+        /**
+         * @param image Image loaded from the catalog
+         * @return Item for the image
+         */
+        T create(GeoImage image);
+    }
+
+    /**
+     * Maps positions in a replaced list to positions in this one
+     */
+    public interface PositionMap {
+        /**
+         * @param oldPosition Position in the replaced list
+         * @return Position in this list, or -1 if the image is gone
+         */
+        int getNewPosition(int oldPosition);
+    }
+
+    /**
+     * A page of items; incomplete while it only holds items carried over from a previous list
+     */
+    private static class Page<T> {
+        final T[] items;
+        boolean complete;
+
+        Page(T[] items, boolean complete) {
+            this.items = items;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * @param catalog Catalog to load pages from
+     * @param snapshot Snapshot listing the images
+     * @param executor Executor to load pages on
+     * @param itemFactory Factory for the items, called on the executor
+     * @param listener Listener for loaded pages
+     */
+    public PagedGeoImageList(GeoImageCatalog catalog, GeoImageCatalog.Snapshot snapshot, Executor executor,
+                             ItemFactory<T> itemFactory, Listener listener) {
+        this.catalog = catalog;
+        this.snapshot = snapshot;
+        this.executor = executor;
+        this.itemFactory = itemFactory;
+        this.listener = listener;
+    }
+
+    /**
+     * @return Snapshot listing the images
+     */
+    public GeoImageCatalog.Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * Get the catalog ID at a position. IDs are always available, loaded or not.
+     *
+     * @param position Position in the list
+     * @return Image ID
+     */
+    public long getId(int position) {
+        return snapshot.ids[position];
+    }
+
+    /**
+     * Get the item at a position, loading the pages around it if needed
+     *
+     * @param position Position in the list
+     * @return Item, or null while its page is loading
+     */
+    public T get(int position) {
+        loadAround(position);
+        Page<T> page = cachedPages.get(position / PAGE_SIZE);
+        return page != null ? page.items[position % PAGE_SIZE] : null;
+    }
+
+    /**
+     * Make sure the pages within the prefetch distance of a position are loaded or loading
+     *
+     * @param position Position in the list
+     */
+    public void loadAround(int position) {
+        if (detached || size() == 0) {
+            return;
+        }
+        int firstPage = Math.max(0, position - PREFETCH_DISTANCE) / PAGE_SIZE;
+        int lastPage = Math.min(size() - 1, position + PREFETCH_DISTANCE) / PAGE_SIZE;
+        if (firstPage >= completeFirstPage && lastPage <= completeLastPage) {
+            return;
+        }
+
+        // Getting the pages from the LRU also marks them as recently used
+        boolean complete = true;
+        for (int pageIndex = firstPage; pageIndex <= lastPage; pageIndex++) {
+            Page<T> page = pages.get(pageIndex);
+            if (page == null || !page.complete) {
+                complete = false;
+                if (loadingPages.add(pageIndex)) {
+                    loadPage(pageIndex);
+                }
+            }
+        }
+        if (complete) {
+            completeFirstPage = firstPage;
+            completeLastPage = lastPage;
+        }
+    }
+
+    /**
+     * Take over the items loaded by the list this one replaces, where they are unchanged,
+     * so cells that are already showing don't go back to placeholders
+     *
+     * @param previous List this one replaces
+     * @param positionMap Where the previous list's images are in this one, or null if they
+     *                    haven't moved
+     */
+    public void carryOver(PagedGeoImageList<T> previous, PositionMap positionMap) {
+        GeoImageCatalog.Snapshot previousSnapshot = previous.snapshot;
+        for (Map.Entry<Integer, Page<T>> entry : previous.pages.snapshot().entrySet()) {
+            T[] items = entry.getValue().items;
+            int start = entry.getKey() * PAGE_SIZE;
+            for (int i = 0; i < items.length; i++) {
+                int oldPosition = start + i;
+                int newPosition = positionMap != null ? positionMap.getNewPosition(oldPosition) : oldPosition;
+                if (items[i] == null || newPosition < 0 || newPosition >= size()
+                        || snapshot.ids[newPosition] != previousSnapshot.ids[oldPosition]
+                        || snapshot.versions[newPosition] != previousSnapshot.versions[oldPosition]) {
+                    continue;
+                }
+
+                int pageIndex = newPosition / PAGE_SIZE;
+                Page<T> page = pages.get(pageIndex);
+                if (page == null) {
+                    page = new Page<>(newItems(pageLength(pageIndex)), false);
+                    putPage(pageIndex, page);
+                }
+                page.items[newPosition % PAGE_SIZE] = items[i];
+            }
+        }
+
+        // Pages that were carried over in full don't need loading again
+        for (Map.Entry<Integer, Page<T>> entry : pages.snapshot().entrySet()) {
+            Page<T> page = entry.getValue();
+            page.complete = true;
+            for (T item : page.items) {
+                if (item == null) {
+                    page.complete = false;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop loading pages, once the list has been replaced
+     */
+    public void detach() {
+        detached = true;
+    }
+
+    private void putPage(int pageIndex, Page<T> page) {
+        pages.put(pageIndex, page);
+        cachedPages.put(pageIndex, page);
+    }
+
+    private int pageLength(int pageIndex) {
+        return Math.min(PAGE_SIZE, size() - pageIndex * PAGE_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newItems(int length) {
+        return (T[]) new Object[length];
+    }
+
+    private void loadPage(int pageIndex) {
+        int start = pageIndex * PAGE_SIZE;
+        int count = pageLength(pageIndex);
+        executor.execute(() -> {
+            if (detached) {
+                return;
+            }
+            GeoImage[] images = catalog.getGeoImages(snapshot.ids, start, count);
+            T[] items = newItems(count);
+            for (int i = 0; i < count; i++) {
+                if (images[i] != null) {
+                    items[i] = itemFactory.create(images[i]);
+                }
+            }
+            mainHandler.post(() -> {
+                loadingPages.remove(pageIndex);
+                if (detached) {
+                    return;
+                }
+                // Rows deleted since the snapshot stay placeholders until the next reload
+                putPage(pageIndex, new Page<>(items, true));
+                listener.onItemRangeLoaded(start, count);
+            });
+        });
+    }
+}
@@ -0,0 +1,135 @@
+package com.geoimage.app.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the files listed by several sources on their canonical path, and passes
+ * each new file on in units as soon as a unit fills. A file costs one hash lookup;
+ * only its directory is canonicalized, once per directory.
+ */
+class SourceMerge {
+    /**
+     * Receives the merged files a unit at a time
+     */
+    interface UnitConsumer {
+        /**
+         * @param unit Canonical files not passed on before, in listing order
+         */
+        void accept(List<File> unit);
+    }
+
+    private final int unitSize;
+    private final UnitConsumer consumer;
+    // Source flags of every file merged so far, keyed by canonical path
+    private final Map<String, Integer> sources = new HashMap<>();
+    private final Map<String, String> canonicalDirectories = new HashMap<>();
+    private List<File> unit;
+    // Directories resolved on the file system so far
+    private int canonicalLookups;
+
+    /**
+     * @param unitSize Number of files in a full unit
+     * @param consumer Consumer of the units
+     */
+    SourceMerge(int unitSize, UnitConsumer consumer) {
+        this.unitSize = unitSize;
+        this.consumer = consumer;
+        unit = new ArrayList<>(unitSize);
+    }
+
+    /**
+     * Merge a listed file
+     *
+     * @param file Image file, under any alias of its directory
+     * @param source Source flag of the listing the file came from
+     * @return true if the file is new; false if it was listed before, in which case
+     *         only its source flags are merged
+     */
+    boolean add(File file, int source) {
+        File canonical = canonicalize(file);
+        Integer listedSource = sources.put(canonical.getPath(), source);
+        if (listedSource != null) {
+            sources.put(canonical.getPath(), listedSource | source);
+            return false;
+        }
+
+        unit.add(canonical);
+        if (unit.size() == unitSize) {
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Pass on the files of a unit that isn't full yet
+     */
+    void flush() {
+        if (unit.isEmpty()) {
+            return;
+        }
+        List<File> files = unit;
+        unit = new ArrayList<>(unitSize);
+        consumer.accept(files);
+    }
+
+    /**
+     * @param path Canonical path
+     * @return Merged source flags of the file, or 0 if it isn't listed
+     */
+    int getSource(String path) {
+        Integer source = sources.get(path);
+        return source != null ? source : 0;
+    }
+
+    /**
+     * Forget a file, e.g. one that was listed but is gone from disk
+     *
+     * @param path Canonical path
+     */
+    void remove(String path) {
+        sources.remove(path);
+    }
+
+    /**
+     * @return Merged source flags of every listed file, keyed by canonical path
+     */
+    Map<String, Integer> getSources() {
+        return sources;
+    }
+
+    /**
+     * @return Number of directories resolved on the file system so far
+     */
+    int getCanonicalLookups() {
+        return canonicalLookups;
+    }
+
+    /**
+     * Canonicalize the directory rather than the file, so aliases such as
+     * /sdcard and /storage/emulated/0 merge with one lookup per directory
+     */
+    private File canonicalize(File file) {
+        File absolute = file.getAbsoluteFile();
+        String directory = absolute.getParent();
+        if (directory == null) {
+            return absolute;
+        }
+
+        String canonicalDirectory = canonicalDirectories.get(directory);
+        if (canonicalDirectory == null) {
+            canonicalLookups++;
+            try {
+                canonicalDirectory = new File(directory).getCanonicalPath();
+            } catch (IOException e) {
+                canonicalDirectory = directory;
+            }
+            canonicalDirectories.put(directory, canonicalDirectory);
+        }
+        return new File(canonicalDirectory, absolute.getName());
+    }
+}
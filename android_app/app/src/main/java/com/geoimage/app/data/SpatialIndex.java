@@ -0,0 +1,816 @@
+package com.geoimage.app.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Grid index over image locations. The world is divided into cells of
+ * {@link #CELL_DEGREES}; only occupied cells are stored, in a sorted map keyed
+ * row by row, so a query only visits the cells it overlaps and each row of
+ * them is found with one lookup. Counts of images per block of cells, in
+ * blocks doubling in size up to the whole world, let k-nearest queries skip
+ * empty space. Supports bounding-box, radius and k-nearest queries, and
+ * inserts and removals as the catalog changes. Thread-safe; listeners are
+ * called on the thread that changed the index.
+ */
+public class SpatialIndex {
+    /** Cell edge length in degrees, about 11 km at the equator */
+    public static final double CELL_DEGREES = 0.1;
+    private static final int COLUMNS = (int) Math.round(360 / CELL_DEGREES);
+    private static final int ROWS = (int) Math.round(180 / CELL_DEGREES);
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    // Blocks of the finest counted level are 16 by 16 cells; each level above doubles the edge
+    private static final int FIRST_BLOCK_LEVEL = 4;
+    private static final int TOP_BLOCK_LEVEL = 32 - Integer.numberOfLeadingZeros(ROWS - 1);
+    // Rounding in the distance formula, worst near the antipode, stays far below this
+    private static final double DISTANCE_SLACK_METERS = 1;
+
+    private static final int FILE_MAGIC = 0x47534958;
+    private static final int FILE_VERSION = 1;
+
+    private final NavigableMap<Integer, Cell> cells = new TreeMap<>();
+    // Cell key of every indexed ID, so removals don't need the old location
+    private final IdTable cellKeys = new IdTable();
+    // Number of images in each block, row by row, for every counted level
+    private final int[][] blockCounts = new int[TOP_BLOCK_LEVEL - FIRST_BLOCK_LEVEL + 1][];
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // Points whose distance the last nearest() query computed
+    private int visitedPoints;
+
+    /**
+     * Points of one grid cell, in parallel arrays
+     */
+    private static class Cell {
+        long[] ids = new long[4];
+        double[] latitudes = new double[4];
+        double[] longitudes = new double[4];
+        int size;
+
+        void add(long id, double latitude, double longitude) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                latitudes = Arrays.copyOf(latitudes, size * 2);
+                longitudes = Arrays.copyOf(longitudes, size * 2);
+            }
+            ids[size] = id;
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            size++;
+        }
+
+        int indexOf(long id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void removeAt(int index) {
+            // Order within a cell doesn't matter, so fill the gap with the last point
+            size--;
+            ids[index] = ids[size];
+            latitudes[index] = latitudes[size];
+            longitudes[index] = longitudes[size];
+        }
+    }
+
+    /**
+     * Receives the points found by a query
+     */
+    public interface PointVisitor {
+        void visit(long id, double latitude, double longitude);
+    }
+
+    /**
+     * Receives the occupied cells found by a query
+     */
+    public interface CellVisitor {
+        /**
+         * @param latitude Latitude of the cell's center
+         * @param longitude Longitude of the cell's center
+         * @param count Number of images in the cell
+         */
+        void visit(double latitude, double longitude, int count);
+    }
+
+    /**
+     * Told where images were added, moved or removed, e.g. to redraw that part of a map
+     */
+    public interface ChangeListener {
+        /**
+         * Called once for a new or removed image, and for both locations of a moved one
+         *
+         * @param latitude Latitude that changed
+         * @param longitude Longitude that changed
+         */
+        void onLocationChanged(double latitude, double longitude);
+    }
+
+    public SpatialIndex() {
+        for (int level = FIRST_BLOCK_LEVEL; level <= TOP_BLOCK_LEVEL; level++) {
+            blockCounts[level - FIRST_BLOCK_LEVEL] = new int[blockRows(level) * blockColumns(level)];
+        }
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add an image, or move it if it is already indexed
+     *
+     * @param id Catalog ID
+     * @param latitude Latitude
+     * @param longitude Longitude
+     */
+    public synchronized void put(long id, double latitude, double longitude) {
+        remove(id);
+        int key = cellKey(row(latitude), column(longitude));
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(key, cell);
+        }
+        cell.add(id, latitude, longitude);
+        cellKeys.put(id, key);
+        countInBlocks(key, 1);
+        notifyChanged(latitude, longitude);
+    }
+
+    /**
+     * Remove an image
+     *
+     * @param id Catalog ID
+     * @return true if the image was indexed
+     */
+    public synchronized boolean remove(long id) {
+        int key = cellKeys.remove(id);
+        if (key < 0) {
+            return false;
+        }
+        Cell cell = cells.get(key);
+        int index = cell.indexOf(id);
+        double latitude = cell.latitudes[index];
+        double longitude = cell.longitudes[index];
+        cell.removeAt(index);
+        if (cell.size == 0) {
+            cells.remove(key);
+        }
+        countInBlocks(key, -1);
+        notifyChanged(latitude, longitude);
+        return true;
+    }
+
+    /**
+     * @return Number of indexed images
+     */
+    public synchronized int size() {
+        return cellKeys.size();
+    }
+
+    /**
+     * Find the images inside a bounding box. A box whose west edge is east of its
+     * east edge crosses the antimeridian.
+     *
+     * @param south Southern latitude
+     * @param west Western longitude
+     * @param north Northern latitude
+     * @param east Eastern longitude
+     * @return IDs of the images in the box, in no particular order
+     */
+    public synchronized long[] queryBox(double south, double west, double north, double east) {
+        LongList result = new LongList();
+        visitBox(south, west, north, east, (id, latitude, longitude) -> result.add(id));
+        return result.toArray();
+    }
+
+    /**
+     * Find the images within a distance of a point
+     *
+     * @param latitude Center latitude
+     * @param longitude Center longitude
+     * @param radiusMeters Radius in meters
+     * @return IDs of the images in the circle, in no particular order
+     */
+    public synchronized long[] queryRadius(double latitude, double longitude, double radiusMeters) {
+        LongList result = new LongList();
+        visitRadius(latitude, longitude, radiusMeters, (id, pointLatitude, pointLongitude) -> result.add(id));
+        return result.toArray();
+    }
+
+    /**
+     * Find the images nearest to a point. Blocks and cells are searched best first,
+     * nearest bound first, down from the whole world; the search stops as soon as the
+     * k-th nearest image found is no further than the next block or cell could be,
+     * so only the images of cells around the point are visited however dense or
+     * sparse the rest of the index is.
+     *
+     * @param latitude Latitude
+     * @param longitude Longitude
+     * @param k Maximum number of images
+     * @return IDs of up to k images, nearest first
+     */
+    public synchronized long[] nearest(double latitude, double longitude, int k) {
+        visitedPoints = 0;
+        if (k <= 0 || cellKeys.size() == 0) {
+            return new long[0];
+        }
+
+        NearestHeap heap = new NearestHeap(k);
+        RegionQueue queue = new RegionQueue();
+        int[] topCounts = blockCounts[TOP_BLOCK_LEVEL - FIRST_BLOCK_LEVEL];
+        for (int block = 0; block < topCounts.length; block++) {
+            if (topCounts[block] > 0) {
+                queue.offer(blockBound(latitude, longitude, TOP_BLOCK_LEVEL, block), TOP_BLOCK_LEVEL, block);
+            }
+        }
+
+        while (queue.size > 0) {
+            if (heap.size == k && queue.peekBound() >= heap.distances[0]) {
+                // Nothing left in the queue can be nearer than the k-th image found
+                break;
+            }
+            int level = queue.peekLevel();
+            int index = queue.poll();
+            if (level == 0) {
+                Cell cell = cells.get(index);
+                for (int i = 0; i < cell.size; i++) {
+                    heap.offer(cell.ids[i], distanceMeters(latitude, longitude, cell.latitudes[i], cell.longitudes[i]));
+                }
+                visitedPoints += cell.size;
+            } else if (level == FIRST_BLOCK_LEVEL) {
+                offerCells(queue, latitude, longitude, index);
+            } else {
+                offerBlocks(queue, latitude, longitude, level, index);
+            }
+        }
+        return heap.toSortedArray();
+    }
+
+    /**
+     * @return Number of images whose distance the last {@link #nearest} query computed
+     */
+    synchronized int getVisitedPoints() {
+        return visitedPoints;
+    }
+
+    /**
+     * Queue the occupied quarters of a block
+     */
+    private void offerBlocks(RegionQueue queue, double latitude, double longitude, int level, int block) {
+        int childLevel = level - 1;
+        int columns = blockColumns(level);
+        int childRows = blockRows(childLevel);
+        int childColumns = blockColumns(childLevel);
+        int[] childCounts = blockCounts[childLevel - FIRST_BLOCK_LEVEL];
+        int firstRow = block / columns * 2;
+        int firstColumn = block % columns * 2;
+        for (int row = firstRow; row < Math.min(firstRow + 2, childRows); row++) {
+            for (int column = firstColumn; column < Math.min(firstColumn + 2, childColumns); column++) {
+                int child = row * childColumns + column;
+                if (childCounts[child] > 0) {
+                    queue.offer(blockBound(latitude, longitude, childLevel, child), childLevel, child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue the occupied cells of a block of the finest counted level
+     */
+    private void offerCells(RegionQueue queue, double latitude, double longitude, int block) {
+        int columns = blockColumns(FIRST_BLOCK_LEVEL);
+        int firstRow = block / columns << FIRST_BLOCK_LEVEL;
+        int firstColumn = block % columns << FIRST_BLOCK_LEVEL;
+        int lastRow = Math.min(firstRow + (1 << FIRST_BLOCK_LEVEL), ROWS) - 1;
+        int lastColumn = Math.min(firstColumn + (1 << FIRST_BLOCK_LEVEL), COLUMNS) - 1;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int key : cells.subMap(cellKey(row, firstColumn), true, cellKey(row, lastColumn), true).keySet()) {
+                int column = key % COLUMNS;
+                queue.offer(regionBound(latitude, longitude, row, row + 1, column, column + 1), 0, key);
+            }
+        }
+    }
+
+    private static double blockBound(double latitude, double longitude, int level, int block) {
+        int columns = blockColumns(level);
+        int row = block / columns;
+        int column = block % columns;
+        return regionBound(latitude, longitude, row << level, Math.min((row + 1) << level, ROWS),
+                column << level, Math.min((column + 1) << level, COLUMNS));
+    }
+
+    /**
+     * Lower bound of the distance from a point to a range of cells
+     *
+     * @param firstRow First row of the range
+     * @param endRow Row after the range
+     * @param firstColumn First column of the range
+     * @param endColumn Column after the range
+     * @return Distance in meters, at most the distance to any point in the range
+     */
+    private static double regionBound(double latitude, double longitude, int firstRow, int endRow,
+                                      int firstColumn, int endColumn) {
+        double south = firstRow * CELL_DEGREES - 90;
+        double north = endRow * CELL_DEGREES - 90;
+        double west = firstColumn * CELL_DEGREES - 180;
+        double east = endColumn * CELL_DEGREES - 180;
+        double nearestLatitude;
+        double nearestLongitude;
+        if (longitude >= west && longitude <= east) {
+            // Straight north or south along the point's meridian
+            nearestLatitude = latitude;
+            nearestLongitude = longitude;
+        } else {
+            // At every latitude the edge meridian closer in longitude is the nearer one
+            double toWest = angleBetween(longitude, west);
+            double toEast = angleBetween(longitude, east);
+            nearestLongitude = toWest < toEast ? west : east;
+            // Nearest point of the edge's great circle, then kept to the edge's span
+            double phi = Math.toRadians(latitude);
+            nearestLatitude = Math.toDegrees(Math.atan2(Math.sin(phi),
+                    Math.cos(phi) * Math.cos(Math.toRadians(Math.min(toWest, toEast)))));
+        }
+        nearestLatitude = Math.max(south, Math.min(north, nearestLatitude));
+        return Math.max(0, distanceMeters(latitude, longitude, nearestLatitude, nearestLongitude)
+                - DISTANCE_SLACK_METERS);
+    }
+
+    /**
+     * @return Difference between two longitudes, from 0 to 180 degrees
+     */
+    private static double angleBetween(double longitude1, double longitude2) {
+        double difference = Math.abs(longitude1 - longitude2) % 360;
+        return difference > 180 ? 360 - difference : difference;
+    }
+
+    private void countInBlocks(int key, int change) {
+        int row = key / COLUMNS;
+        int column = key % COLUMNS;
+        for (int level = FIRST_BLOCK_LEVEL; level <= TOP_BLOCK_LEVEL; level++) {
+            blockCounts[level - FIRST_BLOCK_LEVEL][(row >> level) * blockColumns(level) + (column >> level)] += change;
+        }
+    }
+
+    private static int blockRows(int level) {
+        return (ROWS + (1 << level) - 1) >> level;
+    }
+
+    private static int blockColumns(int level) {
+        return (COLUMNS + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * Great-circle distance between two points
+     *
+     * @return Distance in meters
+     */
+    public static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Save the index. The file is replaced atomically, so a crash leaves the previous one.
+     *
+     * @param file File to write
+     * @param stamp Value identifying the catalog state the index reflects
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void writeTo(File file, long stamp) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(stamp);
+            out.writeInt(cellKeys.size());
+            for (Cell cell : cells.values()) {
+                for (int i = 0; i < cell.size; i++) {
+                    out.writeLong(cell.ids[i]);
+                    out.writeDouble(cell.latitudes[i]);
+                    out.writeDouble(cell.longitudes[i]);
+                }
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Load an index saved by {@link #writeTo(File, long)}
+     *
+     * @param file File to read
+     * @param stamp Value identifying the current catalog state
+     * @return Index, or null if the file is missing, unreadable or was saved for another state
+     */
+    public static SpatialIndex readFrom(File file, long stamp) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || in.readLong() != stamp) {
+                return null;
+            }
+            SpatialIndex index = new SpatialIndex();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                index.put(in.readLong(), in.readDouble(), in.readDouble());
+            }
+            return index;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void visitRadius(double latitude, double longitude, double radiusMeters, PointVisitor visitor) {
+        double dLatitude = Math.toDegrees(radiusMeters / EARTH_RADIUS_METERS);
+        double south = latitude - dLatitude;
+        double north = latitude + dLatitude;
+        double west = -180;
+        double east = 180;
+        double cosLatitude = Math.cos(Math.toRadians(Math.max(Math.abs(south), Math.abs(north))));
+        if (south > -90 && north < 90 && cosLatitude > 0) {
+            double dLongitude = dLatitude / cosLatitude;
+            if (dLongitude < 180) {
+                west = wrapLongitude(longitude - dLongitude);
+                east = wrapLongitude(longitude + dLongitude);
+            }
+        }
+
+        visitBox(south, west, north, east, (id, pointLatitude, pointLongitude) -> {
+            if (distanceMeters(latitude, longitude, pointLatitude, pointLongitude) <= radiusMeters) {
+                visitor.visit(id, pointLatitude, pointLongitude);
+            }
+        });
+    }
+
+    /**
+     * Visit the images inside a bounding box without collecting them. The visitor
+     * runs with the index locked, so it must not call back into the index.
+     *
+     * @param south Southern latitude
+     * @param west Western longitude; east of the east edge if the box crosses the antimeridian
+     * @param north Northern latitude
+     * @param east Eastern longitude
+     * @param visitor Visitor for the images
+     */
+    public synchronized void visitBox(double south, double west, double north, double east,
+                                      PointVisitor visitor) {
+        if (west > east) {
+            visitBox(south, west, north, 180, visitor);
+            visitBox(south, -180, north, east, visitor);
+            return;
+        }
+
+        int firstColumn = column(west);
+        int lastColumn = column(east);
+        for (int row = row(south), lastRow = row(north); row <= lastRow; row++) {
+            for (Cell cell : cells.subMap(cellKey(row, firstColumn), true, cellKey(row, lastColumn), true).values()) {
+                for (int i = 0; i < cell.size; i++) {
+                    double latitude = cell.latitudes[i];
+                    double longitude = cell.longitudes[i];
+                    // Cells on the edge of the box are only partly inside it
+                    if (latitude >= south && latitude <= north && longitude >= west && longitude <= east) {
+                        visitor.visit(cell.ids[i], latitude, longitude);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Visit the occupied cells overlapping a bounding box with their numbers of images.
+     * Takes time in the number of cells rather than images, for views too coarse to
+     * tell apart the images of a cell. The visitor runs with the index locked, so it
+     * must not call back into the index.
+     *
+     * @param south Southern latitude
+     * @param west Western longitude; east of the east edge if the box crosses the antimeridian
+     * @param north Northern latitude
+     * @param east Eastern longitude
+     * @param visitor Visitor for the cells
+     */
+    public synchronized void visitCells(double south, double west, double north, double east,
+                                        CellVisitor visitor) {
+        if (west > east) {
+            visitCells(south, west, north, 180, visitor);
+            visitCells(south, -180, north, east, visitor);
+            return;
+        }
+
+        int firstColumn = column(west);
+        int lastColumn = column(east);
+        for (int row = row(south), lastRow = row(north); row <= lastRow; row++) {
+            double latitude = (row + 0.5) * CELL_DEGREES - 90;
+            for (Map.Entry<Integer, Cell> entry
+                    : cells.subMap(cellKey(row, firstColumn), true, cellKey(row, lastColumn), true).entrySet()) {
+                double longitude = (entry.getKey() % COLUMNS + 0.5) * CELL_DEGREES - 180;
+                visitor.visit(latitude, longitude, entry.getValue().size);
+            }
+        }
+    }
+
+    private void notifyChanged(double latitude, double longitude) {
+        for (ChangeListener listener : listeners) {
+            listener.onLocationChanged(latitude, longitude);
+        }
+    }
+
+    private static int row(double latitude) {
+        return clamp((int) Math.floor((latitude + 90) / CELL_DEGREES), ROWS);
+    }
+
+    private static int column(double longitude) {
+        return clamp((int) Math.floor((longitude + 180) / CELL_DEGREES), COLUMNS);
+    }
+
+    private static int clamp(int index, int count) {
+        return Math.max(0, Math.min(count - 1, index));
+    }
+
+    private static int cellKey(int row, int column) {
+        return row * COLUMNS + column;
+    }
+
+    private static double wrapLongitude(double longitude) {
+        if (longitude < -180) {
+            return longitude + 360;
+        }
+        if (longitude > 180) {
+            return longitude - 360;
+        }
+        return longitude;
+    }
+
+    /**
+     * Growable list of longs
+     */
+    private static class LongList {
+        long[] values = new long[16];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * Min-heap of blocks and cells on the lower bound of their distance
+     */
+    private static class RegionQueue {
+        double[] bounds = new double[64];
+        int[] levels = new int[64];
+        int[] indexes = new int[64];
+        int size;
+
+        void offer(double bound, int level, int index) {
+            if (size == bounds.length) {
+                bounds = Arrays.copyOf(bounds, size * 2);
+                levels = Arrays.copyOf(levels, size * 2);
+                indexes = Arrays.copyOf(indexes, size * 2);
+            }
+            int child = size++;
+            while (child > 0) {
+                int parent = (child - 1) / 2;
+                if (bounds[parent] <= bound) {
+                    break;
+                }
+                move(parent, child);
+                child = parent;
+            }
+            set(child, bound, level, index);
+        }
+
+        double peekBound() {
+            return bounds[0];
+        }
+
+        int peekLevel() {
+            return levels[0];
+        }
+
+        /**
+         * @return Index of the nearest block or cell, which is removed
+         */
+        int poll() {
+            int index = indexes[0];
+            size--;
+            double bound = bounds[size];
+            int level = levels[size];
+            int lastIndex = indexes[size];
+            int parent = 0;
+            while (true) {
+                int child = parent * 2 + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && bounds[child + 1] < bounds[child]) {
+                    child++;
+                }
+                if (bounds[child] >= bound) {
+                    break;
+                }
+                move(child, parent);
+                parent = child;
+            }
+            set(parent, bound, level, lastIndex);
+            return index;
+        }
+
+        private void move(int from, int to) {
+            set(to, bounds[from], levels[from], indexes[from]);
+        }
+
+        private void set(int slot, double bound, int level, int index) {
+            bounds[slot] = bound;
+            levels[slot] = level;
+            indexes[slot] = index;
+        }
+    }
+
+    /**
+     * Bounded max-heap on distance, keeping the k nearest points offered
+     */
+    private static class NearestHeap {
+        final long[] ids;
+        final double[] distances;
+        int size;
+
+        NearestHeap(int capacity) {
+            ids = new long[capacity];
+            distances = new double[capacity];
+        }
+
+        void offer(long id, double distance) {
+            if (size < ids.length) {
+                ids[size] = id;
+                distances[size] = distance;
+                siftUp(size++);
+            } else if (distance < distances[0]) {
+                ids[0] = id;
+                distances[0] = distance;
+                siftDown(0, size);
+            }
+        }
+
+        long[] toSortedArray() {
+            // Heap sort in place: repeatedly move the furthest point to the end
+            for (int end = size - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+            return Arrays.copyOf(ids, size);
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (distances[parent] >= distances[index]) {
+                    return;
+                }
+                swap(parent, index);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index, int end) {
+            while (true) {
+                int largest = index;
+                int left = index * 2 + 1;
+                int right = left + 1;
+                if (left < end && distances[left] > distances[largest]) {
+                    largest = left;
+                }
+                if (right < end && distances[right] > distances[largest]) {
+                    largest = right;
+                }
+                if (largest == index) {
+                    return;
+                }
+                swap(index, largest);
+                index = largest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            long id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            double distance = distances[i];
+            distances[i] = distances[j];
+            distances[j] = distance;
+        }
+    }
+
+    /**
+     * Open-addressing map from ID to cell key, without boxing a million entries
+     */
+    private static class IdTable {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        long[] keys = newKeys(64);
+        int[] values = new int[64];
+        int size;
+
+        int size() {
+            return size;
+        }
+
+        void put(long key, int value) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            int slot = slot(key, keys.length);
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            if (keys[slot] == EMPTY) {
+                size++;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        /**
+         * @return Value removed, or -1 if the key wasn't present
+         */
+        int remove(long key) {
+            int mask = keys.length - 1;
+            int slot = slot(key, keys.length);
+            while (keys[slot] != key) {
+                if (keys[slot] == EMPTY) {
+                    return -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int value = values[slot];
+            keys[slot] = EMPTY;
+            size--;
+
+            // Reinsert the rest of the probe run, so lookups past the gap still find their keys
+            for (int next = (slot + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+                long movedKey = keys[next];
+                int movedValue = values[next];
+                keys[next] = EMPTY;
+                size--;
+                put(movedKey, movedValue);
+            }
+            return value;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = newKeys(capacity);
+            values = new int[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static long[] newKeys(int capacity) {
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        private static int slot(long key, int capacity) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & (capacity - 1);
+        }
+    }
+}
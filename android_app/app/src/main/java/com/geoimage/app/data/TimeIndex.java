@@ -0,0 +1,164 @@
+package com.geoimage.app.data;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Index over image timestamps sorted newest first, as in a catalog
+ * {@link GeoImageCatalog.Snapshot}. Date ranges are found by binary search,
+ * and the positions where each calendar day and month begin are computed
+ * once, so section headers and date filters cost O(log n) however large the
+ * library is. Positions are indexes into the sorted timestamps.
+ */
+public class TimeIndex {
+
+    /**
+     * Calendar period images are grouped by
+     */
+    public enum Bucket {
+        DAY,
+        MONTH
+    }
+
+    private final long[] timestamps;
+    private final Buckets days;
+    private final Buckets months;
+
+    /**
+     * First position and start time of each bucket, newest first
+     */
+    private static class Buckets {
+        final int[] starts;
+        final long[] times;
+
+        Buckets(int[] starts, long[] times) {
+            this.starts = starts;
+            this.times = times;
+        }
+
+        /**
+         * @return Bucket holding the position: the last one starting at or before it
+         */
+        int find(int position) {
+            int index = Arrays.binarySearch(starts, position);
+            return index >= 0 ? index : -index - 2;
+        }
+    }
+
+    /**
+     * @param timestamps Timestamps in milliseconds, newest first; not copied, so must not change
+     * @param timeZone Time zone that days and months begin in
+     */
+    public TimeIndex(long[] timestamps, TimeZone timeZone) {
+        this.timestamps = timestamps;
+        Calendar calendar = Calendar.getInstance(timeZone);
+        days = buildBuckets(timestamps, calendar, Bucket.DAY);
+        months = buildBuckets(timestamps, calendar, Bucket.MONTH);
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+
+    /**
+     * Find the images taken in a time range
+     *
+     * @param from Start of the range in milliseconds, inclusive
+     * @param to End of the range in milliseconds, exclusive
+     * @return Positions {start, end} of the images in the range, end exclusive; equal if there are none
+     */
+    public int[] getRange(long from, long to) {
+        // Newer images come first, so the range starts after everything taken at or after its end
+        int start = countNotBefore(to);
+        int end = Math.max(start, countNotBefore(from));
+        return new int[] { start, end };
+    }
+
+    public int getBucketCount(Bucket bucket) {
+        return buckets(bucket).starts.length;
+    }
+
+    /**
+     * @param bucket Bucket kind
+     * @param index Bucket index, newest first
+     * @return Position of the newest image in the bucket
+     */
+    public int getBucketStart(Bucket bucket, int index) {
+        return buckets(bucket).starts[index];
+    }
+
+    /**
+     * @param bucket Bucket kind
+     * @param index Bucket index, newest first
+     * @return Time the bucket's day or month begins, in milliseconds
+     */
+    public long getBucketTime(Bucket bucket, int index) {
+        return buckets(bucket).times[index];
+    }
+
+    /**
+     * @param bucket Bucket kind
+     * @param position Image position
+     * @return Index of the bucket holding the image
+     */
+    public int getBucketIndex(Bucket bucket, int position) {
+        return buckets(bucket).find(position);
+    }
+
+    private Buckets buckets(Bucket bucket) {
+        return bucket == Bucket.DAY ? days : months;
+    }
+
+    /**
+     * @return Number of leading images taken at or after the time
+     */
+    private int countNotBefore(long time) {
+        int low = 0;
+        int high = timestamps.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] >= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Walk the timestamps once, consulting the calendar only when one falls before
+     * the current bucket
+     */
+    private static Buckets buildBuckets(long[] timestamps, Calendar calendar, Bucket bucket) {
+        int[] starts = new int[16];
+        long[] times = new long[16];
+        int count = 0;
+        long bucketStart = Long.MAX_VALUE;
+        for (int position = 0; position < timestamps.length; position++) {
+            if (timestamps[position] >= bucketStart) {
+                continue;
+            }
+
+            calendar.setTimeInMillis(timestamps[position]);
+            if (bucket == Bucket.MONTH) {
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+            }
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            bucketStart = calendar.getTimeInMillis();
+
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                times = Arrays.copyOf(times, count * 2);
+            }
+            starts[count] = position;
+            times[count] = bucketStart;
+            count++;
+        }
+        return new Buckets(Arrays.copyOf(starts, count), Arrays.copyOf(times, count));
+    }
+}
@@ -0,0 +1,469 @@
+package com.geoimage.app.exif;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+
+/**
+ * Fast reader for the GPS position, GPS processing method, DateTime and
+ * embedded IFD1 thumbnail of a JPEG. Only the file prefix up to the end of the
+ * APP1 EXIF segment is read, and the TIFF structure is walked directly in a
+ * reusable buffer without building per-tag objects. An instance is not
+ * thread-safe; use one per thread and call {@link #read(File)} for each file.
+ */
+public class ExifGpsReader {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int PREFIX_SIZE = 64 * 1024;
+    private static final byte[] DEFAULT_PROCESSING_METHOD = { 'G', 'P', 'S' };
+
+    private final byte[] buffer = new byte[PREFIX_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    private final Calendar calendar = Calendar.getInstance();
+
+    // TIFF structure within the buffer
+    private int tiffStart;
+    private int tiffLength;
+    private boolean littleEndian;
+
+    // Results of the last read
+    private boolean hasLocation;
+    private double latitude;
+    private double longitude;
+    private long dateTime;
+    private String processingMethod;
+    private int thumbnailStart;
+    private int thumbnailLength;
+
+    /**
+     * Read the EXIF fields of a file
+     *
+     * @param file Image file
+     * @return true if the file is a JPEG (with or without EXIF), false otherwise
+     * @throws IOException if the file can't be read
+     */
+    public boolean read(File file) throws IOException {
+        hasLocation = false;
+        latitude = 0;
+        longitude = 0;
+        dateTime = -1;
+        processingMethod = null;
+        thumbnailLength = 0;
+
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            byteBuffer.clear();
+            byteBuffer.limit(PREFIX_SIZE);
+            int available = readFully(channel, 0);
+
+            if (available < 4 || (buffer[0] & 0xFF) != 0xFF || (buffer[1] & 0xFF) != ExifTags.MARKER_SOI) {
+                return false;
+            }
+
+            int payloadStart = findExifPayload(channel, available);
+            if (payloadStart >= 0) {
+                parseTiff();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Walk the header segments to the APP1 EXIF payload and make sure it is in the buffer
+     *
+     * @return Start of the payload in the buffer, or -1 if there is none
+     */
+    private int findExifPayload(FileChannel channel, int available) throws IOException {
+        long position = 2;
+        while (true) {
+            int index;
+            if (position + 4 <= available) {
+                index = (int) position;
+            } else {
+                // The walk left the prefix; read the next segment header on its own
+                byteBuffer.clear();
+                byteBuffer.limit(4);
+                if (readFully(channel, position) < 4) {
+                    return -1;
+                }
+                available = 0;
+                index = 0;
+            }
+
+            if ((buffer[index] & 0xFF) != 0xFF) {
+                return -1;
+            }
+            int code = buffer[index + 1] & 0xFF;
+            if (code == 0xFF) {
+                // Fill byte before the real marker
+                position++;
+                continue;
+            }
+            if (code == ExifTags.MARKER_SOS || code == ExifTags.MARKER_EOI) {
+                return -1;
+            }
+            if (ExifTags.isStandaloneMarker(code)) {
+                position += 2;
+                continue;
+            }
+
+            int length = u16Big(index + 2);
+            if (length < 2) {
+                return -1;
+            }
+            if (code == ExifTags.MARKER_APP1) {
+                int payloadLength = length - 2;
+                int payloadStart = index + 4;
+                if (available == 0 || payloadStart + payloadLength > available) {
+                    payloadStart = loadPayload(channel, position + 4, payloadLength);
+                    available = 0;
+                }
+                // Other APP1 segments (such as XMP) are skipped
+                if (payloadStart >= 0 && setTiff(payloadStart, payloadLength)) {
+                    return payloadStart;
+                }
+            }
+            position += 2 + length;
+        }
+    }
+
+    /**
+     * Read an APP1 payload that is not fully inside the prefix into the start of the buffer
+     *
+     * @return 0 if the payload was loaded, -1 otherwise
+     */
+    private int loadPayload(FileChannel channel, long filePosition, int payloadLength) throws IOException {
+        if (payloadLength <= 0 || payloadLength > PREFIX_SIZE) {
+            return -1;
+        }
+        byteBuffer.clear();
+        byteBuffer.limit(payloadLength);
+        if (readFully(channel, filePosition) < payloadLength) {
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Record the TIFF bounds for an APP1 payload if it carries EXIF data
+     *
+     * @return true if the payload is an EXIF segment
+     */
+    private boolean setTiff(int payloadStart, int payloadLength) {
+        if (!ExifTags.isExifPayload(buffer, payloadStart, payloadLength)
+                || payloadLength < ExifTags.EXIF_IDENTIFIER.length + 8) {
+            return false;
+        }
+        tiffStart = payloadStart + ExifTags.EXIF_IDENTIFIER.length;
+        tiffLength = payloadLength - ExifTags.EXIF_IDENTIFIER.length;
+        return true;
+    }
+
+    private int readFully(FileChannel channel, long position) throws IOException {
+        int total = 0;
+        while (byteBuffer.hasRemaining()) {
+            int read = channel.read(byteBuffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Walk IFD0 and the GPS IFD, picking out the fields we need
+     */
+    private void parseTiff() {
+        if (buffer[tiffStart] == 'I' && buffer[tiffStart + 1] == 'I') {
+            littleEndian = true;
+        } else if (buffer[tiffStart] == 'M' && buffer[tiffStart + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return;
+        }
+        if (u16(2) != 42) {
+            return;
+        }
+
+        int ifd0 = u32(4);
+        int entryCount = entryCount(ifd0);
+        int gpsIfd = -1;
+        for (int i = 0; i < entryCount; i++) {
+            int entry = ifd0 + 2 + i * 12;
+            int tag = u16(entry);
+            if (tag == ExifTags.TAG_GPS_IFD_POINTER) {
+                gpsIfd = u32(entry + 8);
+            } else if (tag == ExifTags.TAG_DATETIME) {
+                parseDateTime(entry);
+            }
+        }
+
+        if (gpsIfd > 0) {
+            parseGps(gpsIfd);
+        }
+        int nextIfdPointer = ifd0 + 2 + entryCount * 12;
+        if (entryCount > 0 && inTiff(nextIfdPointer, 4)) {
+            parseThumbnail(u32(nextIfdPointer));
+        }
+    }
+
+    /**
+     * Locate the JPEG thumbnail referenced from IFD1
+     */
+    private void parseThumbnail(int ifd1) {
+        int entryCount = entryCount(ifd1);
+        int offset = -1;
+        int length = 0;
+        for (int i = 0; i < entryCount; i++) {
+            int entry = ifd1 + 2 + i * 12;
+            int tag = u16(entry);
+            if (tag == ExifTags.TAG_JPEG_INTERCHANGE_FORMAT) {
+                offset = u32(entry + 8);
+            } else if (tag == ExifTags.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                length = u32(entry + 8);
+            }
+        }
+
+        if (offset > 0 && length > 0 && inTiff(offset, length)) {
+            thumbnailStart = tiffStart + offset;
+            thumbnailLength = length;
+        }
+    }
+
+    private void parseGps(int gpsIfd) {
+        int entryCount = entryCount(gpsIfd);
+        int latitudeRef = 0;
+        int longitudeRef = 0;
+        double lat = Double.NaN;
+        double lng = Double.NaN;
+
+        for (int i = 0; i < entryCount; i++) {
+            int entry = gpsIfd + 2 + i * 12;
+            int tag = u16(entry);
+            switch (tag) {
+                case ExifTags.TAG_GPS_LATITUDE_REF:
+                    latitudeRef = buffer[tiffStart + entry + 8];
+                    break;
+                case ExifTags.TAG_GPS_LATITUDE:
+                    lat = readDms(entry);
+                    break;
+                case ExifTags.TAG_GPS_LONGITUDE_REF:
+                    longitudeRef = buffer[tiffStart + entry + 8];
+                    break;
+                case ExifTags.TAG_GPS_LONGITUDE:
+                    lng = readDms(entry);
+                    break;
+                case ExifTags.TAG_GPS_PROCESSING_METHOD:
+                    parseProcessingMethod(entry);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (Double.isNaN(lat) || Double.isNaN(lng) || latitudeRef == 0 || longitudeRef == 0) {
+            return;
+        }
+        latitude = latitudeRef == 'S' ? -lat : lat;
+        longitude = longitudeRef == 'W' ? -lng : lng;
+        hasLocation = true;
+    }
+
+    /**
+     * Read a degrees/minutes/seconds RATIONAL[3] value as decimal degrees
+     */
+    private double readDms(int entry) {
+        if (u16(entry + 2) != ExifTags.TYPE_RATIONAL || u32(entry + 4) != 3) {
+            return Double.NaN;
+        }
+        int valueOffset = u32(entry + 8);
+        if (!inTiff(valueOffset, 24)) {
+            return Double.NaN;
+        }
+        double degrees = rational(valueOffset);
+        double minutes = rational(valueOffset + 8);
+        double seconds = rational(valueOffset + 16);
+        if (Double.isNaN(degrees) || Double.isNaN(minutes) || Double.isNaN(seconds)) {
+            return Double.NaN;
+        }
+        return degrees + minutes / 60 + seconds / 3600;
+    }
+
+    private double rational(int offset) {
+        long numerator = u32(offset) & 0xFFFFFFFFL;
+        long denominator = u32(offset + 4) & 0xFFFFFFFFL;
+        return denominator == 0 ? Double.NaN : (double) numerator / denominator;
+    }
+
+    /**
+     * Parse an "yyyy:MM:dd HH:mm:ss" ASCII value straight from the buffer
+     */
+    private void parseDateTime(int entry) {
+        if (u16(entry + 2) != ExifTags.TYPE_ASCII || u32(entry + 4) < 19) {
+            return;
+        }
+        int offset = u32(entry + 8);
+        if (!inTiff(offset, 19)) {
+            return;
+        }
+        int start = tiffStart + offset;
+        int year = digits(start, 4);
+        int month = digits(start + 5, 2);
+        int day = digits(start + 8, 2);
+        int hour = digits(start + 11, 2);
+        int minute = digits(start + 14, 2);
+        int second = digits(start + 17, 2);
+        if (year < 0 || month < 1 || day < 1 || hour < 0 || minute < 0 || second < 0) {
+            return;
+        }
+
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        dateTime = calendar.getTimeInMillis();
+    }
+
+    private int digits(int start, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            int digit = buffer[start + i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Extract GPSProcessingMethod, skipping the default "GPS" value without allocating
+     */
+    private void parseProcessingMethod(int entry) {
+        int type = u16(entry + 2);
+        int count = u32(entry + 4);
+        if ((type != ExifTags.TYPE_UNDEFINED && type != ExifTags.TYPE_ASCII) || count <= 0) {
+            return;
+        }
+        int offset = count <= 4 ? entry + 8 : u32(entry + 8);
+        if (!inTiff(offset, count)) {
+            return;
+        }
+
+        int start = tiffStart + offset;
+        int length = count;
+        int prefixLength = ExifTags.ASCII_CHARACTER_CODE.length;
+        if (type == ExifTags.TYPE_UNDEFINED && length >= prefixLength && startsWith(start, ExifTags.ASCII_CHARACTER_CODE)) {
+            start += prefixLength;
+            length -= prefixLength;
+        }
+        while (length > 0 && buffer[start + length - 1] == 0) {
+            length--;
+        }
+
+        if (length == 0 || (length == DEFAULT_PROCESSING_METHOD.length && startsWith(start, DEFAULT_PROCESSING_METHOD))) {
+            return;
+        }
+        processingMethod = new String(buffer, start, length, ASCII);
+    }
+
+    private boolean startsWith(int start, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int entryCount(int ifdOffset) {
+        if (ifdOffset < 8 || !inTiff(ifdOffset, 2)) {
+            return 0;
+        }
+        int count = u16(ifdOffset);
+        if (!inTiff(ifdOffset + 2, count * 12)) {
+            return 0;
+        }
+        return count;
+    }
+
+    /**
+     * Check that a range read from the file lies inside the TIFF structure. Offsets
+     * come straight from the file, so the check is written not to overflow.
+     */
+    private boolean inTiff(int offset, int length) {
+        return offset >= 0 && length >= 0 && offset <= tiffLength - length;
+    }
+
+    private int u16(int offset) {
+        int index = tiffStart + offset;
+        int b0 = buffer[index] & 0xFF;
+        int b1 = buffer[index + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private int u32(int offset) {
+        int index = tiffStart + offset;
+        int b0 = buffer[index] & 0xFF;
+        int b1 = buffer[index + 1] & 0xFF;
+        int b2 = buffer[index + 2] & 0xFF;
+        int b3 = buffer[index + 3] & 0xFF;
+        return littleEndian
+                ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0
+                : (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+
+    private int u16Big(int index) {
+        return ((buffer[index] & 0xFF) << 8) | (buffer[index + 1] & 0xFF);
+    }
+
+    /**
+     * @return true if the last file read carried a GPS position
+     */
+    public boolean hasLocation() {
+        return hasLocation;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * @return DateTime in epoch millis (local time zone), or -1 if missing or malformed
+     */
+    public long getDateTime() {
+        return dateTime;
+    }
+
+    /**
+     * @return GPSProcessingMethod text, or null if missing or the default "GPS"
+     */
+    public String getProcessingMethod() {
+        return processingMethod;
+    }
+
+    /**
+     * @return true if the last file read embeds a JPEG thumbnail
+     */
+    public boolean hasThumbnail() {
+        return thumbnailLength > 0;
+    }
+
+    /**
+     * @return Copy of the embedded JPEG thumbnail, or null if there is none
+     */
+    public byte[] getThumbnail() {
+        if (thumbnailLength == 0) {
+            return null;
+        }
+        byte[] thumbnail = new byte[thumbnailLength];
+        System.arraycopy(buffer, thumbnailStart, thumbnail, 0, thumbnailLength);
+        return thumbnail;
+    }
+}
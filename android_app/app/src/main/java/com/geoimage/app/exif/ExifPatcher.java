@@ -0,0 +1,146 @@
+package com.geoimage.app.exif;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Edits the EXIF segment of a JPEG file in place. Only the bytes of the
+ * existing APP1 segment are rewritten, so the compressed image data is never
+ * touched. This works whenever the edited EXIF data fits in the space the
+ * segment already occupies, which is always the case for files written by
+ * {@link JpegExifRewriter} thanks to its spare room.
+ */
+public final class ExifPatcher {
+
+    private ExifPatcher() {
+    }
+
+    /**
+     * Try to apply an EXIF edit to a file without rewriting it
+     *
+     * @param file JPEG file to update
+     * @param editor Callback that edits the parsed EXIF segment
+     * @return true if the file was patched, false if it has no usable EXIF segment or not enough room
+     * @throws IOException if the file can't be read or written
+     */
+    public static boolean patch(File file, JpegExifRewriter.ExifEditor editor) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+
+            long payloadOffset = findExifPayload(channel);
+            if (payloadOffset < 0) {
+                return false;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(2);
+            if (!readFully(channel, header, payloadOffset - 2)) {
+                return false;
+            }
+            int payloadLength = (header.getShort(0) & 0xFFFF) - 2;
+
+            ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+            if (!readFully(channel, payload, payloadOffset)) {
+                return false;
+            }
+
+            ExifSegment exif;
+            try {
+                exif = ExifSegment.parse(payload.array(), 0, payloadLength);
+            } catch (IOException e) {
+                return false;
+            }
+            editor.edit(exif);
+
+            byte[] updated;
+            try {
+                updated = exif.toByteArray();
+            } catch (IOException e) {
+                return false;
+            }
+            if (updated.length > payloadLength) {
+                return false;
+            }
+
+            // Pad with zeros up to the old length so the segment size and everything after it stay put
+            ByteBuffer replacement = ByteBuffer.allocate(payloadLength);
+            replacement.put(updated);
+            replacement.rewind();
+            while (replacement.hasRemaining()) {
+                channel.write(replacement, payloadOffset + replacement.position());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Walk the JPEG header segments looking for the APP1 EXIF payload
+     *
+     * @return File offset of the payload (just past the length field), or -1 if there is none
+     */
+    private static long findExifPayload(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer marker = ByteBuffer.allocate(4);
+        ByteBuffer identifier = ByteBuffer.allocate(ExifTags.EXIF_IDENTIFIER.length);
+
+        marker.limit(2);
+        if (size < 4 || !readFully(channel, marker, 0)
+                || (marker.get(0) & 0xFF) != 0xFF || (marker.get(1) & 0xFF) != ExifTags.MARKER_SOI) {
+            return -1;
+        }
+
+        long position = 2;
+        while (position + 4 <= size) {
+            marker.clear();
+            if (!readFully(channel, marker, position) || (marker.get(0) & 0xFF) != 0xFF) {
+                return -1;
+            }
+
+            int code = marker.get(1) & 0xFF;
+            if (code == 0xFF) {
+                // Fill byte before the real marker
+                position++;
+                continue;
+            }
+            if (code == ExifTags.MARKER_SOS || code == ExifTags.MARKER_EOI) {
+                return -1;
+            }
+            if (ExifTags.isStandaloneMarker(code)) {
+                position += 2;
+                continue;
+            }
+
+            int length = marker.getShort(2) & 0xFFFF;
+            if (length < 2) {
+                return -1;
+            }
+
+            if (code == ExifTags.MARKER_APP1 && length - 2 >= identifier.capacity()) {
+                identifier.clear();
+                if (readFully(channel, identifier, position + 4)
+                        && ExifTags.isExifPayload(identifier.array(), 0, identifier.capacity())) {
+                    return position + 4;
+                }
+            }
+            position += 2 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Fill a buffer from the given file position
+     *
+     * @return false if the end of the file was reached first
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,488 @@
+package com.geoimage.app.exif;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * In-memory model of the TIFF structure inside a JPEG APP1 EXIF segment.
+ * Entries keep their raw value bytes in the source byte order, so a parsed
+ * segment can be edited and written back without re-encoding unknown tags.
+ */
+public class ExifSegment {
+    /** Largest payload that fits in a single JPEG segment (16-bit length minus itself) */
+    public static final int MAX_PAYLOAD_LENGTH = 0xFFFF - 2;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int TIFF_HEADER_SIZE = 8;
+    private static final int ENTRY_SIZE = 12;
+
+    private final ByteOrder order;
+    private final TreeMap<Integer, Entry> ifd0 = new TreeMap<>();
+    private final TreeMap<Integer, Entry> exifIfd = new TreeMap<>();
+    private final TreeMap<Integer, Entry> interopIfd = new TreeMap<>();
+    private final TreeMap<Integer, Entry> gpsIfd = new TreeMap<>();
+    private final TreeMap<Integer, Entry> ifd1 = new TreeMap<>();
+    private byte[] thumbnail;
+
+    /**
+     * A single IFD entry with its value stored as raw bytes
+     */
+    static class Entry {
+        final int tag;
+        final int type;
+        final int count;
+        final byte[] value;
+
+        Entry(int tag, int type, int count, byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    private ExifSegment(ByteOrder order) {
+        this.order = order;
+    }
+
+    /**
+     * Create an empty EXIF segment
+     *
+     * @return New segment using big-endian ("MM") byte order
+     */
+    public static ExifSegment create() {
+        return new ExifSegment(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Parse an APP1 payload that starts with the "Exif\0\0" identifier
+     *
+     * @param data Buffer holding the payload
+     * @param offset Start of the payload in the buffer
+     * @param length Payload length
+     * @return Parsed segment
+     * @throws IOException if the payload is not a readable EXIF structure
+     */
+    public static ExifSegment parse(byte[] data, int offset, int length) throws IOException {
+        if (!ExifTags.isExifPayload(data, offset, length)
+                || length < ExifTags.EXIF_IDENTIFIER.length + TIFF_HEADER_SIZE) {
+            throw new IOException("Not an EXIF segment");
+        }
+
+        int tiffStart = offset + ExifTags.EXIF_IDENTIFIER.length;
+        ByteBuffer buffer = ByteBuffer.wrap(data, tiffStart, offset + length - tiffStart).slice();
+
+        ByteOrder order;
+        if (data[tiffStart] == 'I' && data[tiffStart + 1] == 'I') {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if (data[tiffStart] == 'M' && data[tiffStart + 1] == 'M') {
+            order = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new IOException("Invalid TIFF byte order");
+        }
+        buffer.order(order);
+        if ((buffer.getShort(2) & 0xFFFF) != 42) {
+            throw new IOException("Invalid TIFF header");
+        }
+
+        ExifSegment segment = new ExifSegment(order);
+        Set<Integer> visited = new HashSet<>();
+
+        int ifd1Offset = segment.readIfd(buffer, buffer.getInt(4), segment.ifd0, visited);
+
+        Entry exifPointer = segment.ifd0.remove(ExifTags.TAG_EXIF_IFD_POINTER);
+        if (exifPointer != null) {
+            segment.readIfd(buffer, segment.readInt(exifPointer), segment.exifIfd, visited);
+            Entry interopPointer = segment.exifIfd.remove(ExifTags.TAG_INTEROPERABILITY_IFD_POINTER);
+            if (interopPointer != null) {
+                segment.readIfd(buffer, segment.readInt(interopPointer), segment.interopIfd, visited);
+            }
+        }
+
+        Entry gpsPointer = segment.ifd0.remove(ExifTags.TAG_GPS_IFD_POINTER);
+        if (gpsPointer != null) {
+            segment.readIfd(buffer, segment.readInt(gpsPointer), segment.gpsIfd, visited);
+        }
+
+        if (ifd1Offset > 0) {
+            segment.readIfd(buffer, ifd1Offset, segment.ifd1, visited);
+            segment.readThumbnail(buffer);
+        }
+
+        return segment;
+    }
+
+    /**
+     * Read one IFD into the given map
+     *
+     * @return Offset of the next IFD, or 0 if there is none
+     */
+    private int readIfd(ByteBuffer buffer, int ifdOffset, Map<Integer, Entry> into, Set<Integer> visited) {
+        // Offsets come from the file, so bounds are checked in a form that can't overflow
+        if (ifdOffset < TIFF_HEADER_SIZE || ifdOffset > buffer.limit() - 2 || !visited.add(ifdOffset)) {
+            return 0;
+        }
+
+        int entryCount = buffer.getShort(ifdOffset) & 0xFFFF;
+        int entriesStart = ifdOffset + 2;
+        if (entryCount * ENTRY_SIZE > buffer.limit() - entriesStart) {
+            return 0;
+        }
+
+        for (int i = 0; i < entryCount; i++) {
+            int entryOffset = entriesStart + i * ENTRY_SIZE;
+            int tag = buffer.getShort(entryOffset) & 0xFFFF;
+            int type = buffer.getShort(entryOffset + 2) & 0xFFFF;
+            long count = buffer.getInt(entryOffset + 4) & 0xFFFFFFFFL;
+            int typeSize = ExifTags.sizeOfType(type);
+            long byteCount = count * typeSize;
+            if (typeSize == 0 || byteCount > MAX_PAYLOAD_LENGTH) {
+                continue;
+            }
+
+            int valueOffset = byteCount <= 4 ? entryOffset + 8 : buffer.getInt(entryOffset + 8);
+            if (valueOffset < 0 || valueOffset + byteCount > buffer.limit()) {
+                continue;
+            }
+
+            byte[] value = new byte[(int) byteCount];
+            for (int b = 0; b < value.length; b++) {
+                value[b] = buffer.get(valueOffset + b);
+            }
+            into.put(tag, new Entry(tag, type, (int) count, value));
+        }
+
+        int nextOffsetPosition = entriesStart + entryCount * ENTRY_SIZE;
+        if (nextOffsetPosition + 4 > buffer.limit()) {
+            return 0;
+        }
+        return buffer.getInt(nextOffsetPosition);
+    }
+
+    /**
+     * Extract the IFD1 JPEG thumbnail, dropping IFD1 if it holds a layout we can't relocate
+     */
+    private void readThumbnail(ByteBuffer buffer) {
+        Entry offsetEntry = ifd1.remove(ExifTags.TAG_JPEG_INTERCHANGE_FORMAT);
+        Entry lengthEntry = ifd1.remove(ExifTags.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+
+        if (ifd1.containsKey(ExifTags.TAG_STRIP_OFFSETS) || offsetEntry == null || lengthEntry == null) {
+            ifd1.clear();
+            return;
+        }
+
+        int thumbnailOffset = readInt(offsetEntry);
+        int thumbnailLength = readInt(lengthEntry);
+        if (thumbnailOffset <= 0 || thumbnailLength <= 0
+                || thumbnailLength > buffer.limit() - thumbnailOffset) {
+            ifd1.clear();
+            return;
+        }
+
+        thumbnail = new byte[thumbnailLength];
+        for (int i = 0; i < thumbnailLength; i++) {
+            thumbnail[i] = buffer.get(thumbnailOffset + i);
+        }
+    }
+
+    /**
+     * Read a SHORT or LONG entry value as an unsigned int
+     */
+    private int readInt(Entry entry) {
+        ByteBuffer value = ByteBuffer.wrap(entry.value).order(order);
+        if (entry.type == ExifTags.TYPE_SHORT && entry.value.length >= 2) {
+            return value.getShort(0) & 0xFFFF;
+        }
+        return entry.value.length >= 4 ? value.getInt(0) : 0;
+    }
+
+    /**
+     * Replace the GPS IFD with the given position
+     *
+     * @param latitude Latitude in decimal degrees
+     * @param longitude Longitude in decimal degrees
+     * @param processingMethod Value for GPSProcessingMethod, or null to omit it
+     */
+    public void setGpsLocation(double latitude, double longitude, String processingMethod) {
+        gpsIfd.clear();
+        putEntry(gpsIfd, ExifTags.TAG_GPS_VERSION_ID, ExifTags.TYPE_BYTE, 4, new byte[] { 2, 2, 0, 0 });
+        putAscii(gpsIfd, ExifTags.TAG_GPS_LATITUDE_REF, latitude >= 0 ? "N" : "S");
+        putRationalDms(gpsIfd, ExifTags.TAG_GPS_LATITUDE, latitude);
+        putAscii(gpsIfd, ExifTags.TAG_GPS_LONGITUDE_REF, longitude >= 0 ? "E" : "W");
+        putRationalDms(gpsIfd, ExifTags.TAG_GPS_LONGITUDE, longitude);
+
+        if (processingMethod != null) {
+            byte[] text = processingMethod.getBytes(ASCII);
+            byte[] value = new byte[ExifTags.ASCII_CHARACTER_CODE.length + text.length];
+            System.arraycopy(ExifTags.ASCII_CHARACTER_CODE, 0, value, 0, ExifTags.ASCII_CHARACTER_CODE.length);
+            System.arraycopy(text, 0, value, ExifTags.ASCII_CHARACTER_CODE.length, text.length);
+            putEntry(gpsIfd, ExifTags.TAG_GPS_PROCESSING_METHOD, ExifTags.TYPE_UNDEFINED, value.length, value);
+        }
+    }
+
+    /**
+     * Check whether IFD0 carries a DateTime tag
+     *
+     * @return true if DateTime is present
+     */
+    public boolean hasDateTime() {
+        return ifd0.containsKey(ExifTags.TAG_DATETIME);
+    }
+
+    /**
+     * Set the IFD0 DateTime tag
+     *
+     * @param dateTime Date in EXIF "yyyy:MM:dd HH:mm:ss" format
+     */
+    public void setDateTime(String dateTime) {
+        putAscii(ifd0, ExifTags.TAG_DATETIME, dateTime);
+    }
+
+    /**
+     * Check whether IFD1 carries a JPEG thumbnail
+     *
+     * @return true if a thumbnail is present
+     */
+    public boolean hasThumbnail() {
+        return thumbnail != null;
+    }
+
+    /**
+     * Replace the IFD1 thumbnail
+     *
+     * @param jpeg JPEG-compressed thumbnail, or null to remove it
+     */
+    public void setThumbnail(byte[] jpeg) {
+        ifd1.clear();
+        thumbnail = jpeg;
+        if (jpeg != null) {
+            byte[] compression = new byte[2];
+            ByteBuffer.wrap(compression).order(order).putShort((short) 6);
+            putEntry(ifd1, ExifTags.TAG_COMPRESSION, ExifTags.TYPE_SHORT, 1, compression);
+        }
+    }
+
+    /**
+     * Get the payload length {@link #toByteArray()} would produce
+     *
+     * @return Length in bytes, including the "Exif\0\0" identifier
+     */
+    public int getLength() {
+        boolean hasInterop = !interopIfd.isEmpty();
+        boolean hasExif = !exifIfd.isEmpty() || hasInterop;
+        boolean hasGps = !gpsIfd.isEmpty();
+
+        // Pointer entries are added at write time, each a 12-byte entry with an inline value
+        int length = ExifTags.EXIF_IDENTIFIER.length + TIFF_HEADER_SIZE + sizeOfIfd(ifd0);
+        if (hasExif) {
+            length += ENTRY_SIZE + sizeOfIfd(exifIfd) + (hasInterop ? ENTRY_SIZE : 0);
+        }
+        if (hasInterop) {
+            length += sizeOfIfd(interopIfd);
+        }
+        if (hasGps) {
+            length += ENTRY_SIZE + sizeOfIfd(gpsIfd);
+        }
+        if (thumbnail != null) {
+            length += sizeOfIfd(ifd1) + 2 * ENTRY_SIZE + thumbnail.length;
+        }
+        return length;
+    }
+
+    /**
+     * Serialize the segment as an APP1 payload including the "Exif\0\0" identifier
+     *
+     * @return Payload bytes
+     * @throws IOException if the result does not fit in a single JPEG segment
+     */
+    public byte[] toByteArray() throws IOException {
+        return toByteArray(0);
+    }
+
+    /**
+     * Serialize the segment, followed by zero padding that later edits can grow into
+     *
+     * @param spareRoom Number of padding bytes to append, capped to the segment limit
+     * @return Payload bytes
+     * @throws IOException if the EXIF data does not fit in a single JPEG segment
+     */
+    public byte[] toByteArray(int spareRoom) throws IOException {
+        TreeMap<Integer, Entry> ifd0Out = new TreeMap<>(ifd0);
+        TreeMap<Integer, Entry> exifOut = new TreeMap<>(exifIfd);
+        TreeMap<Integer, Entry> ifd1Out = new TreeMap<>(ifd1);
+
+        // Reserve pointer entries first so the IFD sizes are final before offsets are assigned
+        boolean hasInterop = !interopIfd.isEmpty();
+        boolean hasExif = !exifOut.isEmpty() || hasInterop;
+        boolean hasGps = !gpsIfd.isEmpty();
+        boolean hasIfd1 = thumbnail != null;
+        if (hasInterop) {
+            putLong(exifOut, ExifTags.TAG_INTEROPERABILITY_IFD_POINTER, 0);
+        }
+        if (hasExif) {
+            putLong(ifd0Out, ExifTags.TAG_EXIF_IFD_POINTER, 0);
+        }
+        if (hasGps) {
+            putLong(ifd0Out, ExifTags.TAG_GPS_IFD_POINTER, 0);
+        }
+        if (hasIfd1) {
+            putLong(ifd1Out, ExifTags.TAG_JPEG_INTERCHANGE_FORMAT, 0);
+            putLong(ifd1Out, ExifTags.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0);
+        }
+
+        int position = TIFF_HEADER_SIZE;
+        int ifd0Offset = position;
+        position += sizeOfIfd(ifd0Out);
+        int exifOffset = position;
+        if (hasExif) {
+            position += sizeOfIfd(exifOut);
+        }
+        int interopOffset = position;
+        if (hasInterop) {
+            position += sizeOfIfd(interopIfd);
+        }
+        int gpsOffset = position;
+        if (hasGps) {
+            position += sizeOfIfd(gpsIfd);
+        }
+        int ifd1Offset = position;
+        int thumbnailOffset = 0;
+        if (hasIfd1) {
+            position += sizeOfIfd(ifd1Out);
+            thumbnailOffset = position;
+            position += thumbnail.length;
+        }
+
+        int payloadLength = ExifTags.EXIF_IDENTIFIER.length + position;
+        if (payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("EXIF data too large: " + payloadLength + " bytes");
+        }
+
+        if (hasInterop) {
+            putLong(exifOut, ExifTags.TAG_INTEROPERABILITY_IFD_POINTER, interopOffset);
+        }
+        if (hasExif) {
+            putLong(ifd0Out, ExifTags.TAG_EXIF_IFD_POINTER, exifOffset);
+        }
+        if (hasGps) {
+            putLong(ifd0Out, ExifTags.TAG_GPS_IFD_POINTER, gpsOffset);
+        }
+        if (hasIfd1) {
+            putLong(ifd1Out, ExifTags.TAG_JPEG_INTERCHANGE_FORMAT, thumbnailOffset);
+            putLong(ifd1Out, ExifTags.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, thumbnail.length);
+        }
+
+        byte[] payload = new byte[Math.min(payloadLength + spareRoom, MAX_PAYLOAD_LENGTH)];
+        System.arraycopy(ExifTags.EXIF_IDENTIFIER, 0, payload, 0, ExifTags.EXIF_IDENTIFIER.length);
+        ByteBuffer tiff = ByteBuffer.wrap(payload, ExifTags.EXIF_IDENTIFIER.length, position).slice().order(order);
+
+        byte orderByte = (byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M');
+        tiff.put(0, orderByte);
+        tiff.put(1, orderByte);
+        tiff.putShort(2, (short) 42);
+        tiff.putInt(4, ifd0Offset);
+
+        writeIfd(tiff, ifd0Offset, ifd0Out, hasIfd1 ? ifd1Offset : 0);
+        if (hasExif) {
+            writeIfd(tiff, exifOffset, exifOut, 0);
+        }
+        if (hasInterop) {
+            writeIfd(tiff, interopOffset, interopIfd, 0);
+        }
+        if (hasGps) {
+            writeIfd(tiff, gpsOffset, gpsIfd, 0);
+        }
+        if (hasIfd1) {
+            writeIfd(tiff, ifd1Offset, ifd1Out, 0);
+            for (int i = 0; i < thumbnail.length; i++) {
+                tiff.put(thumbnailOffset + i, thumbnail[i]);
+            }
+        }
+
+        return payload;
+    }
+
+    /**
+     * Size of an IFD including its out-of-line value area
+     */
+    private static int sizeOfIfd(Map<Integer, Entry> entries) {
+        int size = 2 + entries.size() * ENTRY_SIZE + 4;
+        for (Entry entry : entries.values()) {
+            if (entry.value.length > 4) {
+                size += entry.value.length + (entry.value.length & 1);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Write an IFD and its out-of-line values at the given offset
+     */
+    private static void writeIfd(ByteBuffer tiff, int ifdOffset, Map<Integer, Entry> entries, int nextIfdOffset) {
+        int entryPosition = ifdOffset + 2;
+        int dataPosition = entryPosition + entries.size() * ENTRY_SIZE + 4;
+
+        tiff.putShort(ifdOffset, (short) entries.size());
+        for (Entry entry : entries.values()) {
+            tiff.putShort(entryPosition, (short) entry.tag);
+            tiff.putShort(entryPosition + 2, (short) entry.type);
+            tiff.putInt(entryPosition + 4, entry.count);
+
+            if (entry.value.length <= 4) {
+                for (int i = 0; i < entry.value.length; i++) {
+                    tiff.put(entryPosition + 8 + i, entry.value[i]);
+                }
+            } else {
+                tiff.putInt(entryPosition + 8, dataPosition);
+                for (int i = 0; i < entry.value.length; i++) {
+                    tiff.put(dataPosition + i, entry.value[i]);
+                }
+                // Values must start on a word boundary
+                dataPosition += entry.value.length + (entry.value.length & 1);
+            }
+            entryPosition += ENTRY_SIZE;
+        }
+        tiff.putInt(entryPosition, nextIfdOffset);
+    }
+
+    private static void putEntry(Map<Integer, Entry> ifd, int tag, int type, int count, byte[] value) {
+        ifd.put(tag, new Entry(tag, type, count, value));
+    }
+
+    private static void putAscii(Map<Integer, Entry> ifd, int tag, String text) {
+        byte[] bytes = text.getBytes(ASCII);
+        byte[] value = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, value, 0, bytes.length);
+        putEntry(ifd, tag, ExifTags.TYPE_ASCII, value.length, value);
+    }
+
+    private void putLong(Map<Integer, Entry> ifd, int tag, int number) {
+        byte[] value = new byte[4];
+        ByteBuffer.wrap(value).order(order).putInt(number);
+        putEntry(ifd, tag, ExifTags.TYPE_LONG, 1, value);
+    }
+
+    /**
+     * Store a coordinate as degrees/1, minutes/1, seconds/1000
+     */
+    private void putRationalDms(Map<Integer, Entry> ifd, int tag, double coordinate) {
+        double absolute = Math.abs(coordinate);
+        int degrees = (int) absolute;
+        double minutesDouble = (absolute - degrees) * 60;
+        int minutes = (int) minutesDouble;
+        long milliSeconds = Math.round((minutesDouble - minutes) * 60 * 1000);
+
+        byte[] value = new byte[24];
+        ByteBuffer.wrap(value).order(order)
+                .putInt(degrees).putInt(1)
+                .putInt(minutes).putInt(1)
+                .putInt((int) milliSeconds).putInt(1000);
+        putEntry(ifd, tag, ExifTags.TYPE_RATIONAL, 3, value);
+    }
+}
@@ -0,0 +1,121 @@
+package com.geoimage.app.exif;
+
+/**
+ * TIFF/EXIF tag numbers and field types used by the EXIF reader and writer
+ */
+public final class ExifTags {
+    // Field types
+    public static final int TYPE_BYTE = 1;
+    public static final int TYPE_ASCII = 2;
+    public static final int TYPE_SHORT = 3;
+    public static final int TYPE_LONG = 4;
+    public static final int TYPE_RATIONAL = 5;
+    public static final int TYPE_SBYTE = 6;
+    public static final int TYPE_UNDEFINED = 7;
+    public static final int TYPE_SSHORT = 8;
+    public static final int TYPE_SLONG = 9;
+    public static final int TYPE_SRATIONAL = 10;
+    public static final int TYPE_FLOAT = 11;
+    public static final int TYPE_DOUBLE = 12;
+    public static final int TYPE_IFD = 13;
+
+    // IFD0 / IFD1 tags
+    public static final int TAG_COMPRESSION = 0x0103;
+    public static final int TAG_STRIP_OFFSETS = 0x0111;
+    public static final int TAG_DATETIME = 0x0132;
+    public static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    public static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    public static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    public static final int TAG_GPS_IFD_POINTER = 0x8825;
+
+    // Exif IFD tags
+    public static final int TAG_INTEROPERABILITY_IFD_POINTER = 0xA005;
+
+    // GPS IFD tags
+    public static final int TAG_GPS_VERSION_ID = 0x0000;
+    public static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    public static final int TAG_GPS_LATITUDE = 0x0002;
+    public static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    public static final int TAG_GPS_LONGITUDE = 0x0004;
+    public static final int TAG_GPS_PROCESSING_METHOD = 0x001B;
+
+    // JPEG markers
+    public static final int MARKER_SOI = 0xD8;
+    public static final int MARKER_EOI = 0xD9;
+    public static final int MARKER_SOS = 0xDA;
+    public static final int MARKER_APP0 = 0xE0;
+    public static final int MARKER_APP1 = 0xE1;
+    public static final int MARKER_TEM = 0x01;
+    public static final int MARKER_RST0 = 0xD0;
+    public static final int MARKER_RST7 = 0xD7;
+
+    /** "Exif\0\0" identifier at the start of an APP1 EXIF payload */
+    public static final byte[] EXIF_IDENTIFIER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    /** Character code prefix for UNDEFINED text fields such as GPSProcessingMethod */
+    public static final byte[] ASCII_CHARACTER_CODE = { 'A', 'S', 'C', 'I', 'I', 0, 0, 0 };
+
+    private ExifTags() {
+    }
+
+    /**
+     * Get the size in bytes of a single value of the given field type
+     *
+     * @param type TIFF field type
+     * @return Size in bytes, or 0 for unknown types
+     */
+    public static int sizeOfType(int type) {
+        switch (type) {
+            case TYPE_BYTE:
+            case TYPE_ASCII:
+            case TYPE_SBYTE:
+            case TYPE_UNDEFINED:
+                return 1;
+            case TYPE_SHORT:
+            case TYPE_SSHORT:
+                return 2;
+            case TYPE_LONG:
+            case TYPE_SLONG:
+            case TYPE_FLOAT:
+            case TYPE_IFD:
+                return 4;
+            case TYPE_RATIONAL:
+            case TYPE_SRATIONAL:
+            case TYPE_DOUBLE:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Check whether a marker stands alone without a length field
+     *
+     * @param marker JPEG marker byte
+     * @return true if the marker has no payload
+     */
+    public static boolean isStandaloneMarker(int marker) {
+        return marker == MARKER_TEM || marker == MARKER_SOI || marker == MARKER_EOI
+                || (marker >= MARKER_RST0 && marker <= MARKER_RST7);
+    }
+
+    /**
+     * Check whether an APP1 payload carries EXIF data
+     *
+     * @param data Buffer holding the payload
+     * @param offset Start of the payload in the buffer
+     * @param length Payload length
+     * @return true if the payload starts with the EXIF identifier
+     */
+    public static boolean isExifPayload(byte[] data, int offset, int length) {
+        if (length < EXIF_IDENTIFIER.length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_IDENTIFIER.length; i++) {
+            if (data[offset + i] != EXIF_IDENTIFIER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,172 @@
+package com.geoimage.app.exif;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a JPEG from an input to an output in a single pass, replacing the
+ * APP1 EXIF segment with an edited copy on the way through. Only the header
+ * segments before the scan data are buffered; the compressed image data is
+ * copied straight through.
+ */
+public final class JpegExifRewriter {
+    /** Padding left after the EXIF data so later edits can be patched in place */
+    public static final int EXIF_SPARE_ROOM = 1024;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Callback that edits the EXIF segment before it is written
+     */
+    public interface ExifEditor {
+        void edit(ExifSegment exif);
+    }
+
+    /**
+     * A buffered header segment
+     */
+    private static class Segment {
+        final int marker;
+        final byte[] payload;
+
+        Segment(int marker, byte[] payload) {
+            this.marker = marker;
+            this.payload = payload;
+        }
+    }
+
+    private JpegExifRewriter() {
+    }
+
+    /**
+     * Check whether a stream starts with a JPEG SOI marker without consuming it
+     *
+     * @param inputStream Stream that supports mark/reset
+     * @return true if the stream holds a JPEG
+     * @throws IOException if the stream can't be read
+     */
+    public static boolean isJpeg(InputStream inputStream) throws IOException {
+        inputStream.mark(2);
+        int first = inputStream.read();
+        int second = inputStream.read();
+        inputStream.reset();
+        return first == 0xFF && second == ExifTags.MARKER_SOI;
+    }
+
+    /**
+     * Copy a JPEG while replacing its EXIF segment
+     *
+     * @param inputStream Source JPEG stream
+     * @param outputStream Destination stream
+     * @param editor Callback that edits the existing (or a new, empty) EXIF segment
+     * @throws IOException if the source is not a valid JPEG or I/O fails
+     */
+    public static void rewrite(InputStream inputStream, OutputStream outputStream, ExifEditor editor)
+            throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != ExifTags.MARKER_SOI) {
+            throw new IOException("Not a JPEG image");
+        }
+
+        ExifSegment exif = null;
+        List<Segment> segments = new ArrayList<>();
+        int marker;
+
+        // Buffer the header segments up to the start of the scan data
+        while (true) {
+            marker = readMarker(in);
+            if (marker == ExifTags.MARKER_SOS || marker == ExifTags.MARKER_EOI) {
+                break;
+            }
+            if (ExifTags.isStandaloneMarker(marker)) {
+                segments.add(new Segment(marker, null));
+                continue;
+            }
+
+            int length = in.readUnsignedShort();
+            if (length < 2) {
+                throw new IOException("Invalid JPEG segment length");
+            }
+            byte[] payload = new byte[length - 2];
+            in.readFully(payload);
+
+            if (marker == ExifTags.MARKER_APP1 && ExifTags.isExifPayload(payload, 0, payload.length)) {
+                // Keep the first EXIF segment as the base for the edit and drop any duplicates
+                if (exif == null) {
+                    try {
+                        exif = ExifSegment.parse(payload, 0, payload.length);
+                    } catch (IOException e) {
+                        exif = ExifSegment.create();
+                    }
+                }
+                continue;
+            }
+            segments.add(new Segment(marker, payload));
+        }
+
+        if (exif == null) {
+            exif = ExifSegment.create();
+        }
+        editor.edit(exif);
+        byte[] exifPayload = exif.toByteArray(EXIF_SPARE_ROOM);
+
+        OutputStream out = new BufferedOutputStream(outputStream, COPY_BUFFER_SIZE);
+        out.write(0xFF);
+        out.write(ExifTags.MARKER_SOI);
+
+        // A JFIF APP0 segment must stay first, EXIF goes right after it
+        int index = 0;
+        if (!segments.isEmpty() && segments.get(0).marker == ExifTags.MARKER_APP0) {
+            writeSegment(out, segments.get(0));
+            index = 1;
+        }
+        writeSegment(out, new Segment(ExifTags.MARKER_APP1, exifPayload));
+        for (; index < segments.size(); index++) {
+            writeSegment(out, segments.get(index));
+        }
+
+        out.write(0xFF);
+        out.write(marker);
+
+        // Copy the scan data and everything after it unchanged
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read the next marker, skipping fill bytes
+     */
+    private static int readMarker(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != 0xFF) {
+            throw new IOException("Invalid JPEG marker");
+        }
+        int marker;
+        do {
+            marker = in.readUnsignedByte();
+        } while (marker == 0xFF);
+        if (marker == 0) {
+            throw new IOException("Unexpected stuffed byte in JPEG header");
+        }
+        return marker;
+    }
+
+    private static void writeSegment(OutputStream out, Segment segment) throws IOException {
+        out.write(0xFF);
+        out.write(segment.marker);
+        if (segment.payload != null) {
+            int length = segment.payload.length + 2;
+            out.write((length >> 8) & 0xFF);
+            out.write(length & 0xFF);
+            out.write(segment.payload);
+        }
+    }
+}
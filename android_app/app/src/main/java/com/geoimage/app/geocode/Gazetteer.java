@@ -0,0 +1,220 @@
+package com.geoimage.app.geocode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Offline gazetteer of populated places, read straight from the binary form
+ * written by {@link GazetteerWriter}. The file is memory-mapped, so opening it
+ * costs nothing up front and only the pages a lookup touches are read. The
+ * nearest place to a point is found by searching the implicit k-d tree the
+ * places are stored in, over points on the unit sphere so distances hold
+ * across the poles and the antimeridian. A lookup visits O(log n) places.
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+public class Gazetteer {
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int stringsStart;
+
+    /**
+     * Map a gazetteer file
+     *
+     * @param file File written by {@link GazetteerWriter}
+     * @return Gazetteer
+     * @throws IOException if the file can't be mapped or isn't a gazetteer
+     */
+    public static Gazetteer open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return new Gazetteer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @param buffer Gazetteer written by {@link GazetteerWriter}, e.g. read into memory
+     * @throws IOException if the buffer isn't a gazetteer
+     */
+    public Gazetteer(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate();
+        if (buffer.capacity() < GazetteerWriter.HEADER_SIZE || buffer.getInt(0) != GazetteerWriter.MAGIC) {
+            throw new IOException("Not a gazetteer");
+        }
+        count = buffer.getInt(4);
+        stringsStart = GazetteerWriter.HEADER_SIZE + buffer.getInt(8);
+        if (count < 0 || count * GazetteerWriter.RECORD_SIZE != buffer.getInt(8)
+                || stringsStart > buffer.capacity()) {
+            throw new IOException("Corrupt gazetteer");
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Find the place nearest to a point
+     *
+     * @param latitude Latitude
+     * @param longitude Longitude
+     * @return Index of the nearest place, or -1 if the gazetteer is empty
+     */
+    public int nearest(double latitude, double longitude) {
+        return nearest(latitude, longitude, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Find the place nearest to a point, within a distance
+     *
+     * @param latitude Latitude
+     * @param longitude Longitude
+     * @param maxDistanceMeters Greatest distance to a place
+     * @return Index of the nearest place, or -1 if none is that close
+     */
+    public int nearest(double latitude, double longitude, double maxDistanceMeters) {
+        double[] point = GazetteerWriter.toPoint(latitude, longitude);
+        Search search = new Search(point[0], point[1], point[2]);
+        if (maxDistanceMeters < Math.PI * EARTH_RADIUS_METERS) {
+            // Only places within the chord of the distance can be closer
+            double chord = 2 * Math.sin(maxDistanceMeters / EARTH_RADIUS_METERS / 2);
+            search.bestDistance = chord * chord;
+        }
+        search(search, 0, count, 0);
+        return search.best;
+    }
+
+    /**
+     * @return Great-circle distance from a point to a place, in meters
+     */
+    public double distanceMeters(double latitude, double longitude, int index) {
+        double[] point = GazetteerWriter.toPoint(latitude, longitude);
+        int record = recordOffset(index);
+        double dx = point[0] - buffer.getFloat(record);
+        double dy = point[1] - buffer.getFloat(record + 4);
+        double dz = point[2] - buffer.getFloat(record + 8);
+        double chord = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        return 2 * Math.asin(Math.min(1, chord / 2)) * EARTH_RADIUS_METERS;
+    }
+
+    public double getLatitude(int index) {
+        int record = recordOffset(index);
+        double z = buffer.getFloat(record + 8);
+        return Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, z))));
+    }
+
+    public double getLongitude(int index) {
+        int record = recordOffset(index);
+        return Math.toDegrees(Math.atan2(buffer.getFloat(record + 4), buffer.getFloat(record)));
+    }
+
+    public int getPopulation(int index) {
+        return buffer.getInt(recordOffset(index) + 12);
+    }
+
+    /**
+     * @return Name of the place, e.g. "Lyon"
+     */
+    public String getName(int index) {
+        return readString(stringOffset(index));
+    }
+
+    /**
+     * @return Admin region and country of the place, e.g. "Auvergne-Rhône-Alpes, France"
+     */
+    public String getRegion(int index) {
+        int offset = stringOffset(index);
+        return readString(offset + 2 + (buffer.getShort(offset) & 0xffff));
+    }
+
+    /**
+     * @return Name and region, e.g. "Lyon, Auvergne-Rhône-Alpes, France"
+     */
+    public String getDisplayName(int index) {
+        String region = getRegion(index);
+        return region.isEmpty() ? getName(index) : getName(index) + ", " + region;
+    }
+
+    /**
+     * State of one nearest-neighbour search
+     */
+    private static class Search {
+        final double x;
+        final double y;
+        final double z;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        int best = -1;
+
+        Search(double x, double y, double z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        double coordinate(int axis) {
+            return axis == 0 ? x : axis == 1 ? y : z;
+        }
+    }
+
+    /**
+     * Search the subtree stored in [start, end), whose root is at its middle and splits on the depth's axis
+     */
+    private void search(Search search, int start, int end, int depth) {
+        if (start >= end) {
+            return;
+        }
+        int middle = (start + end) >>> 1;
+        int record = recordOffset(middle);
+        double dx = search.x - buffer.getFloat(record);
+        double dy = search.y - buffer.getFloat(record + 4);
+        double dz = search.z - buffer.getFloat(record + 8);
+        double distance = dx * dx + dy * dy + dz * dz;
+        if (distance < search.bestDistance) {
+            search.bestDistance = distance;
+            search.best = middle;
+        }
+
+        int axis = depth % 3;
+        double split = search.coordinate(axis) - buffer.getFloat(record + axis * 4);
+        // Nearer side first, then the far side only if it could hold something closer
+        if (split < 0) {
+            search(search, start, middle, depth + 1);
+            if (split * split < search.bestDistance) {
+                search(search, middle + 1, end, depth + 1);
+            }
+        } else {
+            search(search, middle + 1, end, depth + 1);
+            if (split * split < search.bestDistance) {
+                search(search, start, middle, depth + 1);
+            }
+        }
+    }
+
+    private int recordOffset(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Place " + index + " of " + count);
+        }
+        return GazetteerWriter.HEADER_SIZE + index * GazetteerWriter.RECORD_SIZE;
+    }
+
+    private int stringOffset(int index) {
+        return stringsStart + buffer.getInt(recordOffset(index) + 16);
+    }
+
+    private String readString(int offset) {
+        int length = buffer.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + 2 + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,171 @@
+package com.geoimage.app.geocode;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a tab-separated list of places into the binary form read by
+ * {@link Gazetteer}. Each line holds a place's name, admin region, country,
+ * latitude, longitude and population; blank lines and lines starting with
+ * '#' are skipped. Places are stored as points on the unit sphere in the
+ * order of an implicit k-d tree: the median of every range along the range's
+ * axis sits at the range's middle, so the tree needs no pointers and can be
+ * searched straight from a memory-mapped file.
+ * <p>
+ * Layout, big-endian: magic, place count and size of the records section as
+ * ints; then per place x, y, z as floats and population and string offset as
+ * ints; then the strings, each a short byte length and UTF-8 bytes, with a
+ * place's name followed by its region.
+ */
+public final class GazetteerWriter {
+    static final int MAGIC = 0x475a5431; // "GZT1"
+    static final int HEADER_SIZE = 12;
+    static final int RECORD_SIZE = 20;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int COLUMN_COUNT = 6;
+
+    private GazetteerWriter() {
+    }
+
+    /**
+     * @param tsv Tab-separated places
+     * @param out Stream to write the gazetteer to; not closed
+     * @return Number of places written
+     * @throws IOException if reading or writing fails, or a line is malformed
+     */
+    public static int write(BufferedReader tsv, OutputStream out) throws IOException {
+        List<String[]> places = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = tsv.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split("\t", -1);
+            if (columns.length != COLUMN_COUNT) {
+                throw new IOException("Line " + lineNumber + ": expected " + COLUMN_COUNT + " columns");
+            }
+            places.add(columns);
+        }
+
+        int count = places.size();
+        double[][] points = new double[count][];
+        int[] populations = new int[count];
+        for (int i = 0; i < count; i++) {
+            String[] columns = places.get(i);
+            try {
+                double latitude = Double.parseDouble(columns[3]);
+                double longitude = Double.parseDouble(columns[4]);
+                points[i] = toPoint(latitude, longitude);
+                populations[i] = columns[5].isEmpty() ? 0 : Integer.parseInt(columns[5]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid place " + columns[0] + ": " + e.getMessage());
+            }
+        }
+
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        arrange(points, order, 0, count, 0);
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringsOut = new DataOutputStream(strings);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(count);
+        data.writeInt(count * RECORD_SIZE);
+        for (int index : order) {
+            String[] columns = places.get(index);
+            double[] point = points[index];
+            data.writeFloat((float) point[0]);
+            data.writeFloat((float) point[1]);
+            data.writeFloat((float) point[2]);
+            data.writeInt(populations[index]);
+            data.writeInt(stringsOut.size());
+            writeString(stringsOut, columns[0]);
+            writeString(stringsOut, getRegion(columns[1], columns[2]));
+        }
+        stringsOut.flush();
+        strings.writeTo(data);
+        data.flush();
+        return count;
+    }
+
+    /**
+     * @return Unit vector {x, y, z} of the coordinates
+     */
+    static double[] toPoint(double latitude, double longitude) {
+        double lat = Math.toRadians(latitude);
+        double lng = Math.toRadians(longitude);
+        double cos = Math.cos(lat);
+        return new double[] { cos * Math.cos(lng), cos * Math.sin(lng), Math.sin(lat) };
+    }
+
+    private static String getRegion(String admin, String country) {
+        if (admin.isEmpty() || admin.equals(country)) {
+            return country;
+        }
+        return country.isEmpty() ? admin : admin + ", " + country;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IOException("Name too long: " + value.substring(0, 32));
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Put the median along the depth's axis in the middle of the range, smaller
+     * points before it and larger after, then arrange both halves on the next axis
+     */
+    private static void arrange(double[][] points, int[] order, int start, int end, int depth) {
+        if (end - start <= 1) {
+            return;
+        }
+        int axis = depth % 3;
+        int middle = (start + end) >>> 1;
+        select(points, order, start, end - 1, middle, axis);
+        arrange(points, order, start, middle, depth + 1);
+        arrange(points, order, middle + 1, end, depth + 1);
+    }
+
+    /**
+     * Quickselect: move the k-th smallest point along the axis to position k
+     */
+    private static void select(double[][] points, int[] order, int low, int high, int k, int axis) {
+        while (low < high) {
+            double pivot = points[order[(low + high) >>> 1]][axis];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (points[order[i]][axis] < pivot) i++;
+                while (points[order[j]][axis] > pivot) j--;
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.geoimage.app.geocode;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.geoimage.app.model.Location;
+import com.geoimage.app.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs {@link Geocoder} lookups off the main thread. Geocoder calls block on
+ * the network for hundreds of milliseconds, so each request replaces the one
+ * before it: reverse lookups are debounced, so a burst of map taps only looks
+ * up the last one, and a superseded request is cancelled if it hasn't started
+ * and dropped when it finishes if it has. Only the latest request's result
+ * ever reaches its callback, on the main thread.
+ * <p>
+ * Reverse lookups go through the {@link ReverseGeocodeCache}: a place already
+ * in its memory tier is answered at once, without debouncing, and everything
+ * else is looked up in its database before going to the geocoder. When the
+ * geocoder fails, e.g. offline, the nearest place in the {@link OfflineGeocoder}'s
+ * gazetteer names the point instead.
+ * <p>
+ * Latencies of every Geocoder call are kept in histograms, see {@link #getStats()}.
+ * All public methods must be called on the main thread.
+ */
+public class GeocodingService {
+    private static final String TAG = "GeocodingService";
+    private static final long REVERSE_DEBOUNCE_MILLIS = 300;
+    // Typing is faster than taps, and suggestions are only worth a lookup once it pauses
+    private static final long SUGGEST_DEBOUNCE_MILLIS = 400;
+    private static final int MAX_SUGGESTIONS = 5;
+    // A superseded call can't be interrupted, so leave a thread for the next one
+    private static final int THREAD_COUNT = 2;
+
+    private final Geocoder geocoder;
+    private final ReverseGeocodeCache cache;
+    private final OfflineGeocoder offlineGeocoder;
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LatencyHistogram reverseLatency = new LatencyHistogram("reverse geocode");
+    // Cached lookups, from the database or the geocoder
+    private final LatencyHistogram cacheLatency = new LatencyHistogram("cached reverse geocode");
+    private final LatencyHistogram offlineLatency = new LatencyHistogram("offline reverse geocode");
+    private final LatencyHistogram searchLatency = new LatencyHistogram("search");
+    private final LatencyHistogram suggestLatency = new LatencyHistogram("suggest");
+    private final Request reverseRequest = new Request();
+    private final Request searchRequest = new Request();
+    private final Request suggestRequest = new Request();
+    private int supersededCount;
+    private boolean released;
+
+    /**
+     * Receives the result of a lookup on the main thread
+     *
+     * @param <T> Result type
+     */
+    public interface Callback<T> {
+        /**
+         * @param result Result, or null if nothing was found
+         */
+        void onResult(T result);
+
+        /**
+         * @param e Error from the geocoder, e.g. no network
+         */
+        void onError(IOException e);
+    }
+
+    /**
+     * The latest request of one kind. The generation is bumped on the main thread
+     * whenever a request replaces it, and a result is only delivered if its request
+     * is still the latest.
+     */
+    private static class Request {
+        int generation;
+        Runnable pending;
+        Future<?> future;
+    }
+
+    /**
+     * A blocking lookup run on the executor
+     */
+    private interface Lookup<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * @param context Context
+     */
+    public GeocodingService(Context context) {
+        geocoder = new Geocoder(context.getApplicationContext(), Locale.getDefault());
+        cache = ReverseGeocodeCache.getInstance(context);
+        offlineGeocoder = OfflineGeocoder.getInstance(context);
+    }
+
+    /**
+     * Look up the name of a place: at once if it is cached in memory, otherwise once
+     * no other lookup has been asked for during the debounce delay
+     *
+     * @param latitude Latitude
+     * @param longitude Longitude
+     * @param callback Callback for the name, null if the place has no address
+     */
+    public void reverseGeocode(double latitude, double longitude, Callback<String> callback) {
+        int generation = supersede(reverseRequest);
+        ReverseGeocodeCache.Entry cached = cache.getFromMemory(cache.getKey(latitude, longitude));
+        if (cached != null) {
+            callback.onResult(cached.name);
+            return;
+        }
+
+        reverseRequest.pending = () -> {
+            reverseRequest.pending = null;
+            reverseRequest.future = submit(reverseRequest, generation, cacheLatency,
+                    () -> lookUpName(latitude, longitude), callback);
+        };
+        mainHandler.postDelayed(reverseRequest.pending, REVERSE_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Find a place by name
+     *
+     * @param query Place name or address
+     * @param callback Callback for the place, null if nothing matched
+     */
+    public void search(String query, Callback<Location> callback) {
+        int generation = supersede(searchRequest);
+        searchRequest.future = submit(searchRequest, generation, searchLatency, () -> {
+            List<Address> addresses = geocoder.getFromLocationName(query, 1);
+            if (addresses == null || addresses.isEmpty()) {
+                return null;
+            }
+            Address address = addresses.get(0);
+            return new Location(address.getLatitude(), address.getLongitude(), getName(address));
+        }, callback);
+    }
+
+    /**
+     * Find places matching text being typed, once typing pauses for the debounce delay
+     *
+     * @param query Text typed so far
+     * @param callback Callback for the matching places, best first; empty if none matched
+     */
+    public void suggest(String query, Callback<List<Location>> callback) {
+        int generation = supersede(suggestRequest);
+        suggestRequest.pending = () -> {
+            suggestRequest.pending = null;
+            suggestRequest.future = submit(suggestRequest, generation, suggestLatency, () -> {
+                List<Location> places = new ArrayList<>();
+                if (!Geocoder.isPresent()) {
+                    return places;
+                }
+                List<Address> addresses = geocoder.getFromLocationName(query, MAX_SUGGESTIONS);
+                if (addresses != null) {
+                    for (Address address : addresses) {
+                        String name = getName(address);
+                        if (name != null) {
+                            places.add(new Location(address.getLatitude(), address.getLongitude(), name));
+                        }
+                    }
+                }
+                return places;
+            }, callback);
+        };
+        mainHandler.postDelayed(suggestRequest.pending, SUGGEST_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Drop a pending suggestion lookup, e.g. once a suggestion has been picked
+     */
+    public void cancelSuggestions() {
+        supersede(suggestRequest);
+    }
+
+    /**
+     * Drop any pending requests and stop the worker threads
+     */
+    public void release() {
+        released = true;
+        supersede(reverseRequest);
+        supersede(searchRequest);
+        supersede(suggestRequest);
+        executor.shutdownNow();
+        Log.d(TAG, getStats());
+    }
+
+    /**
+     * @return Latency histograms of the geocoder calls and cache lookups, how many requests
+     *         were superseded and the cache counters, for logging
+     */
+    public String getStats() {
+        return reverseLatency.getStats() + "; " + cacheLatency.getStats() + "; " + offlineLatency.getStats()
+                + "; " + searchLatency.getStats() + "; " + suggestLatency.getStats()
+                + "; superseded=" + supersededCount + "; cache: " + cache.getStats();
+    }
+
+    /**
+     * Build a display name for an address: its address lines, or failing that its
+     * feature, locality and country
+     *
+     * @param address Address
+     * @return Name, or null if the address has none
+     */
+    public static String getName(Address address) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i <= address.getMaxAddressLineIndex(); i++) {
+            if (i > 0) name.append(", ");
+            name.append(address.getAddressLine(i));
+        }
+        if (name.length() == 0 && address.getFeatureName() != null) {
+            name.append(address.getFeatureName());
+            if (address.getLocality() != null) {
+                name.append(", ").append(address.getLocality());
+            }
+            if (address.getCountryName() != null) {
+                name.append(", ").append(address.getCountryName());
+            }
+        }
+        return name.length() > 0 ? name.toString() : null;
+    }
+
+    /**
+     * Name a place from the cache or the geocoder, or the gazetteer if the geocoder fails.
+     * Called on the executor.
+     */
+    private String lookUpName(double latitude, double longitude) throws IOException {
+        try {
+            return cache.get(latitude, longitude, this::getFromLocation);
+        } catch (IOException e) {
+            // Offline names aren't cached, so the geocoder's name replaces them once it is reachable
+            long start = System.nanoTime();
+            String name = offlineGeocoder.getName(latitude, longitude);
+            offlineLatency.recordSince(start);
+            if (name == null) {
+                throw e;
+            }
+            return name;
+        }
+    }
+
+    /**
+     * Reverse geocode with the geocoder, for cells the cache doesn't have.
+     * Called on the executor.
+     */
+    private String getFromLocation(double latitude, double longitude) throws IOException {
+        if (!Geocoder.isPresent()) {
+            throw new IOException("No geocoder backend");
+        }
+        long start = System.nanoTime();
+        try {
+            List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
+            return addresses != null && !addresses.isEmpty() ? getName(addresses.get(0)) : null;
+        } finally {
+            reverseLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Cancel the current request of a kind, if any
+     *
+     * @return Generation of the request replacing it
+     */
+    private int supersede(Request request) {
+        boolean active = false;
+        if (request.pending != null) {
+            mainHandler.removeCallbacks(request.pending);
+            request.pending = null;
+            active = true;
+        }
+        if (request.future != null) {
+            // Stays queued if it hasn't started; a running call finishes and is dropped
+            active |= request.future.cancel(false);
+            request.future = null;
+        }
+        if (active) {
+            supersededCount++;
+        }
+        return ++request.generation;
+    }
+
+    private <T> Future<?> submit(Request request, int generation, LatencyHistogram latency, Lookup<T> lookup,
+                                 Callback<T> callback) {
+        if (released) {
+            return null;
+        }
+        return executor.submit(() -> {
+            T result = null;
+            IOException error = null;
+            long start = System.nanoTime();
+            try {
+                result = lookup.run();
+            } catch (IOException e) {
+                error = e;
+            } catch (IllegalArgumentException e) {
+                // Coordinates out of range or an empty query
+                error = new IOException(e);
+            } finally {
+                latency.recordSince(start);
+            }
+
+            T delivered = result;
+            IOException deliveredError = error;
+            mainHandler.post(() -> {
+                if (released || generation != request.generation) {
+                    return;
+                }
+                request.future = null;
+                if (deliveredError != null) {
+                    Log.e(TAG, "Geocoding failed: " + deliveredError.getMessage());
+                    callback.onError(deliveredError);
+                } else {
+                    callback.onResult(delivered);
+                }
+            });
+        });
+    }
+}
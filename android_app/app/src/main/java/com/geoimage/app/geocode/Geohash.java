@@ -0,0 +1,107 @@
+package com.geoimage.app.geocode;
+
+/**
+ * Geohash encoding: coordinates quantized to a cell of a grid and written as
+ * base-32 characters, each adding five bits of alternating longitude and
+ * latitude precision. Nearby coordinates share a prefix, and every point in a
+ * cell has the same hash, so a hash works as a key for anything that is the
+ * same across a small area, such as a place name.
+ */
+public final class Geohash {
+    /** Longest supported hash; 12 characters is a cell of a few centimeters */
+    public static final int MAX_PRECISION = 12;
+    private static final char[] BASE_32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private Geohash() {
+    }
+
+    /**
+     * @param latitude Latitude, -90 to 90
+     * @param longitude Longitude, -180 to 180
+     * @param precision Number of characters, 1 to {@link #MAX_PRECISION}; 7 is a cell of about 150 m
+     * @return Hash of the cell holding the coordinates
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        if (precision < 1 || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Unsupported geohash precision: " + precision);
+        }
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+        char[] hash = new char[precision];
+        boolean even = true;
+        for (int i = 0; i < precision; i++) {
+            int value = 0;
+            for (int bit = 0; bit < 5; bit++) {
+                // Even bits split the longitude range, odd ones the latitude range
+                if (even) {
+                    double middle = (minLongitude + maxLongitude) / 2;
+                    if (longitude >= middle) {
+                        value = value << 1 | 1;
+                        minLongitude = middle;
+                    } else {
+                        value <<= 1;
+                        maxLongitude = middle;
+                    }
+                } else {
+                    double middle = (minLatitude + maxLatitude) / 2;
+                    if (latitude >= middle) {
+                        value = value << 1 | 1;
+                        minLatitude = middle;
+                    } else {
+                        value <<= 1;
+                        maxLatitude = middle;
+                    }
+                }
+                even = !even;
+            }
+            hash[i] = BASE_32[value];
+        }
+        return new String(hash);
+    }
+
+    /**
+     * @param hash Geohash
+     * @return {latitude, longitude} of the center of the hash's cell
+     */
+    public static double[] decodeCenter(String hash) {
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+        boolean even = true;
+        for (int i = 0; i < hash.length(); i++) {
+            int value = indexOf(hash.charAt(i));
+            for (int bit = 4; bit >= 0; bit--) {
+                boolean set = (value >> bit & 1) != 0;
+                if (even) {
+                    double middle = (minLongitude + maxLongitude) / 2;
+                    if (set) {
+                        minLongitude = middle;
+                    } else {
+                        maxLongitude = middle;
+                    }
+                } else {
+                    double middle = (minLatitude + maxLatitude) / 2;
+                    if (set) {
+                        minLatitude = middle;
+                    } else {
+                        maxLatitude = middle;
+                    }
+                }
+                even = !even;
+            }
+        }
+        return new double[] { (minLatitude + maxLatitude) / 2, (minLongitude + maxLongitude) / 2 };
+    }
+
+    private static int indexOf(char c) {
+        for (int i = 0; i < BASE_32.length; i++) {
+            if (BASE_32[i] == c) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Invalid geohash character: " + c);
+    }
+}
@@ -0,0 +1,132 @@
+package com.geoimage.app.geocode;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * Names places without a network, from the gazetteer shipped in the app's
+ * assets. The tab-separated asset is compiled into the binary gazetteer on
+ * first use, and again after the app is updated, and the compiled file is
+ * memory-mapped from then on. Used when the platform geocoder fails, e.g.
+ * offline or on devices without a geocoding backend, and to suggest places
+ * while a search is typed.
+ */
+public class OfflineGeocoder {
+    private static final String TAG = "OfflineGeocoder";
+    private static final String ASSET_NAME = "gazetteer.tsv";
+    private static final String FILE_NAME = "gazetteer.bin";
+    // Further than this from every known place, a name would mislead more than help
+    private static final double MAX_DISTANCE_METERS = 50000;
+
+    private static OfflineGeocoder instance;
+
+    private final Context context;
+    private Gazetteer gazetteer;
+    private PlaceTrie placeTrie;
+    private boolean failed;
+
+    /**
+     * Get the shared offline geocoder
+     *
+     * @param context Any context; the application context is retained
+     * @return Offline geocoder instance
+     */
+    public static synchronized OfflineGeocoder getInstance(Context context) {
+        if (instance == null) {
+            instance = new OfflineGeocoder(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private OfflineGeocoder(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Name the place nearest to a point. Compiles the gazetteer on first use, so
+     * don't call on the main thread.
+     *
+     * @param latitude Latitude
+     * @param longitude Longitude
+     * @return Name and region of the nearest place, or null if there is none nearby
+     */
+    public String getName(double latitude, double longitude) {
+        Gazetteer places = getGazetteer();
+        if (places == null) {
+            return null;
+        }
+        int index = places.nearest(latitude, longitude, MAX_DISTANCE_METERS);
+        return index >= 0 ? places.getDisplayName(index) : null;
+    }
+
+    /**
+     * Get the gazetteer, compiling it from the asset if needed. Don't call on the main thread.
+     *
+     * @return Gazetteer, or null if it couldn't be loaded
+     */
+    public synchronized Gazetteer getGazetteer() {
+        if (gazetteer == null && !failed) {
+            File file = new File(context.getFilesDir(), FILE_NAME);
+            try {
+                if (!file.exists() || file.lastModified() < getLastUpdateTime()) {
+                    compile(file);
+                }
+                gazetteer = Gazetteer.open(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading the gazetteer: " + e.getMessage());
+                // Don't retry on every lookup
+                failed = true;
+                file.delete();
+            }
+        }
+        return gazetteer;
+    }
+
+    /**
+     * Get the prefix index of the gazetteer's places, building it on first use.
+     * Don't call on the main thread.
+     *
+     * @return Place index, or null if the gazetteer couldn't be loaded
+     */
+    public synchronized PlaceTrie getPlaceTrie() {
+        if (placeTrie == null && getGazetteer() != null) {
+            long start = System.nanoTime();
+            placeTrie = new PlaceTrie(gazetteer);
+            Log.d(TAG, "Indexed " + gazetteer.size() + " place names in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        return placeTrie;
+    }
+
+    private void compile(File file) throws IOException {
+        long start = System.nanoTime();
+        File temp = new File(file.getPath() + ".tmp");
+        int count;
+        try (BufferedReader tsv = new BufferedReader(
+                new InputStreamReader(context.getAssets().open(ASSET_NAME), "UTF-8"));
+             OutputStream out = new FileOutputStream(temp)) {
+            count = GazetteerWriter.write(tsv, out);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        Log.d(TAG, "Compiled " + count + " places in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private long getLastUpdateTime() {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.geoimage.app.geocode;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.location.Address;
+import android.location.Geocoder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.geoimage.app.data.GeoImageCatalog;
+import com.geoimage.app.util.DisplayFormatter;
+import com.geoimage.app.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Names the cataloged images whose location name is only their coordinates.
+ * The images are grouped by the cells of the {@link ReverseGeocodeCache} and
+ * each cell is named once, at its center, busiest cells first, so thousands
+ * of photos taken in a few places cost a few dozen lookups. Cells the cache
+ * doesn't have go to the geocoder at most once a second. Where the geocoder
+ * fails or finds no address, the offline gazetteer names the cell for the time
+ * being: such names are stored as provisional, and a later pass that reaches
+ * the geocoder replaces them. Names are written back to the catalog, which
+ * gives the renamed rows new versions, so the gallery rebinds them from its
+ * next snapshot.
+ * <p>
+ * Passes run one at a time on a background thread that outlives the screens
+ * asking for them.
+ */
+public class PlaceNameResolver {
+    private static final String TAG = "PlaceNameResolver";
+    // Keeps a large backlog within the fair use of the geocoding backends
+    private static final long MIN_CALL_INTERVAL_MILLIS = 1000;
+    // After this many failures in a row the geocoder is taken to be unreachable for the pass
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long NOTIFY_INTERVAL_MILLIS = 2000;
+    // Decimals of the coordinates the gallery names images with when their EXIF has no name
+    private static final int PLACEHOLDER_DECIMALS = 4;
+
+    private static PlaceNameResolver instance;
+
+    private final GeoImageCatalog catalog;
+    private final ReverseGeocodeCache cache;
+    private final OfflineGeocoder offlineGeocoder;
+    private final Geocoder geocoder;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LatencyHistogram geocoderLatency = new LatencyHistogram("batch reverse geocode");
+    private final AtomicBoolean passQueued = new AtomicBoolean();
+    private volatile Listener listener;
+    // Only touched by the pass thread
+    private long nextCallTime;
+    private boolean geocoderEnabled;
+    private int consecutiveFailures;
+
+    /**
+     * Told when images have been renamed. Called on the main thread.
+     */
+    public interface Listener {
+        void onNamesChanged();
+    }
+
+    /**
+     * Images of one cell still to be named, or named provisionally
+     */
+    private static class Cell {
+        final String key;
+        long[] ids = new long[4];
+        String[] names = new String[4];
+        boolean[] provisional = new boolean[4];
+        int size;
+
+        Cell(String key) {
+            this.key = key;
+        }
+
+        void add(long id, String name, boolean isProvisional) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                names = Arrays.copyOf(names, size * 2);
+                provisional = Arrays.copyOf(provisional, size * 2);
+            }
+            ids[size] = id;
+            names[size] = name;
+            provisional[size] = isProvisional;
+            size++;
+        }
+    }
+
+    /**
+     * Get the shared resolver
+     *
+     * @param context Any context; the application context is retained
+     * @return Resolver instance
+     */
+    public static synchronized PlaceNameResolver getInstance(Context context) {
+        if (instance == null) {
+            instance = new PlaceNameResolver(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private PlaceNameResolver(Context context) {
+        catalog = GeoImageCatalog.getInstance(context);
+        cache = ReverseGeocodeCache.getInstance(context);
+        offlineGeocoder = OfflineGeocoder.getInstance(context);
+        geocoder = new Geocoder(context, Locale.getDefault());
+    }
+
+    /**
+     * @param listener Listener for renamed images, or null to stop listening
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Name the images that still have placeholder names. A pass already running
+     * carries on, and one more pass is queued behind it to pick up images added since.
+     */
+    public void resolve() {
+        if (passQueued.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                passQueued.set(false);
+                try {
+                    resolvePlaceholders();
+                } catch (SQLException e) {
+                    Log.e(TAG, "Error naming images: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * @param name Location name of an image
+     * @return true if the name is missing or only the image's coordinates
+     */
+    public static boolean isPlaceholder(String name, double latitude, double longitude) {
+        return name == null || name.isEmpty()
+                || name.equals(DisplayFormatter.coordinates(latitude, longitude, PLACEHOLDER_DECIMALS));
+    }
+
+    /**
+     * One pass over the catalog. Runs on the executor.
+     */
+    private void resolvePlaceholders() {
+        long start = SystemClock.elapsedRealtime();
+        Map<String, Cell> cellsByKey = new HashMap<>();
+        catalog.visitLocations((id, latitude, longitude, locationName, provisional) -> {
+            if (!provisional && !isPlaceholder(locationName, latitude, longitude)) {
+                return;
+            }
+            String key = cache.getKey(latitude, longitude);
+            Cell cell = cellsByKey.get(key);
+            if (cell == null) {
+                cell = new Cell(key);
+                cellsByKey.put(key, cell);
+            }
+            cell.add(id, locationName, provisional);
+        });
+        if (cellsByKey.isEmpty()) {
+            return;
+        }
+
+        // Busiest cells first, so a pass cut short still names most of the gallery
+        List<Cell> cells = new ArrayList<>(cellsByKey.values());
+        Collections.sort(cells, (a, b) -> Integer.compare(b.size, a.size));
+
+        geocoderEnabled = Geocoder.isPresent();
+        consecutiveFailures = 0;
+        int renamed = 0;
+        int unnotified = 0;
+        long lastNotified = start;
+        for (Cell cell : cells) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            // The cache is consulted even once the geocoder is given up on; the loader then fails fast
+            double[] center = Geohash.decodeCenter(cell.key);
+            String name;
+            try {
+                name = cache.get(center[0], center[1], this::getFromLocation);
+            } catch (IOException e) {
+                name = null;
+            }
+            boolean provisional = false;
+            if (name == null) {
+                name = offlineGeocoder.getName(center[0], center[1]);
+                provisional = true;
+            }
+            if (name == null) {
+                continue;
+            }
+
+            int count = rename(cell, name, provisional);
+            renamed += count;
+            unnotified += count;
+            long now = SystemClock.elapsedRealtime();
+            if (unnotified > 0 && now - lastNotified >= NOTIFY_INTERVAL_MILLIS) {
+                notifyListener();
+                unnotified = 0;
+                lastNotified = now;
+            }
+        }
+        if (renamed > 0) {
+            // Renames change the rows' update times, which the saved index's stamp follows
+            catalog.saveSpatialIndex();
+        }
+        if (unnotified > 0) {
+            notifyListener();
+        }
+        Log.d(TAG, "Renamed " + renamed + " images in " + cells.size() + " cells in "
+                + (SystemClock.elapsedRealtime() - start) + " ms; " + geocoderLatency.getStats()
+                + "; cache: " + cache.getStats());
+    }
+
+    /**
+     * Name the images of a cell, skipping those that already have the name
+     *
+     * @return Number of images renamed
+     */
+    private int rename(Cell cell, String name, boolean provisional) {
+        long[] ids = new long[cell.size];
+        String[] expectedNames = new String[cell.size];
+        int count = 0;
+        for (int i = 0; i < cell.size; i++) {
+            if (provisional == cell.provisional[i] && name.equals(cell.names[i])) {
+                continue;
+            }
+            ids[count] = cell.ids[i];
+            expectedNames[count] = cell.names[i];
+            count++;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        return catalog.setLocationName(Arrays.copyOf(ids, count), Arrays.copyOf(expectedNames, count),
+                name, provisional);
+    }
+
+    /**
+     * Reverse geocode a cell the cache doesn't have, waiting out the rate limit first.
+     * After several failures in a row, fails at once for the rest of the pass.
+     * Runs on the executor.
+     */
+    private String getFromLocation(double latitude, double longitude) throws IOException {
+        if (!geocoderEnabled) {
+            throw new IOException("Geocoder unavailable");
+        }
+        long wait = nextCallTime - SystemClock.elapsedRealtime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting to reverse geocode", e);
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
+            consecutiveFailures = 0;
+            return addresses != null && !addresses.isEmpty() ? GeocodingService.getName(addresses.get(0)) : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reverse geocoding: " + e.getMessage());
+            geocoderEnabled = ++consecutiveFailures < MAX_CONSECUTIVE_FAILURES;
+            throw e;
+        } finally {
+            nextCallTime = SystemClock.elapsedRealtime() + MIN_CALL_INTERVAL_MILLIS;
+            geocoderLatency.recordSince(start);
+        }
+    }
+
+    private void notifyListener() {
+        mainHandler.post(() -> {
+            Listener current = listener;
+            if (current != null) {
+                current.onNamesChanged();
+            }
+        });
+    }
+}
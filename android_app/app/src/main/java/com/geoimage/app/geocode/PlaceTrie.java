@@ -0,0 +1,225 @@
+package com.geoimage.app.geocode;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Prefix index over the place names of a {@link Gazetteer}, for search as you
+ * type. Names are folded to lower case without accents and indexed from the
+ * start of every word, so "york" finds New York. The index is a radix trie:
+ * chains of single-child nodes are merged into one edge, and every node keeps
+ * the most populous places below it, so a completion walks the prefix's
+ * characters and returns a ready ranked list, however many places match.
+ * <p>
+ * Building takes time proportional to the total length of the names; don't
+ * build on the main thread. Instances are immutable and thread-safe.
+ */
+public class PlaceTrie {
+    /** Completions kept per node */
+    public static final int MAX_RESULTS = 8;
+
+    private static final int[] NO_RESULTS = new int[0];
+
+    private final Gazetteer gazetteer;
+    private final Node root;
+
+    /**
+     * A node reached by an edge of one or more characters
+     */
+    private static class Node {
+        final char[] label;
+        // Sorted by the first character of their labels
+        final char[] childFirstChars;
+        final Node[] children;
+        // Places below this node, most populous first
+        final int[] top;
+
+        Node(char[] label, char[] childFirstChars, Node[] children, int[] top) {
+            this.label = label;
+            this.childFirstChars = childFirstChars;
+            this.children = children;
+            this.top = top;
+        }
+    }
+
+    /**
+     * @param gazetteer Places to index
+     */
+    public PlaceTrie(Gazetteer gazetteer) {
+        this.gazetteer = gazetteer;
+
+        // One key per word start of every name, sorted so each subtree is a range
+        List<String> keys = new ArrayList<>();
+        List<Integer> places = new ArrayList<>();
+        for (int place = 0; place < gazetteer.size(); place++) {
+            String name = normalize(gazetteer.getName(place));
+            for (int start = 0; start < name.length(); start++) {
+                if (start == 0 || name.charAt(start - 1) == ' ') {
+                    keys.add(name.substring(start) + '\u0000' + place);
+                }
+            }
+        }
+        String[] sorted = keys.toArray(new String[0]);
+        Arrays.sort(sorted);
+        String[] words = new String[sorted.length];
+        int[] wordPlaces = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            int separator = sorted[i].indexOf('\u0000');
+            words[i] = sorted[i].substring(0, separator);
+            wordPlaces[i] = Integer.parseInt(sorted[i].substring(separator + 1));
+        }
+        root = build(words, wordPlaces, 0, words.length, 0, new char[0]);
+    }
+
+    /**
+     * Complete a prefix
+     *
+     * @param prefix Typed text; case and accents are ignored
+     * @return Indexes of the matching places in the gazetteer, most populous first,
+     *         at most {@link #MAX_RESULTS}
+     */
+    public int[] complete(String prefix) {
+        String key = normalize(prefix);
+        if (key.isEmpty()) {
+            return NO_RESULTS;
+        }
+
+        Node node = root;
+        int position = 0;
+        while (position < key.length()) {
+            int child = Arrays.binarySearch(node.childFirstChars, key.charAt(position));
+            if (child < 0) {
+                return NO_RESULTS;
+            }
+            node = node.children[child];
+            // The prefix may end part way along the edge
+            int length = Math.min(node.label.length, key.length() - position);
+            for (int i = 1; i < length; i++) {
+                if (node.label[i] != key.charAt(position + i)) {
+                    return NO_RESULTS;
+                }
+            }
+            position += node.label.length;
+        }
+        return node.top;
+    }
+
+    /**
+     * @return The gazetteer the indexes returned by {@link #complete(String)} refer to
+     */
+    public Gazetteer getGazetteer() {
+        return gazetteer;
+    }
+
+    /**
+     * Fold text for matching: lower case, accents removed, runs of anything but
+     * letters and digits turned into a single space
+     */
+    public static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder key = new StringBuilder(decomposed.length());
+        boolean space = true;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                key.append(Character.toLowerCase(c));
+                space = false;
+            } else if (!space) {
+                key.append(' ');
+                space = true;
+            }
+        }
+        int length = key.length();
+        if (length > 0 && key.charAt(length - 1) == ' ') {
+            key.setLength(length - 1);
+        }
+        return key.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Build the node for the sorted words in [start, end), which share their first
+     * depth characters
+     */
+    private Node build(String[] words, int[] places, int start, int end, int depth, char[] label) {
+        // Words that end here sort first
+        List<int[]> ranked = new ArrayList<>();
+        int i = start;
+        while (i < end && words[i].length() == depth) {
+            ranked.add(new int[] { places[i] });
+            i++;
+        }
+
+        List<Node> children = new ArrayList<>();
+        while (i < end) {
+            char first = words[i].charAt(depth);
+            int groupEnd = i + 1;
+            while (groupEnd < end && words[groupEnd].charAt(depth) == first) {
+                groupEnd++;
+            }
+            // The words of a sorted group share the prefix of their first and last words
+            int childDepth = commonPrefixLength(words[i], words[groupEnd - 1]);
+            char[] childLabel = words[i].substring(depth, childDepth).toCharArray();
+            Node child = build(words, places, i, groupEnd, childDepth, childLabel);
+            children.add(child);
+            ranked.add(child.top);
+            i = groupEnd;
+        }
+
+        char[] firstChars = new char[children.size()];
+        for (int c = 0; c < firstChars.length; c++) {
+            firstChars[c] = children.get(c).label[0];
+        }
+        return new Node(label, firstChars, children.toArray(new Node[0]), top(ranked));
+    }
+
+    /**
+     * Merge ranked lists into the most populous places, without duplicates
+     */
+    private int[] top(List<int[]> lists) {
+        int[] top = new int[MAX_RESULTS];
+        int size = 0;
+        for (int[] list : lists) {
+            for (int place : list) {
+                if (contains(top, size, place)) {
+                    continue;
+                }
+                // Lists are ranked, so the rest of this one can't beat a full top list's last entry
+                int population = gazetteer.getPopulation(place);
+                if (size == MAX_RESULTS && population <= gazetteer.getPopulation(top[size - 1])) {
+                    break;
+                }
+                int insert = size == MAX_RESULTS ? size - 1 : size++;
+                while (insert > 0 && gazetteer.getPopulation(top[insert - 1]) < population) {
+                    top[insert] = top[insert - 1];
+                    insert--;
+                }
+                top[insert] = place;
+            }
+        }
+        return size == 0 ? NO_RESULTS : Arrays.copyOf(top, size);
+    }
+
+    private static boolean contains(int[] array, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
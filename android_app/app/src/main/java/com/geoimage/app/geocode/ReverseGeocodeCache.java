@@ -0,0 +1,294 @@
+package com.geoimage.app.geocode;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of reverse geocoded place names, keyed by the {@link Geohash} of the
+ * coordinates, so every point in the same small cell shares one lookup. Names
+ * are held in a memory LRU in front of a database that outlives the process;
+ * database entries expire after a time to live, and places without an address
+ * are remembered too, for a shorter time. Concurrent lookups of the same cell
+ * are coalesced, so only one request goes out to the geocoder.
+ */
+public class ReverseGeocodeCache extends SQLiteOpenHelper {
+    private static final String TAG = "ReverseGeocodeCache";
+    private static final String DATABASE_NAME = "reverse_geocode_cache.db";
+    private static final int DATABASE_VERSION = 1;
+
+    /** Geohash precision of the shared cache, cells of about 150 m */
+    public static final int DEFAULT_PRECISION = 7;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(30);
+    // Places without an address may get one, so they are looked up again sooner
+    private static final long NO_ADDRESS_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int MEMORY_ENTRIES = 512;
+    private static final int MAX_DISK_ENTRIES = 20000;
+
+    private static final String TABLE_NAMES = "names";
+    private static final String COLUMN_GEOHASH = "geohash";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_FETCHED = "fetched";
+
+    private static ReverseGeocodeCache instance;
+
+    private final int precision;
+    private final long ttlMillis;
+    private final LruCache<String, Entry> memoryCache = new LruCache<>(MEMORY_ENTRIES);
+    private final ConcurrentHashMap<String, FutureTask<Entry>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean pruned;
+
+    /**
+     * A cached lookup
+     */
+    public static final class Entry {
+        /** Place name, or null if the place has no address */
+        public final String name;
+        final long fetched;
+
+        Entry(String name, long fetched) {
+            this.name = name;
+            this.fetched = fetched;
+        }
+    }
+
+    /**
+     * Looks up a name the cache doesn't have, e.g. with the geocoder
+     */
+    public interface Loader {
+        /**
+         * @param latitude Latitude
+         * @param longitude Longitude
+         * @return Name, or null if the place has no address
+         * @throws IOException if the lookup failed; failures aren't cached
+         */
+        String load(double latitude, double longitude) throws IOException;
+    }
+
+    /**
+     * Get the shared cache, with the default precision and time to live
+     *
+     * @param context Any context; the application context is retained
+     * @return Cache instance
+     */
+    public static synchronized ReverseGeocodeCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ReverseGeocodeCache(context.getApplicationContext(), DEFAULT_PRECISION,
+                    DEFAULT_TTL_MILLIS);
+        }
+        return instance;
+    }
+
+    /**
+     * @param context Context
+     * @param precision Geohash precision of the cache keys, 1 to {@link Geohash#MAX_PRECISION}
+     * @param ttlMillis Time an entry stays valid in the database
+     */
+    public ReverseGeocodeCache(Context context, int precision, long ttlMillis) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.precision = precision;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAMES + " ("
+                + COLUMN_GEOHASH + " TEXT PRIMARY KEY, "
+                + COLUMN_NAME + " TEXT, "
+                + COLUMN_FETCHED + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX idx_names_fetched ON " + TABLE_NAMES + " (" + COLUMN_FETCHED + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Everything here can be looked up again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAMES);
+        onCreate(db);
+    }
+
+    /**
+     * @return Cache key of the cell holding the coordinates
+     */
+    public String getKey(double latitude, double longitude) {
+        return Geohash.encode(latitude, longitude, precision);
+    }
+
+    /**
+     * Look up a cell in the memory tier only. Cheap enough for the main thread.
+     *
+     * @param key Cache key from {@link #getKey(double, double)}
+     * @return Cached entry, or null if the cell isn't in memory
+     */
+    public Entry getFromMemory(String key) {
+        Entry entry = memoryCache.get(key);
+        if (entry != null) {
+            memoryHits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Get the name of a place from memory, the database or, failing both, the loader.
+     * If the cell is already being loaded, wait for that lookup instead of starting
+     * another. Blocks, so don't call on the main thread.
+     *
+     * @param latitude Latitude
+     * @param longitude Longitude
+     * @param loader Loader for uncached cells
+     * @return Name, or null if the place has no address
+     * @throws IOException if the loader failed
+     */
+    public String get(double latitude, double longitude, Loader loader) throws IOException {
+        String key = getKey(latitude, longitude);
+        Entry entry = getFromMemory(key);
+        if (entry != null) {
+            return entry.name;
+        }
+
+        FutureTask<Entry> task = new FutureTask<>(() -> load(key, latitude, longitude, loader));
+        FutureTask<Entry> running = inFlight.putIfAbsent(key, task);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            task = running;
+        } else {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key);
+            }
+        }
+
+        try {
+            return task.get().name;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Store a name looked up elsewhere, e.g. by a batch of lookups
+     *
+     * @param latitude Latitude
+     * @param longitude Longitude
+     * @param name Name, or null if the place has no address
+     */
+    public void put(double latitude, double longitude, String name) {
+        store(getKey(latitude, longitude), new Entry(name, System.currentTimeMillis()));
+    }
+
+    /**
+     * @return Summary of the hit and miss counters, for logging
+     */
+    public String getStats() {
+        return String.format(Locale.US, "memory hits=%d, disk hits=%d, coalesced=%d, misses=%d, memory=%d/%d",
+                memoryHits.get(), diskHits.get(), coalesced.get(), misses.get(),
+                memoryCache.size(), memoryCache.maxSize());
+    }
+
+    private Entry load(String key, double latitude, double longitude, Loader loader) throws IOException {
+        // Another lookup may have finished between the memory check and this one starting
+        Entry entry = memoryCache.get(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        entry = getFromDisk(key);
+        if (entry != null) {
+            diskHits.incrementAndGet();
+            memoryCache.put(key, entry);
+            return entry;
+        }
+
+        misses.incrementAndGet();
+        entry = new Entry(loader.load(latitude, longitude), System.currentTimeMillis());
+        store(key, entry);
+        return entry;
+    }
+
+    private Entry getFromDisk(String key) {
+        pruneOnce();
+        try (Cursor cursor = getReadableDatabase().query(
+                TABLE_NAMES,
+                new String[] { COLUMN_NAME, COLUMN_FETCHED },
+                COLUMN_GEOHASH + " = ?",
+                new String[] { key },
+                null, null, null)) {
+
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            Entry entry = new Entry(cursor.isNull(0) ? null : cursor.getString(0), cursor.getLong(1));
+            return isFresh(entry) ? entry : null;
+        } catch (SQLException e) {
+            Log.e(TAG, "Error reading cached name for " + key + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        memoryCache.put(key, entry);
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_GEOHASH, key);
+        values.put(COLUMN_NAME, entry.name);
+        values.put(COLUMN_FETCHED, entry.fetched);
+        try {
+            getWritableDatabase().insertWithOnConflict(TABLE_NAMES, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLException e) {
+            // The name is still cached in memory
+            Log.e(TAG, "Error caching name for " + key + ": " + e.getMessage());
+        }
+    }
+
+    private boolean isFresh(Entry entry) {
+        long age = System.currentTimeMillis() - entry.fetched;
+        return age >= 0 && age < (entry.name != null ? ttlMillis : NO_ADDRESS_TTL_MILLIS);
+    }
+
+    /**
+     * Delete expired entries, and the oldest ones beyond the size limit, once per process
+     */
+    private void pruneOnce() {
+        if (pruned) {
+            return;
+        }
+        pruned = true;
+        long now = System.currentTimeMillis();
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.delete(TABLE_NAMES, COLUMN_FETCHED + " < ? OR (" + COLUMN_NAME + " IS NULL AND "
+                            + COLUMN_FETCHED + " < ?)",
+                    new String[] { String.valueOf(now - ttlMillis), String.valueOf(now - NO_ADDRESS_TTL_MILLIS) });
+            db.execSQL("DELETE FROM " + TABLE_NAMES + " WHERE " + COLUMN_GEOHASH + " IN (SELECT "
+                    + COLUMN_GEOHASH + " FROM " + TABLE_NAMES + " ORDER BY " + COLUMN_FETCHED
+                    + " DESC LIMIT -1 OFFSET " + MAX_DISK_ENTRIES + ")");
+        } catch (SQLException e) {
+            Log.e(TAG, "Error pruning the cache: " + e.getMessage());
+        }
+    }
+}
@@ -28,6 +28,12 @@ public class GeoImage implements Parcelable {
         this.timestamp = timestamp;
     }
 
+    /**
+     * For views that override the getters, such as {@link GeoImageStore}'s
+     */
+    protected GeoImage() {
+    }
+
     // Getters and setters
     public long getId() {
         return id;
@@ -99,12 +105,14 @@ public class GeoImage implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeLong(id);
-        dest.writeString(filename);
-        dest.writeString(path);
-        dest.writeDouble(latitude);
-        dest.writeDouble(longitude);
-        dest.writeString(locationName);
+        // Through the getters, so views parcel as plain images
+        Date timestamp = getTimestamp();
+        dest.writeLong(getId());
+        dest.writeString(getFilename());
+        dest.writeString(getPath());
+        dest.writeDouble(getLatitude());
+        dest.writeDouble(getLongitude());
+        dest.writeString(getLocationName());
         dest.writeLong(timestamp != null ? timestamp.getTime() : -1);
     }
 
@@ -0,0 +1,352 @@
+package com.geoimage.app.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact, read-only column store for large sets of images. Coordinates, IDs
+ * and timestamps are kept in parallel primitive arrays: coordinates as fixed
+ * point ints of 1e-7 degrees (about a centimeter), and IDs as ints unless one
+ * doesn't fit. Paths are split into a dictionary of directories and a byte
+ * pool of file names, and location names are deduplicated into a dictionary.
+ * An image costs 32 bytes plus its file name, about 60 for a camera named
+ * file, against over 300 for a {@link GeoImage} with its Strings and Date.
+ *
+ * Images are addressed by index. {@link #get(int)} returns a small view that
+ * reads the columns on demand, for code that expects a GeoImage.
+ */
+public final class GeoImageStore {
+    /** Timestamp column value for images without a timestamp */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final double E7 = 1e7;
+
+    private final int size;
+    private final int[] ids;
+    // Only set if some ID doesn't fit in an int; replaces ids
+    private final long[] wideIds;
+    private final int[] latitudesE7;
+    private final int[] longitudesE7;
+    private final long[] timestamps;
+    private final String[] directories;
+    private final int[] directoryIndexes;
+    // File name i is nameBytes[nameOffsets[i], nameOffsets[i + 1]), in UTF-8
+    private final byte[] nameBytes;
+    private final int[] nameOffsets;
+    private final String[] locationNames;
+    // -1 for images without a location name
+    private final int[] locationNameIndexes;
+
+    private GeoImageStore(Builder builder) {
+        size = builder.size;
+        ids = builder.wideIds == null ? Arrays.copyOf(builder.ids, size) : null;
+        wideIds = builder.wideIds != null ? Arrays.copyOf(builder.wideIds, size) : null;
+        latitudesE7 = Arrays.copyOf(builder.latitudesE7, size);
+        longitudesE7 = Arrays.copyOf(builder.longitudesE7, size);
+        timestamps = Arrays.copyOf(builder.timestamps, size);
+        directories = builder.directories.toArray();
+        directoryIndexes = Arrays.copyOf(builder.directoryIndexes, size);
+        nameBytes = Arrays.copyOf(builder.nameBytes, builder.nameLength);
+        nameOffsets = Arrays.copyOf(builder.nameOffsets, size + 1);
+        locationNames = builder.locationNames.toArray();
+        locationNameIndexes = Arrays.copyOf(builder.locationNameIndexes, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getId(int index) {
+        return wideIds != null ? wideIds[index] : ids[index];
+    }
+
+    /**
+     * @return Latitude, to within 5e-8 degrees of the one added
+     */
+    public double getLatitude(int index) {
+        return latitudesE7[index] / E7;
+    }
+
+    /**
+     * @return Longitude, to within 5e-8 degrees of the one added
+     */
+    public double getLongitude(int index) {
+        return longitudesE7[index] / E7;
+    }
+
+    /**
+     * @param index Image index
+     * @return Timestamp in milliseconds, or {@link #NO_TIMESTAMP}
+     */
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public String getFilename(int index) {
+        int start = nameOffsets[index];
+        return new String(nameBytes, start, nameOffsets[index + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    public String getPath(int index) {
+        return directories[directoryIndexes[index]] + getFilename(index);
+    }
+
+    public String getLocationName(int index) {
+        int nameIndex = locationNameIndexes[index];
+        return nameIndex >= 0 ? locationNames[nameIndex] : null;
+    }
+
+    /**
+     * Get a view of one image. Views are read-only and only hold the store and the index.
+     *
+     * @param index Image index
+     * @return View of the image
+     */
+    public GeoImage get(int index) {
+        return new Flyweight(this, index);
+    }
+
+    /**
+     * Estimate the heap used by the columns, for logging
+     *
+     * @return Approximate size in bytes
+     */
+    public long getFootprintBytes() {
+        // 8 bytes for the timestamp, 4 each for the ID, both coordinates and the
+        // directory, name offset and location name indexes
+        long bytes = size * (8L + 4L * 6) + nameBytes.length;
+        if (wideIds != null) {
+            bytes += size * 4L;
+        }
+        for (String directory : directories) {
+            bytes += 40 + 2L * directory.length();
+        }
+        for (String locationName : locationNames) {
+            bytes += 40 + 2L * locationName.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Flyweight GeoImage reading from the store
+     */
+    private static final class Flyweight extends GeoImage {
+        private final GeoImageStore store;
+        private final int index;
+
+        Flyweight(GeoImageStore store, int index) {
+            this.store = store;
+            this.index = index;
+        }
+
+        @Override
+        public long getId() {
+            return store.getId(index);
+        }
+
+        @Override
+        public String getFilename() {
+            return store.getFilename(index);
+        }
+
+        @Override
+        public String getPath() {
+            return store.getPath(index);
+        }
+
+        @Override
+        public double getLatitude() {
+            return store.getLatitude(index);
+        }
+
+        @Override
+        public double getLongitude() {
+            return store.getLongitude(index);
+        }
+
+        @Override
+        public String getLocationName() {
+            return store.getLocationName(index);
+        }
+
+        @Override
+        public Date getTimestamp() {
+            long timestamp = store.getTimestamp(index);
+            return timestamp != NO_TIMESTAMP ? new Date(timestamp) : null;
+        }
+
+        @Override
+        public void setId(long id) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setFilename(String filename) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setPath(String path) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLatitude(double latitude) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLongitude(double longitude) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLocationName(String locationName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setTimestamp(Date timestamp) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Assigns each distinct string a stable index
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        int indexOf(String value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = indexes.size();
+                indexes.put(value, index);
+            }
+            return index;
+        }
+
+        String[] toArray() {
+            String[] values = new String[indexes.size()];
+            for (Map.Entry<String, Integer> entry : indexes.entrySet()) {
+                values[entry.getValue()] = entry.getKey();
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Collects images one at a time; not thread-safe
+     */
+    public static final class Builder {
+        private int size;
+        private int[] ids;
+        private long[] wideIds;
+        private int[] latitudesE7;
+        private int[] longitudesE7;
+        private long[] timestamps;
+        private int[] directoryIndexes;
+        private int[] nameOffsets;
+        private int[] locationNameIndexes;
+        private byte[] nameBytes;
+        private int nameLength;
+        private final Dictionary directories = new Dictionary();
+        private final Dictionary locationNames = new Dictionary();
+
+        /**
+         * @param expectedSize Expected number of images, e.g. a cursor's count
+         */
+        public Builder(int expectedSize) {
+            int capacity = Math.max(16, expectedSize);
+            ids = new int[capacity];
+            latitudesE7 = new int[capacity];
+            longitudesE7 = new int[capacity];
+            timestamps = new long[capacity];
+            directoryIndexes = new int[capacity];
+            nameOffsets = new int[capacity + 1];
+            locationNameIndexes = new int[capacity];
+            nameBytes = new byte[capacity * 24];
+        }
+
+        /**
+         * Add an image
+         *
+         * @param id Catalog ID
+         * @param path Path to the image file
+         * @param latitude Latitude
+         * @param longitude Longitude
+         * @param locationName Location name, or null
+         * @param timestamp Timestamp in milliseconds, or {@link #NO_TIMESTAMP}
+         * @return This builder
+         */
+        public Builder add(long id, String path, double latitude, double longitude, String locationName,
+                           long timestamp) {
+            if (size == ids.length) {
+                grow();
+            }
+
+            // Split after the last separator, so the directory keeps its trailing slash
+            int nameStart = path.lastIndexOf('/') + 1;
+            byte[] name = path.substring(nameStart).getBytes(StandardCharsets.UTF_8);
+            if (nameLength + name.length > nameBytes.length) {
+                nameBytes = Arrays.copyOf(nameBytes, Math.max(nameBytes.length * 2, nameLength + name.length));
+            }
+            System.arraycopy(name, 0, nameBytes, nameLength, name.length);
+            nameLength += name.length;
+
+            if (wideIds == null && (int) id != id) {
+                wideIds = new long[ids.length];
+                for (int i = 0; i < size; i++) {
+                    wideIds[i] = ids[i];
+                }
+            }
+            if (wideIds != null) {
+                wideIds[size] = id;
+            } else {
+                ids[size] = (int) id;
+            }
+            // 180 degrees is 1.8e9 at this scale, within an int
+            latitudesE7[size] = (int) Math.round(latitude * E7);
+            longitudesE7[size] = (int) Math.round(longitude * E7);
+            timestamps[size] = timestamp;
+            directoryIndexes[size] = directories.indexOf(path.substring(0, nameStart));
+            locationNameIndexes[size] = locationName != null ? locationNames.indexOf(locationName) : -1;
+            size++;
+            nameOffsets[size] = nameLength;
+            return this;
+        }
+
+        /**
+         * Add a copy of an image
+         *
+         * @param image Image
+         * @return This builder
+         */
+        public Builder add(GeoImage image) {
+            Date timestamp = image.getTimestamp();
+            return add(image.getId(), image.getPath(), image.getLatitude(), image.getLongitude(),
+                    image.getLocationName(), timestamp != null ? timestamp.getTime() : NO_TIMESTAMP);
+        }
+
+        public GeoImageStore build() {
+            return new GeoImageStore(this);
+        }
+
+        private void grow() {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            if (wideIds != null) {
+                wideIds = Arrays.copyOf(wideIds, capacity);
+            }
+            latitudesE7 = Arrays.copyOf(latitudesE7, capacity);
+            longitudesE7 = Arrays.copyOf(longitudesE7, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            directoryIndexes = Arrays.copyOf(directoryIndexes, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+            locationNameIndexes = Arrays.copyOf(locationNameIndexes, capacity);
+        }
+    }
+}
@@ -1,15 +1,15 @@
 package com.geoimage.app.ui;
 
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
-import android.provider.MediaStore;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -19,31 +19,63 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.Toolbar;
+import androidx.core.util.Pair;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.geoimage.app.R;
+import com.geoimage.app.data.GalleryWatcher;
+import com.geoimage.app.data.GeoImageCatalog;
+import com.geoimage.app.data.MediaStoreSync;
+import com.geoimage.app.data.PagedGeoImageList;
+import com.geoimage.app.data.TimeIndex;
+import com.geoimage.app.exif.ExifGpsReader;
+import com.geoimage.app.geocode.PlaceNameResolver;
 import com.geoimage.app.model.GeoImage;
 import com.geoimage.app.util.AdManager;
-import com.geoimage.app.util.ImageProcessor;
+import com.geoimage.app.util.BitmapPool;
+import com.geoimage.app.util.DisplayFormatter;
+import com.geoimage.app.util.ThumbnailCache;
+import com.geoimage.app.util.ThumbnailLoader;
 import com.google.android.gms.ads.AdView;
+import com.google.android.material.datepicker.MaterialDatePicker;
 
 import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class GalleryActivity extends AppCompatActivity {
     private static final String TAG = "GalleryActivity";
+    private static final int THUMBNAIL_SIZE = 500;
+    private static final int SPAN_COUNT = 2;
+    private static final int VIEW_TYPE_HEADER = 0;
+    private static final int VIEW_TYPE_IMAGE = 1;
+    
+    // Minimum time between updates while the first scan streams images in
+    private static final long STREAM_INTERVAL_MILLIS = 300;
     
     private RecyclerView recyclerView;
     private TextView emptyGalleryText;
     private GalleryAdapter adapter;
-    private List<GeoImage> geoImages;
+    private ThumbnailLoader thumbnailLoader;
+    private ExecutorService pageExecutor;
+    private GalleryWatcher galleryWatcher;
+    private PlaceNameResolver placeNameResolver;
+    private LoadGeoImagesTask loadTask;
+    private boolean loaded;
+    private boolean reloadPending;
+    // Latest snapshot of the whole catalog, and the date range shown from it, or null for all
+    private GeoImageCatalog.Snapshot catalogSnapshot;
+    private long[] dateRange;
 
     private AdView adView;
     
@@ -56,68 +88,402 @@ public class GalleryActivity extends AppCompatActivity {
         recyclerView = findViewById(R.id.imagesRecyclerView);
         emptyGalleryText = findViewById(R.id.emptyGalleryText);
         
-        // Set up RecyclerView
-        recyclerView.setLayoutManager(new GridLayoutManager(this, 2));
-        geoImages = new ArrayList<>();
-        adapter = new GalleryAdapter(geoImages);
+        Toolbar toolbar = findViewById(R.id.toolbar);
+        toolbar.inflateMenu(R.menu.menu_gallery);
+        toolbar.setOnMenuItemClickListener(item -> {
+            if (item.getItemId() == R.id.action_filter_dates) {
+                pickDateRange();
+                return true;
+            } else if (item.getItemId() == R.id.action_show_all_dates) {
+                setDateRange(null);
+                return true;
+            }
+            return false;
+        });
+        
+        // Set up RecyclerView; month headers span the whole row
+        GridLayoutManager layoutManager = new GridLayoutManager(this, SPAN_COUNT);
+        layoutManager.setSpanSizeLookup(new GridLayoutManager.SpanSizeLookup() {
+            @Override
+            public int getSpanSize(int position) {
+                return adapter.getItemViewType(position) == VIEW_TYPE_HEADER ? SPAN_COUNT : 1;
+            }
+        });
+        recyclerView.setLayoutManager(layoutManager);
+        // Photos have no alpha, so thumbnails can use half the memory
+        ThumbnailCache thumbnailCache = ThumbnailCache.getInstance(this);
+        thumbnailCache.setBitmapConfig(Bitmap.Config.RGB_565);
+        thumbnailLoader = new ThumbnailLoader(thumbnailCache,
+                THUMBNAIL_SIZE, THUMBNAIL_SIZE, R.drawable.thumbnail_placeholder);
+        pageExecutor = Executors.newSingleThreadExecutor();
+        adapter = new GalleryAdapter();
         recyclerView.setAdapter(adapter);
         
         // Initialize banner ad
         adView = findViewById(R.id.adView);
         AdManager.initBannerAd(adView);
         
-        // Load images
-        new LoadGeoImagesTask().execute();
+        // Load images, then keep them up to date while the gallery is visible
+        galleryWatcher = new GalleryWatcher(this, getGeoImageDirectory(), this::reloadImages);
+        placeNameResolver = PlaceNameResolver.getInstance(this);
+        reloadImages();
         
         // Show interstitial ad when opening gallery
         AdManager.showInterstitialAd(this);
     }
     
+    @Override
+    protected void onStart() {
+        super.onStart();
+        galleryWatcher.start();
+        // Names found for images that only had coordinates show up like any other change
+        placeNameResolver.setListener(this::reloadImages);
+        if (loaded) {
+            // Pick up anything that changed while the gallery wasn't watching
+            reloadImages();
+        }
+    }
+    
+    @Override
+    protected void onStop() {
+        galleryWatcher.stop();
+        placeNameResolver.setListener(null);
+        super.onStop();
+    }
+    
+    /**
+     * Sync the gallery with the catalog. Only the first load streams images in while
+     * scanning; later loads replace the snapshot in one diffed update.
+     */
+    private void reloadImages() {
+        if (loadTask != null) {
+            reloadPending = true;
+            return;
+        }
+        loadTask = new LoadGeoImagesTask(!loaded);
+        loadTask.execute();
+    }
+    
+    private File getGeoImageDirectory() {
+        return new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "GeoImage");
+    }
+    
+    /**
+     * Ask for a range of days to show
+     */
+    private void pickDateRange() {
+        MaterialDatePicker<Pair<Long, Long>> picker =
+                MaterialDatePicker.Builder.dateRangePicker()
+                        .setTitleText(R.string.filter_by_date)
+                        .build();
+        picker.addOnPositiveButtonClickListener(selection -> {
+            if (selection.first != null && selection.second != null) {
+                // The picker reports the chosen days as UTC midnights
+                setDateRange(new long[] { startOfLocalDay(selection.first, 0),
+                        startOfLocalDay(selection.second, 1) });
+            }
+        });
+        picker.show(getSupportFragmentManager(), "date_range");
+    }
+    
     /**
-     * Adapter for the gallery RecyclerView
+     * @return Start of the local day that is the given number of days after the UTC day
+     */
+    private static long startOfLocalDay(long utcMidnight, int addDays) {
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.setTimeInMillis(utcMidnight);
+        Calendar local = Calendar.getInstance();
+        local.clear();
+        local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH), utc.get(Calendar.DAY_OF_MONTH));
+        local.add(Calendar.DAY_OF_MONTH, addDays);
+        return local.getTimeInMillis();
+    }
+    
+    /**
+     * Show only the images taken in a range. The range is found in the snapshot's
+     * time index, so this doesn't wait for the catalog.
+     *
+     * @param range {from, to} in milliseconds, to exclusive, or null to show everything
      */
-    private class GalleryAdapter extends RecyclerView.Adapter<GalleryAdapter.ViewHolder> {
-        private List<GeoImage> images;
+    private void setDateRange(long[] range) {
+        dateRange = range;
+        if (catalogSnapshot != null) {
+            adapter.submitRows(new SectionedRows(filterByDate(catalogSnapshot, range)), null);
+            updateEmptyView();
+        }
+    }
+    
+    private static GeoImageCatalog.Snapshot filterByDate(GeoImageCatalog.Snapshot snapshot, long[] range) {
+        if (range == null) {
+            return snapshot;
+        }
+        int[] positions = snapshot.timeIndex.getRange(range[0], range[1]);
+        return snapshot.slice(positions[0], positions[1]);
+    }
+    
+    private void updateEmptyView() {
+        boolean empty = adapter.getItemCount() == 0;
+        emptyGalleryText.setVisibility(empty ? View.VISIBLE : View.GONE);
+        recyclerView.setVisibility(empty ? View.GONE : View.VISIBLE);
+    }
+    
+    /**
+     * Rows of the gallery: the images of a snapshot with a header before each month.
+     * Rows are mapped to images through the snapshot's time index, so nothing is
+     * allocated per row.
+     */
+    private static class SectionedRows {
+        final GeoImageCatalog.Snapshot snapshot;
+        final TimeIndex timeIndex;
         
-        GalleryAdapter(List<GeoImage> images) {
-            this.images = images;
+        SectionedRows(GeoImageCatalog.Snapshot snapshot) {
+            this.snapshot = snapshot;
+            this.timeIndex = snapshot.timeIndex;
+        }
+        
+        int size() {
+            return snapshot.size() + timeIndex.getBucketCount(TimeIndex.Bucket.MONTH);
+        }
+        
+        /**
+         * @return Month section holding the row
+         */
+        int getSection(int row) {
+            // Header rows are at each month's first position plus the headers before it
+            int low = 0;
+            int high = timeIndex.getBucketCount(TimeIndex.Bucket.MONTH) - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (getHeaderRow(middle) <= row) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+        
+        int getHeaderRow(int section) {
+            return timeIndex.getBucketStart(TimeIndex.Bucket.MONTH, section) + section;
+        }
+        
+        boolean isHeader(int row) {
+            return getHeaderRow(getSection(row)) == row;
+        }
+        
+        /**
+         * @return Snapshot position of an image row
+         */
+        int getPosition(int row) {
+            return row - getSection(row) - 1;
+        }
+        
+        /**
+         * @return Row of a snapshot position
+         */
+        int getRow(int position) {
+            return position + timeIndex.getBucketIndex(TimeIndex.Bucket.MONTH, position) + 1;
+        }
+        
+        long getMonthTime(int section) {
+            return timeIndex.getBucketTime(TimeIndex.Bucket.MONTH, section);
+        }
+        
+        /**
+         * @return Stable ID; negative for headers, which can't clash with catalog IDs
+         */
+        long getId(int row) {
+            int section = getSection(row);
+            if (getHeaderRow(section) == row) {
+                return -1 - (getMonthTime(section) >>> 1);
+            }
+            return snapshot.ids[row - section - 1];
+        }
+        
+        /**
+         * @return Version of the row's contents
+         */
+        long getVersion(int row) {
+            return isHeader(row) ? 0 : snapshot.versions[getPosition(row)];
+        }
+    }
+    
+    /**
+     * An image with the text its cell shows, formatted when its page is loaded
+     */
+    private static class GalleryItem {
+        final GeoImage image;
+        final String coordinates;
+        final String date;
+        
+        GalleryItem(GeoImage image, String coordinates, String date) {
+            this.image = image;
+            this.coordinates = coordinates;
+            this.date = date;
+        }
+    }
+    
+    /**
+     * Adapter for the gallery RecyclerView. It shows a paged list over a catalog
+     * snapshot, so only the images around the visible cells are held in memory,
+     * with a header above each month. Snapshots are diffed off the main thread,
+     * so only the cells that actually changed are rebound. Cell text is formatted
+     * on the page thread and month labels are formatted once, so binding a cell
+     * only sets what is already there.
+     */
+    private class GalleryAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
+            implements PagedGeoImageList.Listener, PagedGeoImageList.ItemFactory<GalleryItem> {
+        // Neither formatter is thread-safe, so each is confined to one thread: the item
+        // formatter to the single page thread, the month format and its labels to the main thread
+        private final DisplayFormatter itemFormatter = new DisplayFormatter("MMMM d, yyyy", Locale.US);
+        private final SimpleDateFormat monthFormat = new SimpleDateFormat("MMMM yyyy", Locale.getDefault());
+        private final LongSparseArray<String> monthLabels = new LongSparseArray<>();
+        private SectionedRows rows;
+        private PagedGeoImageList<GalleryItem> images;
+        
+        GalleryAdapter() {
+            setHasStableIds(true);
+        }
+        
+        /**
+         * @return Rows currently shown, or null before the first load
+         */
+        SectionedRows getRows() {
+            return rows;
+        }
+        
+        /**
+         * Replace the rows
+         *
+         * @param newRows New rows
+         * @param diff Diff from the current rows, or null to rebind everything
+         */
+        void submitRows(SectionedRows newRows, DiffUtil.DiffResult diff) {
+            SectionedRows previousRows = rows;
+            PagedGeoImageList<GalleryItem> previous = images;
+            rows = newRows;
+            images = new PagedGeoImageList<>(GeoImageCatalog.getInstance(GalleryActivity.this),
+                    newRows.snapshot, pageExecutor, this, this);
+            if (previous != null) {
+                previous.detach();
+                images.carryOver(previous, diff == null ? null : oldPosition -> {
+                    int newRow = diff.convertOldPositionToNew(previousRows.getRow(oldPosition));
+                    return newRow == RecyclerView.NO_POSITION || newRows.isHeader(newRow)
+                            ? -1 : newRows.getPosition(newRow);
+                });
+            }
+            
+            if (diff != null) {
+                diff.dispatchUpdatesTo(this);
+            } else {
+                notifyDataSetChanged();
+            }
+        }
+        
+        @Override
+        public GalleryItem create(GeoImage image) {
+            Date timestamp = image.getTimestamp();
+            return new GalleryItem(image,
+                    itemFormatter.formatCoordinates(image.getLatitude(), image.getLongitude(), 4),
+                    timestamp != null ? itemFormatter.formatDate(timestamp.getTime()) : null);
+        }
+        
+        /**
+         * @return Item shown at a row, or null for a header or a cell still loading
+         */
+        GalleryItem getItem(int row) {
+            return row != RecyclerView.NO_POSITION && !rows.isHeader(row)
+                    ? images.get(rows.getPosition(row)) : null;
+        }
+        
+        @Override
+        public void onItemRangeLoaded(int positionStart, int itemCount) {
+            // Any headers between the loaded images are rebound too, which is cheap
+            int firstRow = rows.getRow(positionStart);
+            int lastRow = rows.getRow(positionStart + itemCount - 1);
+            notifyItemRangeChanged(firstRow, lastRow - firstRow + 1);
+        }
+        
+        @Override
+        public int getItemViewType(int position) {
+            return rows.isHeader(position) ? VIEW_TYPE_HEADER : VIEW_TYPE_IMAGE;
         }
         
         @NonNull
         @Override
-        public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-            View view = LayoutInflater.from(parent.getContext())
-                    .inflate(R.layout.item_gallery_image, parent, false);
-            return new ViewHolder(view);
+        public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+            if (viewType == VIEW_TYPE_HEADER) {
+                return new HeaderViewHolder(inflater.inflate(R.layout.item_gallery_header, parent, false));
+            }
+            return new ViewHolder(inflater.inflate(R.layout.item_gallery_image, parent, false));
         }
         
         @Override
-        public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-            GeoImage image = images.get(position);
-            
-            // Load thumbnail
-            Bitmap thumbnail = ImageProcessor.decodeSampledBitmapFromFile(
-                    image.getPath(), 500, 500);
-            holder.imageView.setImageBitmap(thumbnail);
+        public void onBindViewHolder(@NonNull RecyclerView.ViewHolder viewHolder, int position) {
+            if (viewHolder instanceof HeaderViewHolder) {
+                long monthTime = rows.getMonthTime(rows.getSection(position));
+                ((HeaderViewHolder) viewHolder).monthText.setText(getMonthLabel(monthTime));
+                return;
+            }
             
-            // Set text
-            holder.locationText.setText(image.getLocationName());
-            holder.coordinatesText.setText(String.format(Locale.US, 
-                    "%.4f, %.4f", 
-                    image.getLatitude(), 
-                    image.getLongitude()));
+            ViewHolder holder = (ViewHolder) viewHolder;
+            GalleryItem item = images.get(rows.getPosition(position));
+            if (item == null) {
+                // Still loading; the cell is rebound once its page arrives
+                thumbnailLoader.showPlaceholder(holder.imageView);
+                holder.locationText.setText(null);
+                holder.coordinatesText.setText(null);
+                holder.dateText.setText(null);
+                return;
+            }
             
-            // Format date
-            SimpleDateFormat displayFormat = new SimpleDateFormat("MMMM d, yyyy", Locale.US);
-            holder.dateText.setText(displayFormat.format(image.getTimestamp()));
+            // Load thumbnail in the background
+            thumbnailLoader.load(item.image.getPath(), holder.imageView);
             
-            // Set click listener
-            holder.itemView.setOnClickListener(v -> openImage(image.getPath()));
+            // Set text, all formatted when the page was loaded
+            holder.locationText.setText(item.image.getLocationName());
+            holder.coordinatesText.setText(item.coordinates);
+            holder.dateText.setText(item.date);
+        }
+        
+        /**
+         * @return Label of a month header; only called on the main thread
+         */
+        private String getMonthLabel(long monthTime) {
+            String label = monthLabels.get(monthTime);
+            if (label == null) {
+                label = monthFormat.format(new Date(monthTime));
+                monthLabels.put(monthTime, label);
+            }
+            return label;
+        }
+        
+        @Override
+        public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+            if (holder instanceof ViewHolder) {
+                // Stop decoding for a cell that is no longer visible
+                thumbnailLoader.cancel(((ViewHolder) holder).imageView);
+            }
+        }
+        
+        @Override
+        public long getItemId(int position) {
+            return rows.getId(position);
         }
         
         @Override
         public int getItemCount() {
-            return images.size();
+            return rows != null ? rows.size() : 0;
+        }
+        
+        class HeaderViewHolder extends RecyclerView.ViewHolder {
+            TextView monthText;
+            
+            HeaderViewHolder(View itemView) {
+                super(itemView);
+                monthText = itemView.findViewById(R.id.monthText);
+            }
         }
         
         class ViewHolder extends RecyclerView.ViewHolder {
@@ -132,6 +498,14 @@ public class GalleryActivity extends AppCompatActivity {
                 locationText = itemView.findViewById(R.id.locationText);
                 coordinatesText = itemView.findViewById(R.id.coordinatesText);
                 dateText = itemView.findViewById(R.id.dateText);
+                
+                // One listener per cell, looking up whatever the cell shows when clicked
+                itemView.setOnClickListener(v -> {
+                    GalleryItem item = getItem(getAdapterPosition());
+                    if (item != null) {
+                        openImage(item.image.getPath());
+                    }
+                });
             }
         }
     }
@@ -150,6 +524,17 @@ public class GalleryActivity extends AppCompatActivity {
     
     @Override
     protected void onDestroy() {
+        if (loadTask != null) {
+            loadTask.cancel(false);
+        }
+        
+        // Recycling every cell releases the thumbnails they show
+        recyclerView.setAdapter(null);
+        pageExecutor.shutdownNow();
+        thumbnailLoader.shutdown();
+        Log.d(TAG, "Thumbnail cache: " + ThumbnailCache.getInstance(this).getStats());
+        Log.d(TAG, "Bitmap pool: " + BitmapPool.getInstance().getStats());
+        
         // Clean up the banner ad to avoid memory leaks
         if (adView != null) {
             adView.destroy();
@@ -158,108 +543,239 @@ public class GalleryActivity extends AppCompatActivity {
         super.onDestroy();
     }
     
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            BitmapPool.getInstance().clear();
+        }
+    }
+    
     /**
-     * AsyncTask to load geotagged images
+     * Rows to show, the catalog snapshot they were taken from and their diff from the
+     * rows shown before them
      */
-    private class LoadGeoImagesTask extends AsyncTask<Void, Void, List<GeoImage>> {
+    private static class RowsUpdate {
+        final GeoImageCatalog.Snapshot catalogSnapshot;
+        final SectionedRows rows;
+        final DiffUtil.DiffResult diff;
+        
+        RowsUpdate(GeoImageCatalog.Snapshot catalogSnapshot, SectionedRows rows, DiffUtil.DiffResult diff) {
+            this.catalogSnapshot = catalogSnapshot;
+            this.rows = rows;
+            this.diff = diff;
+        }
+    }
+    
+    /**
+     * Diff two sets of rows by ID, treating images written since the old snapshot as changed
+     *
+     * @param oldRows Rows shown, or null
+     * @param newRows Rows to show
+     * @return Diff, or null if nothing was shown before
+     */
+    private static DiffUtil.DiffResult diffRows(SectionedRows oldRows, SectionedRows newRows) {
+        if (oldRows == null) {
+            return null;
+        }
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldRows.size();
+            }
+            
+            @Override
+            public int getNewListSize() {
+                return newRows.size();
+            }
+            
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldRows.getId(oldItemPosition) == newRows.getId(newItemPosition);
+            }
+            
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldRows.getVersion(oldItemPosition) == newRows.getVersion(newItemPosition);
+            }
+        }, false);
+    }
+    
+    /**
+     * AsyncTask to sync the catalog and take a snapshot of the geotagged images
+     */
+    private class LoadGeoImagesTask extends AsyncTask<Void, RowsUpdate, RowsUpdate> {
+        private final boolean streamChunks;
+        // Date range the rows are filtered to, as set when the task started
+        private final long[] range;
+        // Rows the next update is diffed against; only touched by the background thread
+        private SectionedRows shownRows;
+        private long lastPublished;
+        
+        // Files are parsed on several scan threads, each with its own reader
+        private final ThreadLocal<ExifGpsReader> exifReaders = new ThreadLocal<ExifGpsReader>() {
+            @Override
+            protected ExifGpsReader initialValue() {
+                return new ExifGpsReader();
+            }
+        };
+        
+        /**
+         * @param streamChunks true to show images while the scan runs
+         */
+        LoadGeoImagesTask(boolean streamChunks) {
+            this.streamChunks = streamChunks;
+            this.range = dateRange;
+            this.shownRows = adapter.getRows();
+        }
+        
         @Override
-        protected List<GeoImage> doInBackground(Void... voids) {
-            List<GeoImage> result = new ArrayList<>();
+        protected RowsUpdate doInBackground(Void... voids) {
+            File geoImageDir = getGeoImageDirectory();
+            GeoImageCatalog catalog = GeoImageCatalog.getInstance(GalleryActivity.this);
+            MediaStoreSync mediaStoreSync = new MediaStoreSync(GalleryActivity.this, geoImageDir);
             
-            // Check our app's GeoImage directory first
-            File geoImageDir = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "GeoImage");
+            // Only new or changed files are parsed; everything else comes from the catalog.
+            // Files are scanned as they are listed, and while the scan is still running the
+            // catalog is snapshotted again every so often to show its progress.
+            boolean[] listed = new boolean[1];
+            boolean synced = catalog.sync(
+                    visitor -> {
+                        visitAppImages(geoImageDir, visitor);
+                        listed[0] = mediaStoreSync.visitChanges(catalog, visitor);
+                    },
+                    this::getGeoImageFromFile,
+                    streamChunks ? () -> publishSnapshot(catalog) : null);
+            if (synced && listed[0]) {
+                // Rows a failed query or an aborted sync skipped must be in the next delta,
+                // so the checkpoint stays put
+                mediaStoreSync.commit();
+            }
+            return createUpdate(catalog.getSnapshot());
+        }
+        
+        private RowsUpdate createUpdate(GeoImageCatalog.Snapshot snapshot) {
+            SectionedRows rows = new SectionedRows(filterByDate(snapshot, range));
+            RowsUpdate update = new RowsUpdate(snapshot, rows, diffRows(shownRows, rows));
+            shownRows = rows;
+            return update;
+        }
+        
+        /**
+         * Show the catalog's progress, at most every STREAM_INTERVAL_MILLIS
+         */
+        private void publishSnapshot(GeoImageCatalog catalog) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastPublished < STREAM_INTERVAL_MILLIS) {
+                return;
+            }
+            lastPublished = now;
+            
+            publishProgress(createUpdate(catalog.getSnapshot()));
+        }
+        
+        /**
+         * List the images in our app's GeoImage directory
+         */
+        private void visitAppImages(File geoImageDir, GeoImageCatalog.FileVisitor visitor) {
             if (geoImageDir.exists() && geoImageDir.isDirectory()) {
                 File[] files = geoImageDir.listFiles(file -> file.isFile() && 
                         file.getName().toLowerCase().endsWith(".jpg"));
                 
                 if (files != null) {
                     for (File file : files) {
-                        GeoImage image = getGeoImageFromFile(file, result.size() + 1);
-                        if (image != null) {
-                            result.add(image);
-                        }
+                        visitor.visit(file, GeoImageCatalog.SOURCE_DIRECTORY);
                     }
                 }
             }
-            
-            // Also search the media store for images we've added
-            String[] projection = {
-                    MediaStore.Images.Media._ID,
-                    MediaStore.Images.Media.DISPLAY_NAME,
-                    MediaStore.Images.Media.DATA,
-                    MediaStore.Images.Media.DATE_TAKEN
-            };
-            
-            String selection = MediaStore.Images.Media.DATA + " LIKE ?";
-            String[] selectionArgs = new String[] { "%GeoImage%" };
-            
-            try (Cursor cursor = getContentResolver().query(
-                    MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                    projection,
-                    selection,
-                    selectionArgs,
-                    MediaStore.Images.Media.DATE_TAKEN + " DESC")) {
-                
-                if (cursor != null) {
-                    int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
-                    int nameColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DISPLAY_NAME);
-                    int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-                    
-                    while (cursor.moveToNext()) {
-                        long id = cursor.getLong(idColumn);
-                        String name = cursor.getString(nameColumn);
-                        String path = cursor.getString(dataColumn);
-                        
-                        // Check if we already have this image
-                        boolean alreadyAdded = false;
-                        for (GeoImage existingImage : result) {
-                            if (existingImage.getPath().equals(path)) {
-                                alreadyAdded = true;
-                                break;
-                            }
-                        }
-                        
-                        if (!alreadyAdded) {
-                            // Get additional information from the image file
-                            File file = new File(path);
-                            if (file.exists()) {
-                                GeoImage image = getGeoImageFromFile(file, result.size() + 1);
-                                if (image != null) {
-                                    result.add(image);
-                                }
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error querying media store: " + e.getMessage());
+        }
+        
+        @Override
+        protected void onProgressUpdate(RowsUpdate... updates) {
+            for (RowsUpdate update : updates) {
+                showUpdate(update);
             }
-            
-            return result;
+            updateEmptyView();
         }
         
         @Override
-        protected void onPostExecute(List<GeoImage> geoImageList) {
-            if (geoImageList.isEmpty()) {
-                emptyGalleryText.setVisibility(View.VISIBLE);
-                recyclerView.setVisibility(View.GONE);
+        protected void onPostExecute(RowsUpdate update) {
+            showUpdate(update);
+            updateEmptyView();
+            loaded = true;
+            loadTask = null;
+            // Name new images in the background; a pass still running finishes first
+            placeNameResolver.resolve();
+            if (reloadPending) {
+                reloadPending = false;
+                reloadImages();
+            }
+        }
+        
+        private void showUpdate(RowsUpdate update) {
+            catalogSnapshot = update.catalogSnapshot;
+            if (dateRange == range) {
+                adapter.submitRows(update.rows, update.diff);
             } else {
-                emptyGalleryText.setVisibility(View.GONE);
-                recyclerView.setVisibility(View.VISIBLE);
-                geoImages.clear();
-                geoImages.addAll(geoImageList);
-                adapter.notifyDataSetChanged();
+                // The filter changed while the update was prepared
+                adapter.submitRows(new SectionedRows(filterByDate(catalogSnapshot, dateRange)), null);
             }
         }
         
         /**
-         * Extract GeoImage data from an image file
+         * Extract GeoImage data from an image file. The ID is assigned by the catalog.
+         * Called from several scan threads at once.
+         *
+         * @param file Image file
+         * @return GeoImage object or null if no GPS data
+         */
+        private GeoImage getGeoImageFromFile(File file) {
+            ExifGpsReader exifReader = exifReaders.get();
+            try {
+                // Read only the EXIF header; fall back to ExifInterface for non-JPEG files
+                if (!exifReader.read(file)) {
+                    return getGeoImageWithExifInterface(file);
+                }
+                
+                if (exifReader.hasLocation()) {
+                    double latitude = exifReader.getLatitude();
+                    double longitude = exifReader.getLongitude();
+                    
+                    // Try to get location name if available
+                    String locationName = exifReader.getProcessingMethod();
+                    if (locationName == null) {
+                        // If no location name, format the coordinates
+                        locationName = DisplayFormatter.coordinates(latitude, longitude, 4);
+                    }
+                    
+                    // Get timestamp, using file modification date as fallback
+                    long dateTime = exifReader.getDateTime();
+                    Date timestamp = new Date(dateTime >= 0 ? dateTime : file.lastModified());
+                    
+                    return new GeoImage(
+                            0,
+                            file.getName(),
+                            file.getAbsolutePath(),
+                            latitude,
+                            longitude,
+                            locationName,
+                            timestamp
+                    );
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading EXIF data from " + file.getName() + ": " + e.getMessage());
+            }
+            
+            return null;
+        }
+        
+        /**
+         * Extract GeoImage data from an image file using ExifInterface
          *
          * @param file Image file
-         * @param id ID to assign
          * @return GeoImage object or null if no GPS data
          */
-        private GeoImage getGeoImageFromFile(File file, long id) {
+        private GeoImage getGeoImageWithExifInterface(File file) {
             try {
                 ExifInterface exif = new ExifInterface(file.getAbsolutePath());
                 
@@ -277,7 +793,7 @@ public class GalleryActivity extends AppCompatActivity {
                         String locationName = exif.getAttribute(ExifInterface.TAG_GPS_PROCESSING_METHOD);
                         if (locationName == null || locationName.equals("GPS")) {
                             // If no location name, format the coordinates
-                            locationName = String.format(Locale.US, "%.4f, %.4f", latitude, longitude);
+                            locationName = DisplayFormatter.coordinates(latitude, longitude, 4);
                         }
                         
                         // Get timestamp
@@ -296,7 +812,7 @@ public class GalleryActivity extends AppCompatActivity {
                         }
                         
                         return new GeoImage(
-                                id,
+                                0,
                                 file.getName(),
                                 file.getAbsolutePath(),
                                 latitude,
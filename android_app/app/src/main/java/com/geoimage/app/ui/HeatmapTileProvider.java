@@ -0,0 +1,315 @@
+package com.geoimage.app.ui;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import com.geoimage.app.data.GeoImageCatalog;
+import com.geoimage.app.data.SpatialIndex;
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileOverlay;
+import com.google.android.gms.maps.model.TileProvider;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Renders heatmap tiles of photo density from the catalog's spatial index.
+ * Each tile counts the photos under every pixel, including a margin so
+ * kernels spill across tile edges, blurs the counts and maps them through a
+ * color ramp. At the lowest zooms, where a pixel is wider than a cell of the
+ * index, the cells' counts stand in for their photos, so rendering a tile of
+ * the whole world only locks the index for its occupied cells. Tiles are
+ * rendered on the map's tile threads and kept in an LRU cache; when the index
+ * changes only the tiles around the changed location are dropped, so the
+ * overlay redraws without re-rendering the rest.
+ */
+public class HeatmapTileProvider implements TileProvider, SpatialIndex.ChangeListener {
+    private static final int TILE_SIZE = 256;
+    // Kernel radius in pixels; also the margin rendered around each tile
+    private static final int RADIUS = 16;
+    private static final int GRID_SIZE = TILE_SIZE + 2 * RADIUS;
+    private static final int MAX_ZOOM = 21;
+    private static final int BLUR_WIDTH = RADIUS + 1;
+    // Photos under one pixel at which the ramp reaches its hottest color; the ramp
+    // is logarithmic so a lone photo still shows
+    private static final float SATURATION = 50f;
+    private static final int CACHE_BYTES = 4 * 1024 * 1024;
+    private static final long REFRESH_DELAY_MILLIS = 500;
+    private static final byte[] EMPTY_TILE = new byte[0];
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private static final int[] COLOR_RAMP = createColorRamp();
+
+    private final GeoImageCatalog catalog;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable clearOverlayCache = this::clearOverlayCache;
+    private final LruCache<Long, byte[]> tiles = new LruCache<Long, byte[]>(CACHE_BYTES) {
+        @Override
+        protected int sizeOf(Long key, byte[] value) {
+            // Count empty tiles too, so the cache can't fill up with them
+            return Math.max(64, value.length);
+        }
+    };
+    private SpatialIndex index;
+    private TileOverlay overlay;
+    // Bumped on every change, so a tile rendered meanwhile isn't cached
+    private volatile int generation;
+
+    /**
+     * @param catalog Catalog whose spatial index to render
+     */
+    public HeatmapTileProvider(GeoImageCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Set the overlay showing these tiles, so it can be refreshed when the index changes.
+     * Call on the main thread.
+     *
+     * @param overlay Overlay, or null to detach
+     */
+    public void setOverlay(TileOverlay overlay) {
+        this.overlay = overlay;
+    }
+
+    /**
+     * Stop listening for changes. Call on the main thread.
+     */
+    public void release() {
+        overlay = null;
+        mainHandler.removeCallbacks(clearOverlayCache);
+        synchronized (this) {
+            if (index != null) {
+                index.removeChangeListener(this);
+            }
+        }
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom) {
+        if (zoom > MAX_ZOOM) {
+            return NO_TILE;
+        }
+        long key = tileKey(x, y, zoom);
+        byte[] png = tiles.get(key);
+        if (png == null) {
+            int renderGeneration = generation;
+            png = render(getIndex(), x, y, zoom);
+            if (renderGeneration == generation) {
+                tiles.put(key, png);
+                // A change between the check and the put may have dropped this tile before it was cached
+                if (renderGeneration != generation) {
+                    tiles.remove(key);
+                }
+            }
+        }
+        return png.length > 0 ? new Tile(TILE_SIZE, TILE_SIZE, png) : NO_TILE;
+    }
+
+    @Override
+    public void onLocationChanged(double latitude, double longitude) {
+        generation++;
+        // Drop every tile whose rendered area, margin included, covers the location
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            long worldSize = (long) TILE_SIZE << zoom;
+            double pixelX = mercatorX(longitude) * worldSize;
+            double pixelY = mercatorY(latitude) * worldSize;
+            int tiles = 1 << zoom;
+            int firstX = (int) Math.floor((pixelX - RADIUS) / TILE_SIZE);
+            int lastX = (int) Math.floor((pixelX + RADIUS) / TILE_SIZE);
+            int firstY = Math.max(0, (int) Math.floor((pixelY - RADIUS) / TILE_SIZE));
+            int lastY = Math.min(tiles - 1, (int) Math.floor((pixelY + RADIUS) / TILE_SIZE));
+            for (int tileY = firstY; tileY <= lastY; tileY++) {
+                for (int tileX = firstX; tileX <= lastX; tileX++) {
+                    this.tiles.remove(tileKey((tileX + tiles) % tiles, tileY, zoom));
+                }
+            }
+        }
+
+        // Changes arrive in bursts during a sync, so refresh the overlay once they settle
+        mainHandler.removeCallbacks(clearOverlayCache);
+        mainHandler.postDelayed(clearOverlayCache, REFRESH_DELAY_MILLIS);
+    }
+
+    private void clearOverlayCache() {
+        if (overlay != null) {
+            // Unaffected tiles are answered from our own cache without rendering
+            overlay.clearTileCache();
+        }
+    }
+
+    private synchronized SpatialIndex getIndex() {
+        if (index == null) {
+            index = catalog.getSpatialIndex();
+            index.addChangeListener(this);
+        }
+        return index;
+    }
+
+    private static byte[] render(SpatialIndex index, int x, int y, int zoom) {
+        long worldSize = (long) TILE_SIZE << zoom;
+        double left = (double) x * TILE_SIZE - RADIUS;
+        double top = (double) y * TILE_SIZE - RADIUS;
+        double west = longitude(left / worldSize);
+        double east = longitude((left + GRID_SIZE) / worldSize);
+        double north = latitude(Math.max(0, top / worldSize));
+        double south = latitude(Math.min(1, (top + GRID_SIZE) / worldSize));
+        if (east - west >= 360) {
+            // At the lowest zooms the tile and its margin span the whole world
+            west = -180;
+            east = 180;
+        } else if (west < -180) {
+            west += 360;
+        } else if (east > 180) {
+            east -= 360;
+        }
+
+        float[] density = new float[GRID_SIZE * GRID_SIZE];
+        int[] count = new int[1];
+        if (360.0 / worldSize >= SpatialIndex.CELL_DEGREES) {
+            // A cell's center is at most about a pixel from its photos
+            index.visitCells(south, west, north, east, (latitude, longitude, photos) ->
+                    count[0] += addToGrid(density, worldSize, left, top, latitude, longitude, photos));
+        } else {
+            index.visitBox(south, west, north, east, (id, latitude, longitude) ->
+                    count[0] += addToGrid(density, worldSize, left, top, latitude, longitude, 1));
+        }
+        if (count[0] == 0) {
+            return EMPTY_TILE;
+        }
+
+        // Two box blurs approximate a Gaussian kernel
+        float[] scratch = new float[density.length];
+        for (int pass = 0; pass < 2; pass++) {
+            blur(density, scratch, 1, GRID_SIZE);
+            blur(scratch, density, GRID_SIZE, 1);
+        }
+
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        boolean visible = false;
+        for (int row = 0; row < TILE_SIZE; row++) {
+            int offset = (row + RADIUS) * GRID_SIZE + RADIUS;
+            for (int column = 0; column < TILE_SIZE; column++) {
+                float value = density[offset + column];
+                if (value > 0) {
+                    // Two passes of a box blur leave a lone photo with a peak of 1 / BLUR_WIDTH^2
+                    float photos = value * BLUR_WIDTH * BLUR_WIDTH;
+                    float heat = (float) (Math.log1p(photos) / Math.log1p(SATURATION));
+                    int level = (int) (Math.min(1f, heat) * (COLOR_RAMP.length - 1));
+                    pixels[row * TILE_SIZE + column] = COLOR_RAMP[level];
+                    visible |= level > 0;
+                }
+            }
+        }
+        if (!visible) {
+            return EMPTY_TILE;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(pixels, TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * Add photos at a location to the density grid of a tile
+     *
+     * @param left Left edge of the grid, in pixels of the world
+     * @param top Top edge of the grid, in pixels of the world
+     * @return Number of photos added; 0 if the location is outside the grid
+     */
+    private static int addToGrid(float[] density, long worldSize, double left, double top,
+                                 double latitude, double longitude, int photos) {
+        double pixelX = mercatorX(longitude) * worldSize - left;
+        // Points across the antimeridian from the tile
+        if (pixelX < 0) {
+            pixelX += worldSize;
+        } else if (pixelX >= GRID_SIZE) {
+            pixelX -= worldSize;
+        }
+        int column = (int) pixelX;
+        int row = (int) (mercatorY(latitude) * worldSize - top);
+        if (column < 0 || column >= GRID_SIZE || row < 0 || row >= GRID_SIZE) {
+            return 0;
+        }
+        density[row * GRID_SIZE + column] += photos;
+        return photos;
+    }
+
+    /**
+     * Box blur every line of the grid, reading from source and writing to target
+     *
+     * @param step Distance between neighbors along a line: 1 for rows, GRID_SIZE for columns
+     * @param lineStep Distance between the starts of consecutive lines
+     */
+    private static void blur(float[] source, float[] target, int step, int lineStep) {
+        int halfWidth = BLUR_WIDTH / 2;
+        float scale = 1f / BLUR_WIDTH;
+        for (int line = 0; line < GRID_SIZE; line++) {
+            int start = line * lineStep;
+            float sum = 0;
+            for (int i = 0; i < halfWidth; i++) {
+                sum += source[start + i * step];
+            }
+            for (int i = 0; i < GRID_SIZE; i++) {
+                if (i + halfWidth < GRID_SIZE) {
+                    sum += source[start + (i + halfWidth) * step];
+                }
+                if (i - halfWidth - 1 >= 0) {
+                    sum -= source[start + (i - halfWidth - 1) * step];
+                }
+                target[start + i * step] = sum * scale;
+            }
+        }
+    }
+
+    /**
+     * Transparent blue through green and yellow to opaque red
+     */
+    private static int[] createColorRamp() {
+        int[] stops = { Color.argb(0, 0, 0, 255), Color.argb(160, 0, 0, 255), Color.argb(190, 0, 200, 0),
+                Color.argb(220, 255, 230, 0), Color.argb(240, 255, 0, 0) };
+        int[] ramp = new int[256];
+        for (int i = 0; i < ramp.length; i++) {
+            float position = (float) i / (ramp.length - 1) * (stops.length - 1);
+            int stop = Math.min(stops.length - 2, (int) position);
+            float fraction = position - stop;
+            int from = stops[stop];
+            int to = stops[stop + 1];
+            ramp[i] = Color.argb(
+                    mix(Color.alpha(from), Color.alpha(to), fraction),
+                    mix(Color.red(from), Color.red(to), fraction),
+                    mix(Color.green(from), Color.green(to), fraction),
+                    mix(Color.blue(from), Color.blue(to), fraction));
+        }
+        return ramp;
+    }
+
+    private static int mix(int from, int to, float fraction) {
+        return Math.round(from + (to - from) * fraction);
+    }
+
+    private static long tileKey(int x, int y, int zoom) {
+        return (long) zoom << 50 | (long) x << 25 | y;
+    }
+
+    private static double mercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    private static double mercatorY(double latitude) {
+        double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    private static double longitude(double x) {
+        return x * 360 - 180;
+    }
+
+    private static double latitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+    }
+}
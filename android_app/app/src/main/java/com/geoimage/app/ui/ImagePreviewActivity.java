@@ -4,7 +4,6 @@ import android.app.ProgressDialog;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -13,7 +12,6 @@ import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
-import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -26,9 +24,7 @@ import com.geoimage.app.util.AdManager;
 import com.geoimage.app.util.ImageProcessor;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -36,7 +32,7 @@ import java.util.Locale;
 public class ImagePreviewActivity extends AppCompatActivity {
     private static final String TAG = "ImagePreviewActivity";
     
-    private ImageView imagePreview;
+    private TiledImageView imagePreview;
     private TextView locationNameText;
     private TextView coordinatesText;
     private Button cancelButton;
@@ -46,6 +42,7 @@ public class ImagePreviewActivity extends AppCompatActivity {
     private Location location;
     private File outputFile;
     private ProgressDialog progressDialog;
+    private ProcessImageTask processImageTask;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -91,55 +88,22 @@ public class ImagePreviewActivity extends AppCompatActivity {
     }
     
     /**
-     * Display the selected image in the preview
+     * Display the selected image in the preview. A base layer fitted to the view is
+     * shown first, and sharper tiles are decoded as the user zooms in.
      */
     private void displayImage() {
-        try {
-            // Load a scaled down version for preview
-            InputStream inputStream = getContentResolver().openInputStream(imageUri);
-            if (inputStream != null) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeStream(inputStream, null, options);
-                inputStream.close();
-                
-                // Calculate inSampleSize
-                options.inSampleSize = calculateInSampleSize(options, 1080, 1920);
-                
-                // Decode bitmap with inSampleSize set
-                options.inJustDecodeBounds = false;
-                inputStream = getContentResolver().openInputStream(imageUri);
-                if (inputStream != null) {
-                    Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
-                    imagePreview.setImageBitmap(bitmap);
-                    inputStream.close();
-                }
+        imagePreview.setImageUri(imageUri, new TiledImageView.OnImageLoadListener() {
+            @Override
+            public void onImageLoaded() {
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error loading image: " + e.getMessage());
-            Toast.makeText(this, "Error loading image", Toast.LENGTH_SHORT).show();
-            finish();
-        }
-    }
-    
-    /**
-     * Calculate appropriate scaling factor for the image
-     */
-    private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
-        
-        if (height > reqHeight || width > reqWidth) {
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
             
-            while ((halfHeight / inSampleSize) >= reqHeight && (halfWidth / inSampleSize) >= reqWidth) {
-                inSampleSize *= 2;
+            @Override
+            public void onImageLoadFailed(IOException e) {
+                Log.e(TAG, "Error loading image: " + e.getMessage());
+                Toast.makeText(ImagePreviewActivity.this, "Error loading image", Toast.LENGTH_SHORT).show();
+                finish();
             }
-        }
-        
-        return inSampleSize;
+        });
     }
     
     /**
@@ -157,7 +121,19 @@ public class ImagePreviewActivity extends AppCompatActivity {
      * Process and save the image with location data
      */
     private void processAndSaveImage() {
-        new ProcessImageTask().execute(imageUri);
+        processImageTask = new ProcessImageTask();
+        processImageTask.execute(imageUri);
+    }
+    
+    @Override
+    protected void onDestroy() {
+        // Hand the preview back for reuse, unless a save is still reading it
+        if (imagePreview != null) {
+            imagePreview.release(processImageTask == null
+                    || processImageTask.getStatus() == AsyncTask.Status.FINISHED);
+        }
+        
+        super.onDestroy();
     }
     
     /**
@@ -166,68 +142,58 @@ public class ImagePreviewActivity extends AppCompatActivity {
     private class ProcessImageTask extends AsyncTask<Uri, Void, Boolean> {
         private String errorMessage;
         private String savedFilePath;
+        private Bitmap preview;
         
         @Override
         protected void onPreExecute() {
             progressDialog.show();
+            
+            // Reuse the decoded preview for the embedded EXIF thumbnail
+            preview = imagePreview.getBaseLayer();
         }
         
         @Override
         protected Boolean doInBackground(Uri... uris) {
             Uri uri = uris[0];
-            try {
-                // Create a file to save the processed image
-                String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-                String fileName = "GeoImage_" + timeStamp + ".jpg";
-                
-                // Create output directory if it doesn't exist
-                File outputDir = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "GeoImage");
-                if (!outputDir.exists()) {
-                    outputDir.mkdirs();
-                }
-                
-                // Create output file
-                outputFile = new File(outputDir, fileName);
-                
-                // Copy the image to the output file
-                InputStream in = getContentResolver().openInputStream(uri);
-                FileOutputStream out = new FileOutputStream(outputFile);
-                
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                }
-                
-                in.close();
-                out.close();
-                
-                // Add geotag to the image
-                boolean geotagSuccess = ImageProcessor.addGeotagToImage(
-                        outputFile.getAbsolutePath(), location);
-                
-                if (!geotagSuccess) {
-                    errorMessage = "Failed to add geotag to image";
-                    return false;
-                }
-                
-                // Add the image to the media store so it appears in the gallery
-                ContentValues values = new ContentValues();
-                values.put(MediaStore.Images.Media.TITLE, fileName);
-                values.put(MediaStore.Images.Media.DESCRIPTION, "Image with location: " + location.getName());
-                values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
-                values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
-                values.put(MediaStore.Images.Media.DATA, outputFile.getAbsolutePath());
-                
-                getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-                
-                savedFilePath = outputFile.getAbsolutePath();
-                return true;
-            } catch (IOException e) {
-                Log.e(TAG, "Error processing image: " + e.getMessage());
-                errorMessage = "Error processing image: " + e.getMessage();
+            
+            // Create a file to save the processed image
+            String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+            String fileName = "GeoImage_" + timeStamp + ".jpg";
+            
+            // Create output directory if it doesn't exist
+            File outputDir = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "GeoImage");
+            if (!outputDir.exists()) {
+                outputDir.mkdirs();
+            }
+            
+            // Create output file
+            outputFile = new File(outputDir, fileName);
+            
+            // Copy the image to the output file, writing the geotag in the same pass
+            boolean geotagSuccess = ImageProcessor.copyImageWithGeotag(
+                    ImagePreviewActivity.this, uri, outputFile, location, preview);
+            
+            if (!geotagSuccess) {
+                errorMessage = "Failed to add geotag to image";
                 return false;
             }
+            
+            // Add the image to the media store so it appears in the gallery
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Images.Media.TITLE, fileName);
+            values.put(MediaStore.Images.Media.DESCRIPTION, "Image with location: " + location.getName());
+            long now = System.currentTimeMillis();
+            values.put(MediaStore.Images.Media.DATE_TAKEN, now);
+            // The gallery syncs MediaStore rows incrementally by modification date on older releases
+            values.put(MediaStore.Images.Media.DATE_ADDED, now / 1000);
+            values.put(MediaStore.Images.Media.DATE_MODIFIED, now / 1000);
+            values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
+            values.put(MediaStore.Images.Media.DATA, outputFile.getAbsolutePath());
+            
+            getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+            
+            savedFilePath = outputFile.getAbsolutePath();
+            return true;
         }
         
         @Override
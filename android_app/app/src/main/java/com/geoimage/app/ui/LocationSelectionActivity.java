@@ -3,13 +3,14 @@ package com.geoimage.app.ui;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.location.Address;
-import android.location.Geocoder;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.widget.AutoCompleteTextView;
 import android.widget.Button;
-import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -20,7 +21,10 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 import com.geoimage.app.R;
+import com.geoimage.app.data.GeoImageCatalog;
+import com.geoimage.app.geocode.GeocodingService;
 import com.geoimage.app.model.Location;
+import com.geoimage.app.util.DisplayFormatter;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
@@ -28,16 +32,18 @@ import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.TileOverlayOptions;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Locale;
 
 public class LocationSelectionActivity extends AppCompatActivity implements OnMapReadyCallback {
     private static final int REQUEST_LOCATION_PERMISSION = 1001;
+    // Shorter text matches too much to be worth a geocoder call
+    private static final int MIN_ONLINE_QUERY_LENGTH = 3;
     
     private GoogleMap map;
-    private EditText searchEditText;
+    private AutoCompleteTextView searchEditText;
     private ImageButton searchButton;
     private ImageButton myLocationButton;
     private TextView selectedLocationText;
@@ -46,6 +52,10 @@ public class LocationSelectionActivity extends AppCompatActivity implements OnMa
     
     private Marker currentMarker;
     private Location selectedLocation;
+    private PhotoMapLayer photoMapLayer;
+    private HeatmapTileProvider heatmapTileProvider;
+    private GeocodingService geocodingService;
+    private PlaceSuggestionAdapter suggestionAdapter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -60,6 +70,36 @@ public class LocationSelectionActivity extends AppCompatActivity implements OnMa
         selectedCoordinatesText = findViewById(R.id.selectedCoordinatesText);
         confirmButton = findViewById(R.id.confirmButton);
         
+        // Geocoder calls block on the network, so they run in the background
+        geocodingService = new GeocodingService(this);
+        
+        // Suggest places as the search is typed: offline at once, online once typing pauses
+        suggestionAdapter = new PlaceSuggestionAdapter(this);
+        searchEditText.setAdapter(suggestionAdapter);
+        searchEditText.setOnItemClickListener((parent, view, position, id) ->
+                selectSuggestion(suggestionAdapter.getItem(position)));
+        searchEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+            
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+            
+            @Override
+            public void afterTextChanged(Editable s) {
+                suggestOnline(s.toString().trim());
+            }
+        });
+        searchEditText.setOnEditorActionListener((v, actionId, event) -> {
+            if (actionId == EditorInfo.IME_ACTION_SEARCH) {
+                searchLocation();
+                return true;
+            }
+            return false;
+        });
+        
         // Set click listeners
         searchButton.setOnClickListener(v -> searchLocation());
         myLocationButton.setOnClickListener(v -> getMyLocation());
@@ -90,6 +130,18 @@ public class LocationSelectionActivity extends AppCompatActivity implements OnMa
         // Set map click listener
         map.setOnMapClickListener(this::selectLocationOnMap);
         
+        // Shade where the library was shot, rendered from the local catalog
+        heatmapTileProvider = new HeatmapTileProvider(GeoImageCatalog.getInstance(this));
+        heatmapTileProvider.setOverlay(map.addTileOverlay(new TileOverlayOptions()
+                .tileProvider(heatmapTileProvider)
+                .transparency(0.2f)));
+        
+        // Show the photo library, clustered, and keep it in step with the camera
+        photoMapLayer = new PhotoMapLayer(this, map);
+        map.setOnCameraIdleListener(photoMapLayer::refresh);
+        map.setOnMarkerClickListener(photoMapLayer::onMarkerClick);
+        photoMapLayer.load();
+        
         // Check and request location permission
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) 
                 == PackageManager.PERMISSION_GRANTED) {
@@ -187,118 +239,111 @@ public class LocationSelectionActivity extends AppCompatActivity implements OnMa
             return;
         }
         
-        Geocoder geocoder = new Geocoder(this, Locale.getDefault());
-        try {
-            List<Address> addresses = geocoder.getFromLocationName(query, 1);
-            if (addresses != null && !addresses.isEmpty()) {
-                Address address = addresses.get(0);
-                LatLng position = new LatLng(address.getLatitude(), address.getLongitude());
-                
-                // Build a descriptive name for the location
-                StringBuilder locationName = new StringBuilder();
-                for (int i = 0; i <= address.getMaxAddressLineIndex(); i++) {
-                    if (i > 0) locationName.append(", ");
-                    locationName.append(address.getAddressLine(i));
+        geocodingService.search(query, new GeocodingService.Callback<Location>() {
+            @Override
+            public void onResult(Location location) {
+                if (location == null) {
+                    Toast.makeText(LocationSelectionActivity.this, "Location not found", Toast.LENGTH_SHORT).show();
+                    return;
                 }
-                
-                // Use the first line of the address if full address is too long
-                String name = locationName.toString();
-                if (name.isEmpty()) {
-                    name = address.getFeatureName();
-                    if (address.getLocality() != null) {
-                        name += ", " + address.getLocality();
-                    }
-                    if (address.getCountryName() != null) {
-                        name += ", " + address.getCountryName();
-                    }
+                if (location.getName() == null) {
+                    location.setName(query);
                 }
                 
-                // Create location object
-                selectedLocation = new Location(
-                        address.getLatitude(),
-                        address.getLongitude(),
-                        name);
-                
-                // Add marker and move camera
-                addMarkerToMap(position, name);
+                // Select the location, add marker and move camera
+                selectedLocation = location;
+                LatLng position = new LatLng(location.getLatitude(), location.getLongitude());
+                addMarkerToMap(position, location.getName());
                 map.animateCamera(CameraUpdateFactory.newLatLngZoom(position, 15));
                 
                 // Update display
                 updateSelectedLocationDisplay();
-            } else {
-                Toast.makeText(this, "Location not found", Toast.LENGTH_SHORT).show();
             }
-        } catch (IOException e) {
-            Toast.makeText(this, "Geocoding error, please try again", Toast.LENGTH_SHORT).show();
+            
+            @Override
+            public void onError(IOException e) {
+                Toast.makeText(LocationSelectionActivity.this, "Geocoding error, please try again",
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+    
+    /**
+     * Look up places matching the search text online, to merge into the suggestions
+     *
+     * @param query Search text
+     */
+    private void suggestOnline(String query) {
+        if (query.length() < MIN_ONLINE_QUERY_LENGTH) {
+            geocodingService.cancelSuggestions();
+            return;
+        }
+        geocodingService.suggest(query, new GeocodingService.Callback<List<Location>>() {
+            @Override
+            public void onResult(List<Location> places) {
+                suggestionAdapter.addOnlinePlaces(query, places);
+            }
+            
+            @Override
+            public void onError(IOException e) {
+                // Offline suggestions are still shown
+            }
+        });
+    }
+    
+    /**
+     * Select a picked suggestion without geocoding it again
+     *
+     * @param location Suggested place
+     */
+    private void selectSuggestion(Location location) {
+        geocodingService.cancelSuggestions();
+        selectedLocation = location;
+        LatLng position = new LatLng(location.getLatitude(), location.getLongitude());
+        if (map != null) {
+            addMarkerToMap(position, location.getName());
+            map.animateCamera(CameraUpdateFactory.newLatLngZoom(position, 15));
         }
+        updateSelectedLocationDisplay();
     }
     
     /**
-     * Reverse geocode coordinates to get location name
+     * Select coordinates and reverse geocode them to get the location name. The marker
+     * moves at once, labelled with the coordinates until the name arrives.
      *
      * @param latitude Latitude
      * @param longitude Longitude
      */
     private void reverseGeocode(double latitude, double longitude) {
-        Geocoder geocoder = new Geocoder(this, Locale.getDefault());
-        try {
-            List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
-            if (addresses != null && !addresses.isEmpty()) {
-                Address address = addresses.get(0);
-                
-                // Build location name from address
-                StringBuilder locationName = new StringBuilder();
-                for (int i = 0; i <= address.getMaxAddressLineIndex(); i++) {
-                    if (i > 0) locationName.append(", ");
-                    locationName.append(address.getAddressLine(i));
-                }
-                
-                // Use a short version if full address is empty
-                String name = locationName.toString();
-                if (name.isEmpty()) {
-                    name = address.getFeatureName();
-                    if (address.getLocality() != null) {
-                        name += ", " + address.getLocality();
-                    }
-                    if (address.getCountryName() != null) {
-                        name += ", " + address.getCountryName();
-                    }
-                }
-                
-                // If we still don't have a name, use the coordinates
-                if (name == null || name.isEmpty()) {
-                    name = String.format(Locale.US, "%.6f, %.6f", latitude, longitude);
+        showSelectedLocation(latitude, longitude, formatCoordinates(latitude, longitude));
+        
+        geocodingService.reverseGeocode(latitude, longitude, new GeocodingService.Callback<String>() {
+            @Override
+            public void onResult(String name) {
+                // No address found keeps the coordinates as the name
+                if (name != null) {
+                    showSelectedLocation(latitude, longitude, name);
                 }
-                
-                // Create location object
-                selectedLocation = new Location(latitude, longitude, name);
-                
-                // Add marker
-                LatLng position = new LatLng(latitude, longitude);
-                addMarkerToMap(position, name);
-                
-                // Update display
-                updateSelectedLocationDisplay();
-            } else {
-                // No address found, use coordinates as the name
-                String name = String.format(Locale.US, "%.6f, %.6f", latitude, longitude);
-                selectedLocation = new Location(latitude, longitude, name);
-                
-                LatLng position = new LatLng(latitude, longitude);
-                addMarkerToMap(position, name);
-                
-                updateSelectedLocationDisplay();
             }
-        } catch (IOException e) {
-            // Handle geocoding failure
-            String name = String.format(Locale.US, "%.6f, %.6f", latitude, longitude);
-            selectedLocation = new Location(latitude, longitude, name);
-            
-            LatLng position = new LatLng(latitude, longitude);
-            addMarkerToMap(position, name);
             
-            updateSelectedLocationDisplay();
-        }
+            @Override
+            public void onError(IOException e) {
+                // Geocoding failure keeps the coordinates as the name
+            }
+        });
+    }
+    
+    /**
+     * Select a location and show it on the map
+     */
+    private void showSelectedLocation(double latitude, double longitude, String name) {
+        selectedLocation = new Location(latitude, longitude, name);
+        addMarkerToMap(new LatLng(latitude, longitude), name);
+        updateSelectedLocationDisplay();
+    }
+    
+    private static String formatCoordinates(double latitude, double longitude) {
+        return DisplayFormatter.coordinates(latitude, longitude, 6);
     }
     
     /**
@@ -307,9 +352,8 @@ public class LocationSelectionActivity extends AppCompatActivity implements OnMa
     private void updateSelectedLocationDisplay() {
         if (selectedLocation != null) {
             selectedLocationText.setText(selectedLocation.getName());
-            selectedCoordinatesText.setText(String.format(Locale.US, 
-                    "%.6f, %.6f", 
-                    selectedLocation.getLatitude(), 
+            selectedCoordinatesText.setText(formatCoordinates(
+                    selectedLocation.getLatitude(),
                     selectedLocation.getLongitude()));
             confirmButton.setEnabled(true);
         } else {
@@ -331,6 +375,18 @@ public class LocationSelectionActivity extends AppCompatActivity implements OnMa
         }
     }
     
+    @Override
+    protected void onDestroy() {
+        geocodingService.release();
+        if (photoMapLayer != null) {
+            photoMapLayer.release();
+        }
+        if (heatmapTileProvider != null) {
+            heatmapTileProvider.release();
+        }
+        super.onDestroy();
+    }
+    
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
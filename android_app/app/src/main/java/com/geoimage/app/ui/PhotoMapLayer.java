@@ -0,0 +1,281 @@
+package com.geoimage.app.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import com.geoimage.app.R;
+import com.geoimage.app.data.ClusterPyramid;
+import com.geoimage.app.data.GeoImageCatalog;
+import com.geoimage.app.model.GeoImageStore;
+import com.google.android.gms.maps.CameraUpdateFactory;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows every geotagged photo in the library on a map as clustered markers.
+ * The catalog is loaded and clustered for all zoom levels on a background
+ * thread; after that each camera move only looks up the clusters in view and
+ * adds or removes the markers that changed. Tapping a cluster zooms in on it
+ * until the finest clustering level; from there on zooming no longer splits
+ * it, so tapping it spreads its newest images around it instead, until the
+ * camera moves. All methods must be called on the main thread.
+ */
+public class PhotoMapLayer {
+    private static final String TAG = "PhotoMapLayer";
+    private static final int CLUSTER_ICON_DP = 40;
+    // Cluster sizes are rounded down to these, so only a few icons are ever drawn
+    private static final int[] COUNT_BUCKETS = { 10, 20, 50, 100, 200, 500, 1000 };
+    private static final int MAX_SPREAD_MARKERS = 50;
+    // Distance between spread markers, about a pin's width
+    private static final int SPREAD_SPACING_DP = 24;
+    private static final double GOLDEN_ANGLE = Math.PI * (3 - Math.sqrt(5));
+
+    private final Context context;
+    private final GoogleMap map;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<Long, Marker> markers = new HashMap<>();
+    private final Map<String, BitmapDescriptor> clusterIcons = new HashMap<>();
+    private final List<Marker> spreadMarkers = new ArrayList<>();
+    private GeoImageStore store;
+    private ClusterPyramid pyramid;
+    // Key of the cluster whose images are spread, or -1
+    private long spreadKey = -1;
+    private boolean released;
+
+    /**
+     * Tag of a cluster's marker
+     */
+    private static class ClusterTag {
+        final long key;
+        final int count;
+
+        ClusterTag(long key, int count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    /**
+     * @param context Activity context
+     * @param map Map to draw on
+     */
+    public PhotoMapLayer(Context context, GoogleMap map) {
+        this.context = context;
+        this.map = map;
+    }
+
+    /**
+     * Load and cluster the library in the background, then show it
+     */
+    public void load() {
+        GeoImageCatalog catalog = GeoImageCatalog.getInstance(context);
+        executor.execute(() -> {
+            GeoImageStore loadedStore = catalog.getStore();
+            long start = System.nanoTime();
+            ClusterPyramid loadedPyramid = new ClusterPyramid(loadedStore);
+            Log.d(TAG, "Clustered " + loadedStore.size() + " images in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+
+            mainHandler.post(() -> {
+                if (released) {
+                    return;
+                }
+                store = loadedStore;
+                pyramid = loadedPyramid;
+                refresh();
+            });
+        });
+    }
+
+    /**
+     * Show the clusters in view, e.g. when the camera stops moving
+     */
+    public void refresh() {
+        if (pyramid == null || released) {
+            return;
+        }
+        // Spread markers are laid out in pixels, which no longer fit once the camera has moved
+        collapse();
+
+        LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+        float zoom = map.getCameraPosition().zoom;
+        Map<Long, Marker> previous = new HashMap<>(markers);
+        markers.clear();
+        pyramid.query(zoom, bounds.southwest.latitude, bounds.southwest.longitude,
+                bounds.northeast.latitude, bounds.northeast.longitude,
+                (key, latitude, longitude, count, representative) -> {
+                    Marker marker = previous.remove(key);
+                    if (marker == null) {
+                        marker = map.addMarker(createMarkerOptions(latitude, longitude, count, representative));
+                    }
+                    if (marker != null) {
+                        marker.setTag(new ClusterTag(key, count));
+                        markers.put(key, marker);
+                    }
+                });
+
+        // Whatever wasn't found again has left the view or been merged
+        for (Marker marker : previous.values()) {
+            marker.remove();
+        }
+    }
+
+    /**
+     * Handle a marker click
+     *
+     * @param marker Clicked marker
+     * @return true if the click was handled, false for the map's default of
+     * centering on the marker and showing its info window
+     */
+    public boolean onMarkerClick(Marker marker) {
+        if (spreadMarkers.contains(marker)) {
+            // Centering on it would move the camera and collapse the spread
+            marker.showInfoWindow();
+            return true;
+        }
+        Object tag = marker.getTag();
+        if (!(tag instanceof ClusterTag) || ((ClusterTag) tag).count <= 1) {
+            return false;
+        }
+
+        long key = ((ClusterTag) tag).key;
+        float zoom = map.getCameraPosition().zoom;
+        if (zoom < ClusterPyramid.MAX_ZOOM) {
+            map.animateCamera(CameraUpdateFactory.newLatLngZoom(marker.getPosition(),
+                    Math.min(zoom + 2, ClusterPyramid.MAX_ZOOM)));
+        } else if (key == spreadKey) {
+            collapse();
+        } else {
+            spread(key, marker.getPosition());
+        }
+        return true;
+    }
+
+    /**
+     * Remove the markers and stop loading
+     */
+    public void release() {
+        released = true;
+        executor.shutdownNow();
+        collapse();
+        for (Iterator<Marker> iterator = markers.values().iterator(); iterator.hasNext(); ) {
+            iterator.next().remove();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Show a cluster's newest images as single markers on a spiral around it.
+     * The cluster's marker stays in the middle, and tapping it again collapses them.
+     */
+    private void spread(long key, LatLng center) {
+        collapse();
+        int[] members = pyramid.getMembers(key);
+        int count = Math.min(members.length, MAX_SPREAD_MARKERS);
+        Projection projection = map.getProjection();
+        Point centerPoint = projection.toScreenLocation(center);
+        float spacing = SPREAD_SPACING_DP * context.getResources().getDisplayMetrics().density;
+        for (int i = 0; i < count; i++) {
+            // Evenly spaced for any count, newest nearest the middle
+            double radius = spacing * Math.sqrt(i + 1);
+            double angle = i * GOLDEN_ANGLE;
+            Point point = new Point(centerPoint.x + (int) Math.round(radius * Math.cos(angle)),
+                    centerPoint.y + (int) Math.round(radius * Math.sin(angle)));
+            Marker marker = map.addMarker(createImageMarkerOptions(projection.fromScreenLocation(point), members[i]));
+            if (marker != null) {
+                spreadMarkers.add(marker);
+            }
+        }
+        spreadKey = key;
+    }
+
+    /**
+     * Remove the markers of a spread cluster, if any
+     */
+    private void collapse() {
+        for (Marker marker : spreadMarkers) {
+            marker.remove();
+        }
+        spreadMarkers.clear();
+        spreadKey = -1;
+    }
+
+    private MarkerOptions createMarkerOptions(double latitude, double longitude, int count, int representative) {
+        LatLng position = new LatLng(latitude, longitude);
+        if (count == 1) {
+            return createImageMarkerOptions(position, representative);
+        }
+        return new MarkerOptions()
+                .position(position)
+                .anchor(0.5f, 0.5f)
+                .icon(getClusterIcon(count));
+    }
+
+    private MarkerOptions createImageMarkerOptions(LatLng position, int index) {
+        return new MarkerOptions()
+                .position(position)
+                .title(store.getLocationName(index))
+                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_AZURE));
+    }
+
+    private BitmapDescriptor getClusterIcon(int count) {
+        String label = String.valueOf(count);
+        for (int i = COUNT_BUCKETS.length - 1; i >= 0; i--) {
+            if (count >= COUNT_BUCKETS[i]) {
+                label = COUNT_BUCKETS[i] + "+";
+                break;
+            }
+        }
+
+        BitmapDescriptor icon = clusterIcons.get(label);
+        if (icon == null) {
+            icon = BitmapDescriptorFactory.fromBitmap(drawClusterIcon(label));
+            clusterIcons.put(label, icon);
+        }
+        return icon;
+    }
+
+    private Bitmap drawClusterIcon(String label) {
+        float density = context.getResources().getDisplayMetrics().density;
+        int size = Math.round(CLUSTER_ICON_DP * density);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(ContextCompat.getColor(context, R.color.white));
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+        paint.setColor(ContextCompat.getColor(context, R.color.primaryColor));
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f - 2 * density, paint);
+
+        paint.setColor(ContextCompat.getColor(context, R.color.white));
+        paint.setTextAlign(Paint.Align.CENTER);
+        paint.setTextSize(14 * density);
+        paint.setFakeBoldText(true);
+        float baseline = size / 2f - (paint.descent() + paint.ascent()) / 2;
+        canvas.drawText(label, size / 2f, baseline, paint);
+        return bitmap;
+    }
+}
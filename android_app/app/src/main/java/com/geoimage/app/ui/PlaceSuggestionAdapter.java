@@ -0,0 +1,152 @@
+package com.geoimage.app.ui;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import com.geoimage.app.geocode.Gazetteer;
+import com.geoimage.app.geocode.OfflineGeocoder;
+import com.geoimage.app.geocode.PlaceTrie;
+import com.geoimage.app.model.Location;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Suggestions for the location search box. Every keystroke completes the
+ * typed prefix against the offline {@link PlaceTrie}, which answers in well
+ * under a frame without the network; places found by the online geocoder
+ * are merged in below them when they arrive, if the text hasn't changed.
+ */
+public class PlaceSuggestionAdapter extends BaseAdapter implements Filterable {
+    private final Context context;
+    private final OfflineGeocoder offlineGeocoder;
+    private List<Location> offlinePlaces = Collections.emptyList();
+    private List<Location> onlinePlaces = Collections.emptyList();
+    private final List<Location> places = new ArrayList<>();
+    // Normalized text the current suggestions are for
+    private String query = "";
+
+    /**
+     * @param context Activity context
+     */
+    public PlaceSuggestionAdapter(Context context) {
+        this.context = context;
+        this.offlineGeocoder = OfflineGeocoder.getInstance(context);
+    }
+
+    /**
+     * Merge places found online for some text, if it is still what the suggestions are for
+     *
+     * @param text Text the places were found for
+     * @param found Places found
+     */
+    public void addOnlinePlaces(String text, List<Location> found) {
+        if (!PlaceTrie.normalize(text).equals(query)) {
+            return;
+        }
+        onlinePlaces = found;
+        merge();
+    }
+
+    @Override
+    public int getCount() {
+        return places.size();
+    }
+
+    @Override
+    public Location getItem(int position) {
+        return places.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = convertView;
+        if (view == null) {
+            view = LayoutInflater.from(context)
+                    .inflate(android.R.layout.simple_dropdown_item_1line, parent, false);
+        }
+        ((TextView) view).setText(getItem(position).getName());
+        return view;
+    }
+
+    @Override
+    public Filter getFilter() {
+        return filter;
+    }
+
+    private void merge() {
+        places.clear();
+        places.addAll(offlinePlaces);
+        for (Location online : onlinePlaces) {
+            if (!containsName(places, online.getName())) {
+                places.add(online);
+            }
+        }
+        if (places.isEmpty()) {
+            notifyDataSetInvalidated();
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    private static boolean containsName(List<Location> list, String name) {
+        for (Location location : list) {
+            if (location.getName().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Completes prefixes on the filter's worker thread and publishes on the main thread
+     */
+    private final Filter filter = new Filter() {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            List<Location> found = new ArrayList<>();
+            PlaceTrie trie = constraint != null ? offlineGeocoder.getPlaceTrie() : null;
+            if (trie != null) {
+                Gazetteer gazetteer = trie.getGazetteer();
+                for (int place : trie.complete(constraint.toString())) {
+                    found.add(new Location(gazetteer.getLatitude(place), gazetteer.getLongitude(place),
+                            gazetteer.getDisplayName(place)));
+                }
+            }
+            FilterResults results = new FilterResults();
+            results.values = found;
+            results.count = found.size();
+            return results;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            String newQuery = constraint != null ? PlaceTrie.normalize(constraint.toString()) : "";
+            if (!newQuery.equals(query)) {
+                // Online places found for other text don't apply any more
+                query = newQuery;
+                onlinePlaces = Collections.emptyList();
+            }
+            offlinePlaces = results.values != null ? (List<Location>) results.values : Collections.emptyList();
+            merge();
+        }
+
+        @Override
+        public CharSequence convertResultToString(Object resultValue) {
+            return ((Location) resultValue).getName();
+        }
+    };
+}
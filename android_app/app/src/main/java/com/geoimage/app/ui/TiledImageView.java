@@ -0,0 +1,492 @@
+package com.geoimage.app.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.geoimage.app.util.BitmapDecoder;
+import com.geoimage.app.util.BitmapPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Zoomable image view for large photos. A base layer sampled down to the view
+ * size is shown first; when zooming in past its resolution, only the visible
+ * tiles are decoded with BitmapRegionDecoder at the sample size the zoom level
+ * needs. Tiles are kept in an LRU bounded in bytes, so memory stays bounded
+ * whatever the size of the source image. All public methods must be called on
+ * the main thread.
+ */
+public class TiledImageView extends View {
+    private static final String TAG = "TiledImageView";
+    private static final int TILE_SIZE = 256;
+    // Largest zoom, in screen pixels per image pixel
+    private static final float MAX_SCALE = 2f;
+    private static final float DOUBLE_TAP_ZOOM = 3f;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect imageRect = new Rect();
+    private final Rect tileRect = new Rect();
+    private final LruCache<Long, Bitmap> tileCache;
+    private final Map<Long, Future<?>> pendingTiles = new HashMap<>();
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+
+    private Uri uri;
+    private boolean loading;
+    private boolean released;
+    private OnImageLoadListener listener;
+
+    // Set once the image is loaded; the decoder is only used on the executor thread
+    private BitmapRegionDecoder decoder;
+    private Bitmap baseLayer;
+    private int baseSampleSize;
+    private int imageWidth;
+    private int imageHeight;
+
+    // Screen pixels per image pixel, and the screen position of the image origin
+    private float scale;
+    private float minScale;
+    private float maxScale;
+    private float translateX;
+    private float translateY;
+
+    // Tiles covering the visible part of the image at the current zoom
+    private int tileSampleSize;
+    private int firstColumn;
+    private int lastColumn;
+    private int firstRow;
+    private int lastRow;
+
+    /**
+     * Notified on the main thread once the base layer is shown or loading fails
+     */
+    public interface OnImageLoadListener {
+        void onImageLoaded();
+
+        void onImageLoadFailed(IOException e);
+    }
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        int maxTileBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        tileCache = new LruCache<Long, Bitmap>(maxTileBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+                // Tiles are only drawn on the main thread, where eviction happens too
+                BitmapPool.getInstance().put(oldValue);
+            }
+        };
+        scaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+        gestureDetector = new GestureDetector(context, new GestureListener());
+    }
+
+    /**
+     * Show an image. Loading starts once the view has been laid out.
+     *
+     * @param uri Content URI of the image
+     * @param listener Listener for the result, or null
+     */
+    public void setImageUri(Uri uri, OnImageLoadListener listener) {
+        this.uri = uri;
+        this.listener = listener;
+        if (getWidth() > 0 && getHeight() > 0) {
+            loadImage();
+        }
+    }
+
+    /**
+     * @return Base layer sampled down to the view size, or null while loading
+     */
+    public Bitmap getBaseLayer() {
+        return baseLayer;
+    }
+
+    /**
+     * Stop decoding and hand the tiles back to the bitmap pool
+     *
+     * @param reuseBaseLayer true to pool the base layer as well; pass false while
+     *                       something else still reads it
+     */
+    public void release(boolean reuseBaseLayer) {
+        if (released) {
+            return;
+        }
+        released = true;
+
+        for (Future<?> future : pendingTiles.values()) {
+            future.cancel(false);
+        }
+        pendingTiles.clear();
+        tileCache.evictAll();
+
+        if (reuseBaseLayer && baseLayer != null) {
+            BitmapPool.getInstance().put(baseLayer);
+        }
+        baseLayer = null;
+
+        // Recycle the decoder on its own thread, after any decode that is still running
+        BitmapRegionDecoder regionDecoder = decoder;
+        decoder = null;
+        if (regionDecoder != null) {
+            executor.execute(regionDecoder::recycle);
+        }
+        executor.shutdown();
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        if (baseLayer != null) {
+            resetScale();
+        } else if (uri != null && width > 0 && height > 0) {
+            loadImage();
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (baseLayer == null) {
+            return super.onTouchEvent(event);
+        }
+        boolean handled = scaleDetector.onTouchEvent(event);
+        handled |= gestureDetector.onTouchEvent(event);
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (baseLayer == null) {
+            return;
+        }
+
+        canvas.save();
+        canvas.translate(translateX, translateY);
+        canvas.scale(scale, scale);
+
+        imageRect.set(0, 0, imageWidth, imageHeight);
+        canvas.drawBitmap(baseLayer, null, imageRect, paint);
+
+        // Sharper tiles are drawn over the base layer as they arrive
+        if (tileSampleSize < baseSampleSize) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    Bitmap tile = tileCache.get(tileKey(tileSampleSize, column, row));
+                    if (tile != null) {
+                        setTileRect(tileSampleSize, column, row);
+                        canvas.drawBitmap(tile, null, tileRect, paint);
+                    }
+                }
+            }
+        }
+        canvas.restore();
+    }
+
+    private void loadImage() {
+        if (loading || released) {
+            return;
+        }
+        loading = true;
+
+        Uri source = uri;
+        int viewWidth = getWidth();
+        int viewHeight = getHeight();
+        executor.execute(() -> {
+            BitmapRegionDecoder regionDecoder = null;
+            Bitmap base;
+            int width;
+            int height;
+            int sampleSize;
+            try {
+                try (InputStream inputStream = getContext().getContentResolver().openInputStream(source)) {
+                    if (inputStream == null) {
+                        throw new IOException("Unable to open " + source);
+                    }
+                    regionDecoder = BitmapRegionDecoder.newInstance(inputStream, false);
+                } catch (IOException e) {
+                    // Formats the region decoder doesn't support are shown without tiles
+                    Log.w(TAG, "Region decoding unavailable: " + e.getMessage());
+                }
+
+                if (regionDecoder != null) {
+                    width = regionDecoder.getWidth();
+                    height = regionDecoder.getHeight();
+                    sampleSize = sampleSizeFor(Math.min((float) viewWidth / width, (float) viewHeight / height));
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = sampleSize;
+                    options.inMutable = true;
+                    base = regionDecoder.decodeRegion(new Rect(0, 0, width, height), options);
+                } else {
+                    base = BitmapDecoder.decodeUri(getContext().getContentResolver(), source,
+                            viewWidth, viewHeight, Bitmap.Config.ARGB_8888);
+                    width = base != null ? base.getWidth() : 0;
+                    height = base != null ? base.getHeight() : 0;
+                    sampleSize = 1;
+                }
+                if (base == null) {
+                    throw new IOException("Unable to decode " + source);
+                }
+            } catch (IOException e) {
+                if (regionDecoder != null) {
+                    regionDecoder.recycle();
+                }
+                mainHandler.post(() -> {
+                    if (!released && listener != null) {
+                        listener.onImageLoadFailed(e);
+                    }
+                });
+                return;
+            }
+
+            BitmapRegionDecoder loadedDecoder = regionDecoder;
+            mainHandler.post(() -> onImageLoaded(loadedDecoder, base, width, height, sampleSize));
+        });
+    }
+
+    private void onImageLoaded(BitmapRegionDecoder regionDecoder, Bitmap base,
+                               int width, int height, int sampleSize) {
+        if (released) {
+            // Nothing else has seen the decoder, so it can be recycled here
+            BitmapPool.getInstance().put(base);
+            if (regionDecoder != null) {
+                regionDecoder.recycle();
+            }
+            return;
+        }
+
+        decoder = regionDecoder;
+        baseLayer = base;
+        baseSampleSize = sampleSize;
+        imageWidth = width;
+        imageHeight = height;
+        resetScale();
+
+        if (listener != null) {
+            listener.onImageLoaded();
+        }
+    }
+
+    /**
+     * Fit the whole image in the view
+     */
+    private void resetScale() {
+        minScale = Math.min((float) getWidth() / imageWidth, (float) getHeight() / imageHeight);
+        maxScale = Math.max(minScale, MAX_SCALE);
+        setTransform(minScale, 0, 0);
+    }
+
+    /**
+     * Apply a new zoom and pan, keeping the image inside the view, and request the tiles it needs
+     */
+    private void setTransform(float newScale, float newTranslateX, float newTranslateY) {
+        scale = Math.max(minScale, Math.min(maxScale, newScale));
+        translateX = clampTranslation(newTranslateX, imageWidth * scale, getWidth());
+        translateY = clampTranslation(newTranslateY, imageHeight * scale, getHeight());
+        updateTiles();
+        invalidate();
+    }
+
+    private static float clampTranslation(float translation, float contentSize, int viewSize) {
+        if (contentSize <= viewSize) {
+            // Center content smaller than the view
+            return (viewSize - contentSize) / 2;
+        }
+        return Math.max(viewSize - contentSize, Math.min(0, translation));
+    }
+
+    /**
+     * Work out the visible tiles at the current zoom, cancel decodes that are no
+     * longer needed and start the missing ones
+     */
+    private void updateTiles() {
+        tileSampleSize = sampleSizeFor(scale);
+        if (decoder == null || tileSampleSize >= baseSampleSize) {
+            cancelTiles(true);
+            return;
+        }
+
+        int tileExtent = TILE_SIZE * tileSampleSize;
+        float left = Math.max(0, -translateX / scale);
+        float top = Math.max(0, -translateY / scale);
+        float right = Math.min(imageWidth, (getWidth() - translateX) / scale);
+        float bottom = Math.min(imageHeight, (getHeight() - translateY) / scale);
+        firstColumn = (int) (left / tileExtent);
+        lastColumn = (int) Math.ceil(right / tileExtent) - 1;
+        firstRow = (int) (top / tileExtent);
+        lastRow = (int) Math.ceil(bottom / tileExtent) - 1;
+
+        cancelTiles(false);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                long key = tileKey(tileSampleSize, column, row);
+                if (tileCache.get(key) == null && !pendingTiles.containsKey(key)) {
+                    requestTile(key, tileSampleSize, column, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel pending tile decodes
+     *
+     * @param all true to cancel every decode, false for those outside the visible tiles only
+     */
+    private void cancelTiles(boolean all) {
+        Iterator<Map.Entry<Long, Future<?>>> iterator = pendingTiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Future<?>> entry = iterator.next();
+            long key = entry.getKey();
+            int sampleSize = (int) (key >>> 48);
+            int column = (int) ((key >>> 24) & 0xFFFFFF);
+            int row = (int) (key & 0xFFFFFF);
+            if (all || sampleSize != tileSampleSize || column < firstColumn || column > lastColumn
+                    || row < firstRow || row > lastRow) {
+                entry.getValue().cancel(false);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void requestTile(long key, int sampleSize, int column, int row) {
+        BitmapRegionDecoder regionDecoder = decoder;
+        Rect region = new Rect(column * TILE_SIZE * sampleSize, row * TILE_SIZE * sampleSize,
+                Math.min(imageWidth, (column + 1) * TILE_SIZE * sampleSize),
+                Math.min(imageHeight, (row + 1) * TILE_SIZE * sampleSize));
+
+        pendingTiles.put(key, executor.submit(() -> {
+            Bitmap tile = decodeTile(regionDecoder, region, sampleSize);
+            mainHandler.post(() -> {
+                if (pendingTiles.remove(key) == null || tile == null) {
+                    // Cancelled or scrolled away while decoding
+                    if (tile != null) {
+                        BitmapPool.getInstance().put(tile);
+                    }
+                    return;
+                }
+                tileCache.put(key, tile);
+                invalidate();
+            });
+        }));
+    }
+
+    /**
+     * Decode one tile into a pooled bitmap. Runs on the executor thread.
+     */
+    private static Bitmap decodeTile(BitmapRegionDecoder regionDecoder, Rect region, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        // Photos have no alpha, so tiles can use half the memory
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        options.inBitmap = BitmapPool.getInstance().get(
+                (region.width() + sampleSize - 1) / sampleSize,
+                (region.height() + sampleSize - 1) / sampleSize,
+                Bitmap.Config.RGB_565);
+        try {
+            return regionDecoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap doesn't fit this region after all
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            return regionDecoder.decodeRegion(region, options);
+        }
+    }
+
+    /**
+     * Largest power-of-two sample size that still gives at least one decoded pixel per screen pixel
+     */
+    private static int sampleSizeFor(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void setTileRect(int sampleSize, int column, int row) {
+        int tileExtent = TILE_SIZE * sampleSize;
+        tileRect.set(column * tileExtent, row * tileExtent,
+                Math.min(imageWidth, (column + 1) * tileExtent),
+                Math.min(imageHeight, (row + 1) * tileExtent));
+    }
+
+    private static long tileKey(int sampleSize, int column, int row) {
+        return ((long) sampleSize << 48) | ((long) column << 24) | row;
+    }
+
+    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            zoomTo(scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+            return true;
+        }
+    }
+
+    private class GestureListener extends GestureDetector.SimpleOnGestureListener {
+        @Override
+        public boolean onDown(MotionEvent e) {
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            if (scaleDetector.isInProgress()) {
+                return false;
+            }
+            setTransform(scale, translateX - distanceX, translateY - distanceY);
+            return true;
+        }
+
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            if (scale > minScale) {
+                resetScale();
+            } else {
+                zoomTo(minScale * DOUBLE_TAP_ZOOM, e.getX(), e.getY());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Zoom while keeping the image point under the focus where it is on screen
+     */
+    private void zoomTo(float newScale, float focusX, float focusY) {
+        float clamped = Math.max(minScale, Math.min(maxScale, newScale));
+        float ratio = clamped / scale;
+        setTransform(clamped, focusX - (focusX - translateX) * ratio, focusY - (focusY - translateY) * ratio);
+    }
+}
@@ -0,0 +1,149 @@
+package com.geoimage.app.util;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes bitmaps scaled down to a requested size. Every decode reads the
+ * bounds first, picks a power-of-two inSampleSize and then decodes into a
+ * bitmap taken from the {@link BitmapPool} when one fits.
+ */
+public final class BitmapDecoder {
+
+    /**
+     * Something BitmapFactory can decode, possibly more than once
+     */
+    private interface Source {
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Decode a file
+     *
+     * @param filePath Path to the image file
+     * @param reqWidth Required width, or 0 to decode at full size
+     * @param reqHeight Required height, or 0 to decode at full size
+     * @param config Preferred bitmap config
+     * @return Decoded bitmap, or null if the file can't be decoded
+     */
+    public static Bitmap decodeFile(String filePath, int reqWidth, int reqHeight, Bitmap.Config config) {
+        try {
+            return decode(options -> BitmapFactory.decodeFile(filePath, options), reqWidth, reqHeight, config);
+        } catch (IOException e) {
+            // decodeFile reports failures by returning null
+            return null;
+        }
+    }
+
+    /**
+     * Decode an image held in memory
+     *
+     * @param data Encoded image
+     * @param reqWidth Required width, or 0 to decode at full size
+     * @param reqHeight Required height, or 0 to decode at full size
+     * @param config Preferred bitmap config
+     * @return Decoded bitmap, or null if the data can't be decoded
+     */
+    public static Bitmap decodeByteArray(byte[] data, int reqWidth, int reqHeight, Bitmap.Config config) {
+        try {
+            return decode(options -> BitmapFactory.decodeByteArray(data, 0, data.length, options),
+                    reqWidth, reqHeight, config);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode a content URI. The stream is opened once for the bounds and once for the pixels.
+     *
+     * @param resolver Content resolver
+     * @param uri Image URI
+     * @param reqWidth Required width, or 0 to decode at full size
+     * @param reqHeight Required height, or 0 to decode at full size
+     * @param config Preferred bitmap config
+     * @return Decoded bitmap, or null if the image can't be decoded
+     * @throws IOException if the URI can't be opened
+     */
+    public static Bitmap decodeUri(ContentResolver resolver, Uri uri, int reqWidth, int reqHeight,
+                                   Bitmap.Config config) throws IOException {
+        return decode(options -> {
+            try (InputStream inputStream = resolver.openInputStream(uri)) {
+                return inputStream != null ? BitmapFactory.decodeStream(inputStream, null, options) : null;
+            }
+        }, reqWidth, reqHeight, config);
+    }
+
+    /**
+     * Calculate the largest power-of-two inSampleSize that keeps both dimensions
+     * at least as large as the required ones
+     *
+     * @param width Image width
+     * @param height Image height
+     * @param reqWidth Required width
+     * @param reqHeight Required height
+     * @return Sample size
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+
+        if (height > reqHeight || width > reqWidth) {
+            final int halfHeight = height / 2;
+            final int halfWidth = width / 2;
+
+            while ((halfHeight / inSampleSize) >= reqHeight && (halfWidth / inSampleSize) >= reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+
+    private static Bitmap decode(Source source, int reqWidth, int reqHeight, Bitmap.Config config)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = config;
+        // Mutable results can go back into the pool once they are no longer shown
+        options.inMutable = true;
+
+        // Round up, since decoders may round the sampled size either way
+        int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        BitmapPool pool = BitmapPool.getInstance();
+        options.inBitmap = pool.getDirty(width, height, config);
+        if (options.inBitmap == null) {
+            return source.decode(options);
+        }
+
+        Bitmap reusable = options.inBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = source.decode(options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap can't hold this image after all
+            options.inBitmap = null;
+            bitmap = source.decode(options);
+        }
+        if (bitmap != reusable) {
+            pool.put(reusable);
+        }
+        return bitmap;
+    }
+}
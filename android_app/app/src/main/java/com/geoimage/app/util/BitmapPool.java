@@ -0,0 +1,177 @@
+package com.geoimage.app.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable bitmaps that are no longer displayed, bucketed by allocation
+ * size and config. Pooled bitmaps are handed to BitmapFactory as inBitmap or
+ * reconfigured for scaling, so decoding thumbnails while scrolling reuses
+ * memory instead of allocating. Only put bitmaps that nothing else references.
+ */
+public class BitmapPool {
+    // Don't hand out a bitmap more than this many times larger than requested
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static BitmapPool instance;
+
+    private final long maxBytes;
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>> buckets =
+            new EnumMap<>(Bitmap.Config.class);
+    // Insertion order, so the oldest bitmaps are dropped when the pool is full
+    private final ArrayDeque<Bitmap> order = new ArrayDeque<>();
+    private long currentBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Get the shared pool, sized to a sixteenth of the heap
+     *
+     * @return Pool instance
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+        }
+        return instance;
+    }
+
+    /**
+     * @param maxBytes Maximum total allocation size of the pooled bitmaps
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Take a bitmap that can be passed as inBitmap for a decode of the given size.
+     * Its dimensions and contents are unspecified.
+     *
+     * @param width Expected decoded width
+     * @param height Expected decoded height
+     * @param config Bitmap config
+     * @return Reusable bitmap, or null if none is pooled
+     */
+    public synchronized Bitmap getDirty(int width, int height, Bitmap.Config config) {
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizes = buckets.get(config);
+        int byteCount = byteCount(width, height, config);
+        Integer size = sizes != null ? sizes.ceilingKey(byteCount) : null;
+        if (size == null || size > byteCount * MAX_SIZE_MULTIPLE) {
+            misses++;
+            return null;
+        }
+
+        ArrayDeque<Bitmap> bucket = sizes.get(size);
+        Bitmap bitmap = bucket.pop();
+        if (bucket.isEmpty()) {
+            sizes.remove(size);
+        }
+        order.remove(bitmap);
+        currentBytes -= bitmap.getAllocationByteCount();
+        hits++;
+        return bitmap;
+    }
+
+    /**
+     * Take a cleared bitmap with exactly the given size, reusing a pooled one if possible
+     *
+     * @param width Width
+     * @param height Height
+     * @param config Bitmap config
+     * @return Transparent bitmap of the requested size
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getDirty(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Return a bitmap to the pool. Immutable or recycled bitmaps are ignored.
+     *
+     * @param bitmap Bitmap that is no longer referenced anywhere else
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null
+                || bitmap.getAllocationByteCount() > maxBytes / 2) {
+            return;
+        }
+        Bitmap.Config config = bitmap.getConfig();
+        int size = bitmap.getAllocationByteCount();
+
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizes = buckets.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<>();
+            buckets.put(config, sizes);
+        }
+        ArrayDeque<Bitmap> bucket = sizes.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            sizes.put(size, bucket);
+        }
+        bucket.push(bitmap);
+        order.add(bitmap);
+        currentBytes += size;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Release every pooled bitmap, e.g. when the system is low on memory
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return Summary of the hit and miss counters and current size, for logging
+     */
+    public synchronized String getStats() {
+        return String.format(Locale.US, "hits=%d, misses=%d, pooled=%d bitmaps, %d/%d bytes",
+                hits, misses, order.size(), currentBytes, maxBytes);
+    }
+
+    private void trimToSize(long size) {
+        Iterator<Bitmap> iterator = order.iterator();
+        while (currentBytes > size && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+
+            int byteCount = bitmap.getAllocationByteCount();
+            TreeMap<Integer, ArrayDeque<Bitmap>> sizes = buckets.get(bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = sizes.get(byteCount);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                sizes.remove(byteCount);
+            }
+            currentBytes -= byteCount;
+            bitmap.recycle();
+        }
+    }
+
+    private static int byteCount(int width, int height, Bitmap.Config config) {
+        int bytesPerPixel;
+        switch (config) {
+            case ALPHA_8:
+                bytesPerPixel = 1;
+                break;
+            case RGB_565:
+            case ARGB_4444:
+                bytesPerPixel = 2;
+                break;
+            default:
+                bytesPerPixel = 4;
+                break;
+        }
+        return width * height * bytesPerPixel;
+    }
+}
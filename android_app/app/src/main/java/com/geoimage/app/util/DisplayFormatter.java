@@ -0,0 +1,148 @@
+package com.geoimage.app.util;
+
+import android.util.LongSparseArray;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Formats the coordinates and dates shown for images without going through
+ * {@link String#format}, which parses its pattern and builds a Formatter on
+ * every call. Coordinates are written digit by digit into a reused buffer,
+ * with the same digits as "%.nf", and date labels are formatted once per
+ * calendar day and then reused, so a library of thousands of images needs
+ * only a few hundred date strings.
+ * <p>
+ * An instance is not thread-safe; use one per thread. The static methods can
+ * be called from any thread.
+ */
+public class DisplayFormatter {
+    private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000 };
+    // Scaled values from here on may have more digits than the double holds, or overflow a long
+    private static final double MAX_FAST_SCALED = 1e15;
+    // Scaling is off by at most a couple of ulps, so fractions further than this from one half round alike
+    private static final int TIE_TOLERANCE_ULPS = 8;
+
+    private final StringBuilder buffer = new StringBuilder(32);
+    private final SimpleDateFormat dateFormat;
+    private final Calendar calendar = Calendar.getInstance();
+    private final Date date = new Date();
+    // Labels by the start of their local day
+    private final LongSparseArray<String> dateLabels = new LongSparseArray<>();
+
+    /**
+     * @param datePattern SimpleDateFormat pattern for dates, e.g. "MMMM d, yyyy"
+     * @param locale Locale for dates
+     */
+    public DisplayFormatter(String datePattern, Locale locale) {
+        dateFormat = new SimpleDateFormat(datePattern, locale);
+    }
+
+    /**
+     * Format coordinates as "latitude, longitude" with the given number of decimals,
+     * like "%.4f, %.4f"
+     *
+     * @param latitude Latitude
+     * @param longitude Longitude
+     * @param decimals Number of decimals, at most 7
+     * @return Formatted coordinates
+     */
+    public String formatCoordinates(double latitude, double longitude, int decimals) {
+        buffer.setLength(0);
+        appendFixed(buffer, latitude, decimals);
+        buffer.append(", ");
+        appendFixed(buffer, longitude, decimals);
+        return buffer.toString();
+    }
+
+    /**
+     * Format the day a time falls on. Times on the same local day share one string.
+     *
+     * @param time Time in milliseconds
+     * @return Formatted date
+     */
+    public String formatDate(long time) {
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long day = calendar.getTimeInMillis();
+
+        String label = dateLabels.get(day);
+        if (label == null) {
+            date.setTime(day);
+            label = dateFormat.format(date);
+            dateLabels.put(day, label);
+        }
+        return label;
+    }
+
+    /**
+     * Format coordinates as "latitude, longitude" with the given number of decimals,
+     * like "%.4f, %.4f"
+     *
+     * @param latitude Latitude
+     * @param longitude Longitude
+     * @param decimals Number of decimals, at most 7
+     * @return Formatted coordinates
+     */
+    public static String coordinates(double latitude, double longitude, int decimals) {
+        StringBuilder builder = new StringBuilder(32);
+        appendFixed(builder, latitude, decimals);
+        builder.append(", ");
+        appendFixed(builder, longitude, decimals);
+        return builder.toString();
+    }
+
+    /**
+     * Append a number with a fixed number of decimals, giving the same digits as "%.nf".
+     * That format rounds the shortest decimal form of the value half up, not its binary
+     * one, so 41.81455 becomes 41.8146 although the double is slightly below it. Values
+     * that are within rounding error of such a tie, or too large to scale exactly, are
+     * rounded as decimals, which allocates; all others append without allocating.
+     *
+     * @param builder Builder to append to
+     * @param value Value to append
+     * @param decimals Number of decimals, at most 7
+     */
+    public static void appendFixed(StringBuilder builder, double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            builder.append(value);
+            return;
+        }
+        // Like "%.nf", negative values keep their sign even where they round to zero
+        if (Double.doubleToRawLongBits(value) < 0) {
+            builder.append('-');
+        }
+        double magnitude = Math.abs(value);
+        long scale = POWERS_OF_TEN[decimals];
+        double scaledValue = magnitude * scale;
+        double whole = Math.floor(scaledValue);
+        double remainder = scaledValue - whole;
+        if (scaledValue >= MAX_FAST_SCALED
+                || Math.abs(remainder - 0.5) <= TIE_TOLERANCE_ULPS * Math.ulp(scaledValue)) {
+            builder.append(new BigDecimal(Double.toString(magnitude))
+                    .setScale(decimals, RoundingMode.HALF_UP).toPlainString());
+            return;
+        }
+
+        long scaled = (long) whole + (remainder > 0.5 ? 1 : 0);
+        builder.append(scaled / scale);
+        if (decimals == 0) {
+            return;
+        }
+
+        builder.append('.');
+        long fraction = scaled % scale;
+        // Leading zeros of the fraction
+        for (long digit = scale / 10; digit > fraction && digit > 1; digit /= 10) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+}
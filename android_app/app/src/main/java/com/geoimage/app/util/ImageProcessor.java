@@ -3,6 +3,9 @@ package com.geoimage.app.util;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Environment;
@@ -10,9 +13,16 @@ import android.util.Log;
 
 import androidx.core.content.FileProvider;
 
+import com.geoimage.app.exif.ExifGpsReader;
+import com.geoimage.app.exif.ExifPatcher;
+import com.geoimage.app.exif.ExifSegment;
+import com.geoimage.app.exif.JpegExifRewriter;
 import com.geoimage.app.model.Location;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -26,6 +36,22 @@ import java.util.Locale;
 public class ImageProcessor {
     private static final String TAG = "ImageProcessor";
     private static final String FILE_PROVIDER_AUTHORITY = "com.geoimage.app.fileprovider";
+    private static final String EXIF_DATE_FORMAT = "yyyy:MM:dd HH:mm:ss";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    
+    // Embedded thumbnails cover a gallery cell without a full decode
+    private static final int EXIF_THUMBNAIL_SIZE = 512;
+    private static final int MAX_EXIF_THUMBNAIL_BYTES = 48 * 1024;
+    private static final int[] EXIF_THUMBNAIL_QUALITIES = { 80, 65, 50 };
+    
+    private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+    
+    private static final ThreadLocal<ExifGpsReader> EXIF_READER = new ThreadLocal<ExifGpsReader>() {
+        @Override
+        protected ExifGpsReader initialValue() {
+            return new ExifGpsReader();
+        }
+    };
 
     /**
      * Convert decimal coordinates to GPS DMS (Degrees, Minutes, Seconds) format
@@ -46,13 +72,73 @@ public class ImageProcessor {
     }
     
     /**
-     * Add geolocation metadata to an image file using Android's ExifInterface
+     * Add geolocation metadata to an image file. JPEGs whose EXIF segment has room
+     * for the new GPS data are patched in place; other JPEGs are rewritten once with
+     * a fresh EXIF segment, and non-JPEG formats go through ExifInterface. JPEGs
+     * without an embedded thumbnail get one on the way.
      *
      * @param imagePath Full path to the image file
      * @param location Location to add to the image
      * @return true if successful, false otherwise
      */
     public static boolean addGeotagToImage(String imagePath, Location location) {
+        File imageFile = new File(imagePath);
+        FileThumbnail thumbnail = new FileThumbnail(imagePath);
+        try {
+            if (ExifPatcher.patch(imageFile, exif -> applyGeotag(exif, location, thumbnail))) {
+                return true;
+            }
+            if (rewriteWithGeotag(imageFile, location, thumbnail)) {
+                return true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error patching geotag into image: " + e.getMessage());
+        }
+        
+        return addGeotagWithExifInterface(imagePath, location);
+    }
+    
+    /**
+     * Rewrite a JPEG file with a fresh EXIF segment carrying the geotag
+     *
+     * @param imageFile JPEG file to update
+     * @param location Location to add to the image
+     * @param thumbnail Thumbnail to embed if the file has none
+     * @return true if the file was rewritten, false if it is not a JPEG
+     * @throws IOException if reading or replacing the file fails
+     */
+    private static boolean rewriteWithGeotag(File imageFile, Location location, FileThumbnail thumbnail)
+            throws IOException {
+        File tempFile = new File(imageFile.getParentFile(), imageFile.getName() + ".tmp");
+        try (InputStream inputStream = new BufferedInputStream(
+                new FileInputStream(imageFile), STREAM_BUFFER_SIZE)) {
+            if (!JpegExifRewriter.isJpeg(inputStream)) {
+                return false;
+            }
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                JpegExifRewriter.rewrite(inputStream, outputStream,
+                        exif -> applyGeotag(exif, location, thumbnail));
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        
+        if (!tempFile.renameTo(imageFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace " + imageFile.getName());
+        }
+        return true;
+    }
+    
+    /**
+     * Add geolocation metadata to an image file using Android's ExifInterface
+     *
+     * @param imagePath Full path to the image file
+     * @param location Location to add to the image
+     * @return true if successful, false otherwise
+     */
+    private static boolean addGeotagWithExifInterface(String imagePath, Location location) {
         try {
             ExifInterface exif = new ExifInterface(imagePath);
             
@@ -77,7 +163,7 @@ public class ImageProcessor {
             
             // Add date/time if not present
             if (exif.getAttribute(ExifInterface.TAG_DATETIME) == null) {
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+                SimpleDateFormat sdf = new SimpleDateFormat(EXIF_DATE_FORMAT, Locale.US);
                 exif.setAttribute(ExifInterface.TAG_DATETIME, sdf.format(new Date()));
             }
             
@@ -90,6 +176,176 @@ public class ImageProcessor {
         }
     }
     
+    /**
+     * Apply the geotag fields to a parsed EXIF segment
+     *
+     * @param exif EXIF segment to update
+     * @param location Location to add to the image
+     * @param thumbnail Thumbnail to embed if the segment has none, or null
+     */
+    private static void applyGeotag(ExifSegment exif, Location location, Thumbnail thumbnail) {
+        exif.setGpsLocation(location.getLatitude(), location.getLongitude(), "GPS");
+        
+        // Add date/time if not present
+        if (!exif.hasDateTime()) {
+            SimpleDateFormat sdf = new SimpleDateFormat(EXIF_DATE_FORMAT, Locale.US);
+            exif.setDateTime(sdf.format(new Date()));
+        }
+        
+        if (thumbnail != null && !exif.hasThumbnail()) {
+            embedThumbnail(exif, thumbnail.get());
+        }
+    }
+    
+    /**
+     * Source of the thumbnail embedded at save time, only produced when needed
+     */
+    private interface Thumbnail {
+        /**
+         * @return JPEG thumbnail, or null if none could be made
+         */
+        byte[] get();
+    }
+    
+    /**
+     * Thumbnail decoded from an image file at most once, since the in-place patch
+     * and the rewrite may both ask for it
+     */
+    private static class FileThumbnail implements Thumbnail {
+        private final String imagePath;
+        private boolean created;
+        private byte[] jpeg;
+        
+        FileThumbnail(String imagePath) {
+            this.imagePath = imagePath;
+        }
+        
+        @Override
+        public byte[] get() {
+            if (!created) {
+                created = true;
+                Bitmap bitmap = decodeSampledBitmapFromFile(imagePath, EXIF_THUMBNAIL_SIZE, EXIF_THUMBNAIL_SIZE);
+                if (bitmap != null) {
+                    jpeg = createExifThumbnail(bitmap);
+                    BitmapPool.getInstance().put(bitmap);
+                }
+            }
+            return jpeg;
+        }
+    }
+    
+    /**
+     * Compress a bitmap into a JPEG thumbnail small enough for an EXIF segment
+     *
+     * @param source Bitmap of the full image; it is left untouched
+     * @return JPEG thumbnail, or null if it can't be made small enough
+     */
+    private static byte[] createExifThumbnail(Bitmap source) {
+        float scale = (float) EXIF_THUMBNAIL_SIZE / Math.min(source.getWidth(), source.getHeight());
+        Bitmap scaled = scale < 1 ? scale(source, scale) : source;
+        
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(MAX_EXIF_THUMBNAIL_BYTES);
+            for (int quality : EXIF_THUMBNAIL_QUALITIES) {
+                outputStream.reset();
+                scaled.compress(Bitmap.CompressFormat.JPEG, quality, outputStream);
+                if (outputStream.size() <= MAX_EXIF_THUMBNAIL_BYTES) {
+                    return outputStream.toByteArray();
+                }
+            }
+            return null;
+        } finally {
+            if (scaled != source) {
+                BitmapPool.getInstance().put(scaled);
+            }
+        }
+    }
+    
+    /**
+     * Embed a JPEG thumbnail in IFD1, leaving it out if the segment would overflow
+     *
+     * @param exif EXIF segment to update
+     * @param jpeg JPEG thumbnail, or null
+     */
+    private static void embedThumbnail(ExifSegment exif, byte[] jpeg) {
+        if (jpeg == null) {
+            return;
+        }
+        exif.setThumbnail(jpeg);
+        if (exif.getLength() > ExifSegment.MAX_PAYLOAD_LENGTH) {
+            exif.setThumbnail(null);
+        }
+    }
+    
+    /**
+     * Copy an image from a content URI to a destination file, adding geolocation
+     * metadata on the way through. JPEG sources are read once and written once with
+     * a freshly built EXIF segment; other formats are copied and then tagged with
+     * {@link #addGeotagToImage(String, Location)}. A JPEG the rewriter can't handle
+     * is copied as is and tagged with ExifInterface instead.
+     *
+     * @param context Application context
+     * @param sourceUri Source URI of the image
+     * @param destFile Destination file
+     * @param location Location to add to the image
+     * @param preview Already decoded preview of the image, used for the embedded
+     *                thumbnail when the source has none; may be null
+     * @return true if successful, false otherwise
+     */
+    public static boolean copyImageWithGeotag(Context context, Uri sourceUri, File destFile, Location location,
+                                              Bitmap preview) {
+        try (InputStream sourceStream = context.getContentResolver().openInputStream(sourceUri)) {
+            if (sourceStream == null) {
+                return false;
+            }
+            
+            InputStream inputStream = new BufferedInputStream(sourceStream, STREAM_BUFFER_SIZE);
+            if (!JpegExifRewriter.isJpeg(inputStream)) {
+                try (FileOutputStream outputStream = new FileOutputStream(destFile)) {
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    int bytesRead;
+                    while ((bytesRead = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, bytesRead);
+                    }
+                }
+                return addGeotagToImage(destFile.getAbsolutePath(), location);
+            }
+            
+            Thumbnail thumbnail = preview != null ? () -> createExifThumbnail(preview) : null;
+            try (FileOutputStream outputStream = new FileOutputStream(destFile)) {
+                JpegExifRewriter.rewrite(inputStream, outputStream, exif -> applyGeotag(exif, location, thumbnail));
+            } catch (IOException e) {
+                Log.e(TAG, "Error rewriting EXIF, falling back to a plain copy: " + e.getMessage());
+                return copyWithExifInterface(context, sourceUri, destFile, location);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error copying geotagged image: " + e.getMessage());
+            destFile.delete();
+            return false;
+        }
+    }
+    
+    /**
+     * Copy an image as is and then write the geotag with ExifInterface, for sources
+     * the rewriter rejects
+     *
+     * @param context Application context
+     * @param sourceUri Source URI of the image
+     * @param destFile Destination file
+     * @param location Location to add to the image
+     * @return true if successful, false otherwise, in which case the copy is deleted
+     */
+    private static boolean copyWithExifInterface(Context context, Uri sourceUri, File destFile,
+                                                 Location location) {
+        if (copyImageFromUri(context, sourceUri, destFile)
+                && addGeotagWithExifInterface(destFile.getAbsolutePath(), location)) {
+            return true;
+        }
+        destFile.delete();
+        return false;
+    }
+    
     /**
      * Create a temporary image file
      *
@@ -161,44 +417,107 @@ public class ImageProcessor {
      * @return Scaled bitmap
      */
     public static Bitmap decodeSampledBitmapFromFile(String filePath, int reqWidth, int reqHeight) {
-        // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filePath, options);
+        return BitmapDecoder.decodeFile(filePath, reqWidth, reqHeight, Bitmap.Config.ARGB_8888);
+    }
+    
+    /**
+     * Load a thumbnail through a thumbnail cache. The disk tier is tried first, then
+     * the thumbnail embedded in the EXIF data if it is large enough; the original
+     * image is only decoded when both miss, after which the scaled result is stored
+     * in both tiers. Decodes use the cache's bitmap config and reuse pooled bitmaps.
+     *
+     * @param cache Thumbnail cache
+     * @param filePath Path to the image file
+     * @param reqWidth Required width
+     * @param reqHeight Required height
+     * @return Thumbnail bitmap retained for the caller, who must release it
+     *         through the cache; null if the image can't be decoded
+     */
+    public static Bitmap loadThumbnail(ThumbnailCache cache, String filePath, int reqWidth, int reqHeight) {
+        File source = new File(filePath);
+        Bitmap bitmap = cache.getFromDisk(source, reqWidth, reqHeight);
+        if (bitmap != null) {
+            return bitmap;
+        }
         
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        Bitmap.Config config = cache.getBitmapConfig();
+        bitmap = decodeEmbeddedThumbnail(source, reqWidth, reqHeight, config);
+        if (bitmap != null) {
+            return cache.putEmbedded(source, scaleToCover(bitmap, reqWidth, reqHeight));
+        }
+        
+        bitmap = BitmapDecoder.decodeFile(filePath, reqWidth, reqHeight, config);
+        if (bitmap == null) {
+            return null;
+        }
         
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filePath, options);
+        return cache.put(source, reqWidth, reqHeight, scaleToCover(bitmap, reqWidth, reqHeight));
     }
     
     /**
-     * Calculate an appropriate inSampleSize value for bitmap scaling
+     * Decode the thumbnail embedded in a JPEG's EXIF data
      *
-     * @param options BitmapFactory.Options with outHeight and outWidth set
+     * @param source JPEG file
      * @param reqWidth Required width
      * @param reqHeight Required height
-     * @return Calculated sample size
+     * @param config Preferred bitmap config
+     * @return Thumbnail, or null if there is none or it is too small to cover the required area
      */
-    private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
-        
-        if (height > reqHeight || width > reqWidth) {
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
-            
-            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-            // height and width larger than the requested height and width.
-            while ((halfHeight / inSampleSize) >= reqHeight && (halfWidth / inSampleSize) >= reqWidth) {
-                inSampleSize *= 2;
+    private static Bitmap decodeEmbeddedThumbnail(File source, int reqWidth, int reqHeight, Bitmap.Config config) {
+        ExifGpsReader reader = EXIF_READER.get();
+        try {
+            if (!reader.read(source) || !reader.hasThumbnail()) {
+                return null;
             }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading embedded thumbnail: " + e.getMessage());
+            return null;
         }
         
-        return inSampleSize;
+        byte[] jpeg = reader.getThumbnail();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (options.outWidth < reqWidth || options.outHeight < reqHeight) {
+            return null;
+        }
+        
+        return BitmapDecoder.decodeByteArray(jpeg, reqWidth, reqHeight, config);
+    }
+    
+    /**
+     * Scale a bitmap down to the smallest size that still covers the required area
+     *
+     * @param bitmap Source bitmap, returned to the pool if a scaled copy is made
+     * @param reqWidth Required width
+     * @param reqHeight Required height
+     * @return Scaled bitmap
+     */
+    private static Bitmap scaleToCover(Bitmap bitmap, int reqWidth, int reqHeight) {
+        float scale = Math.max((float) reqWidth / bitmap.getWidth(), (float) reqHeight / bitmap.getHeight());
+        if (scale >= 1) {
+            return bitmap;
+        }
+        
+        Bitmap scaled = scale(bitmap, scale);
+        BitmapPool.getInstance().put(bitmap);
+        return scaled;
+    }
+    
+    /**
+     * Draw a scaled copy of a bitmap into a pooled bitmap
+     *
+     * @param source Source bitmap, left untouched
+     * @param scale Scale factor
+     * @return Scaled copy
+     */
+    private static Bitmap scale(Bitmap source, float scale) {
+        int width = Math.max(1, Math.round(source.getWidth() * scale));
+        int height = Math.max(1, Math.round(source.getHeight() * scale));
+        Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        
+        Bitmap scaled = BitmapPool.getInstance().get(width, height, config);
+        new Canvas(scaled).drawBitmap(source, null, new Rect(0, 0, width, height), SCALE_PAINT);
+        return scaled;
     }
 }
\ No newline at end of file
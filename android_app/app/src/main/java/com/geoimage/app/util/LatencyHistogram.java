@@ -0,0 +1,91 @@
+package com.geoimage.app.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of call latencies in power-of-two buckets of
+ * microseconds, so recording costs a couple of atomic increments and the
+ * histogram has a fixed size however many calls it counts. Percentiles are
+ * reported as the upper bound of their bucket, i.e. to within a factor of two.
+ */
+public class LatencyHistogram {
+    private static final int BUCKET_COUNT = 32;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * @param name Name of the measured call, for logging
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record one call
+     *
+     * @param startNanos {@link System#nanoTime()} when the call started
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Record one call
+     *
+     * @param micros Latency in microseconds
+     */
+    public void record(long micros) {
+        micros = Math.max(0, micros);
+        // Bucket i holds latencies below 2^i microseconds, down to the previous bucket's bound
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // Retry until the larger value is stored
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile Percentile, 0 to 100
+     * @return Upper bound of the latency in microseconds, or 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(1L << i, maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * @return Summary of the recorded latencies in milliseconds, for logging
+     */
+    public String getStats() {
+        long total = count.get();
+        return String.format(Locale.US, "%s: calls=%d, mean=%.1f ms, p50<=%.1f ms, p90<=%.1f ms, "
+                        + "p99<=%.1f ms, max=%.1f ms",
+                name, total, total > 0 ? totalMicros.get() / 1000.0 / total : 0.0,
+                getPercentileMicros(50) / 1000.0, getPercentileMicros(90) / 1000.0,
+                getPercentileMicros(99) / 1000.0, maxMicros.get() / 1000.0);
+    }
+}
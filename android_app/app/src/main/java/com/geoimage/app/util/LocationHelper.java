@@ -139,8 +139,12 @@ public class LocationHelper {
         char latDirection = latitude >= 0 ? 'N' : 'S';
         char lngDirection = longitude >= 0 ? 'E' : 'W';
         
-        return String.format(java.util.Locale.US, "%.4f° %s, %.4f° %s",
-                Math.abs(latitude), latDirection,
-                Math.abs(longitude), lngDirection);
+        // Built directly rather than with String.format, which parses its pattern on every call
+        StringBuilder builder = new StringBuilder(32);
+        DisplayFormatter.appendFixed(builder, Math.abs(latitude), 4);
+        builder.append("° ").append(latDirection).append(", ");
+        DisplayFormatter.appendFixed(builder, Math.abs(longitude), 4);
+        builder.append("° ").append(lngDirection);
+        return builder.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,349 @@
+package com.geoimage.app.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier cache for gallery thumbnails: a memory LRU bounded in bytes and a
+ * disk tier of small pre-scaled JPEGs keyed by source path, size and
+ * modification time, so an edited file never serves a stale thumbnail.
+ * Memory entries are keyed by path alone, so one cache should hold a single
+ * thumbnail size.
+ * <p>
+ * Thumbnails handed out are reference counted. A thumbnail evicted from memory
+ * goes back to the {@link BitmapPool} once no view displays it any more.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+    private static final String DISK_DIRECTORY = "thumbnails";
+    private static final long MAX_DISK_BYTES = 64L * 1024 * 1024;
+    private static final int DISK_QUALITY = 85;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static ThumbnailCache instance;
+
+    private final LruCache<String, Bitmap> memoryCache;
+    private final File diskDirectory;
+    private final AtomicLong diskBytes = new AtomicLong(-1);
+    private volatile Bitmap.Config bitmapConfig = Bitmap.Config.ARGB_8888;
+
+    // Guarded by this
+    private final Map<Bitmap, Integer> references = new IdentityHashMap<>();
+    private final Set<Bitmap> evicted = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong embeddedHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Get the shared gallery thumbnail cache, sized to an eighth of the heap
+     *
+     * @param context Any context
+     * @return Cache instance
+     */
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (instance == null) {
+            int memoryBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+            instance = new ThumbnailCache(
+                    new File(context.getApplicationContext().getCacheDir(), DISK_DIRECTORY), memoryBytes);
+        }
+        return instance;
+    }
+
+    /**
+     * @param diskDirectory Directory for the disk tier
+     * @param memoryBytes Maximum size of the memory tier in bytes
+     */
+    public ThumbnailCache(File diskDirectory, int memoryBytes) {
+        this.diskDirectory = diskDirectory;
+        this.memoryCache = new LruCache<String, Bitmap>(memoryBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    recycle(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * Opt in to a lower memory config for decoded thumbnails. RGB_565 halves the
+     * memory of each thumbnail at the cost of alpha and some color depth.
+     *
+     * @param config Bitmap config for thumbnails decoded from now on
+     */
+    public void setBitmapConfig(Bitmap.Config config) {
+        bitmapConfig = config;
+    }
+
+    public Bitmap.Config getBitmapConfig() {
+        return bitmapConfig;
+    }
+
+    /**
+     * Look up a thumbnail in the memory tier
+     *
+     * @param path Path to the source image
+     * @return Cached thumbnail retained for the caller, or null
+     */
+    public synchronized Bitmap getFromMemory(String path) {
+        Bitmap bitmap = memoryCache.get(path);
+        if (bitmap != null) {
+            memoryHits.incrementAndGet();
+            retain(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Look up a thumbnail in the disk tier, promoting it to memory on a hit
+     *
+     * @param source Source image file
+     * @param width Thumbnail width
+     * @param height Thumbnail height
+     * @return Cached thumbnail retained for the caller, or null
+     */
+    public Bitmap getFromDisk(File source, int width, int height) {
+        File cacheFile = getDiskFile(source, width, height);
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        Bitmap bitmap = BitmapDecoder.decodeFile(cacheFile.getAbsolutePath(), 0, 0, bitmapConfig);
+        if (bitmap == null) {
+            return null;
+        }
+
+        // Touch the file so trimming drops the least recently used thumbnails first
+        cacheFile.setLastModified(System.currentTimeMillis());
+        diskHits.incrementAndGet();
+        return putInMemory(source, bitmap);
+    }
+
+    /**
+     * Record a thumbnail that had to be decoded from the original image
+     *
+     * @param source Source image file
+     * @param width Thumbnail width
+     * @param height Thumbnail height
+     * @param bitmap Decoded thumbnail
+     * @return The thumbnail, retained for the caller
+     */
+    public Bitmap put(File source, int width, int height, Bitmap bitmap) {
+        misses.incrementAndGet();
+        // Write to disk first, since once in memory the bitmap may be evicted and reused
+        writeToDisk(getDiskFile(source, width, height), bitmap);
+        return putInMemory(source, bitmap);
+    }
+
+    /**
+     * Record a thumbnail taken from the image's embedded EXIF thumbnail. It is only
+     * kept in memory, since reading it again is about as cheap as the disk tier.
+     *
+     * @param source Source image file
+     * @param bitmap Decoded thumbnail
+     * @return The thumbnail, retained for the caller
+     */
+    public Bitmap putEmbedded(File source, Bitmap bitmap) {
+        embeddedHits.incrementAndGet();
+        return putInMemory(source, bitmap);
+    }
+
+    /**
+     * Take a reference to a thumbnail, e.g. when a view starts displaying it
+     *
+     * @param bitmap Thumbnail from this cache
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        Integer count = references.get(bitmap);
+        references.put(bitmap, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Drop a reference to a thumbnail. Once it is neither referenced nor held in
+     * memory it goes back to the bitmap pool.
+     *
+     * @param bitmap Thumbnail from this cache
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = references.get(bitmap);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            references.put(bitmap, count - 1);
+            return;
+        }
+
+        references.remove(bitmap);
+        if (evicted.remove(bitmap)) {
+            BitmapPool.getInstance().put(bitmap);
+        }
+    }
+
+    /**
+     * Drop every thumbnail held in memory
+     */
+    public synchronized void clearMemory() {
+        memoryCache.evictAll();
+    }
+
+    public long getMemoryHitCount() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    public long getEmbeddedHitCount() {
+        return embeddedHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return Summary of the hit and miss counters and current sizes, for logging
+     */
+    public String getStats() {
+        return String.format(Locale.US,
+                "memory hits=%d, disk hits=%d, embedded hits=%d, misses=%d, memory=%d/%d bytes, disk=%d bytes",
+                memoryHits.get(), diskHits.get(), embeddedHits.get(), misses.get(),
+                memoryCache.size(), memoryCache.maxSize(), diskBytes.get());
+    }
+
+    /**
+     * Add a thumbnail to the memory tier and retain it in one step, so it can't be
+     * evicted and reused before the caller sees it
+     */
+    private synchronized Bitmap putInMemory(File source, Bitmap bitmap) {
+        retain(bitmap);
+        memoryCache.put(source.getAbsolutePath(), bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Pool a thumbnail that left the memory tier, or defer that until it is released
+     */
+    private synchronized void recycle(Bitmap bitmap) {
+        if (references.containsKey(bitmap)) {
+            evicted.add(bitmap);
+        } else {
+            BitmapPool.getInstance().put(bitmap);
+        }
+    }
+
+    private File getDiskFile(File source, int width, int height) {
+        String key = source.getAbsolutePath() + '|' + source.length() + '|' + source.lastModified()
+                + '|' + width + 'x' + height;
+        return new File(diskDirectory, hash(key) + ".jpg");
+    }
+
+    private void writeToDisk(File cacheFile, Bitmap bitmap) {
+        if (!diskDirectory.exists() && !diskDirectory.mkdirs()) {
+            return;
+        }
+
+        File tempFile = new File(diskDirectory, cacheFile.getName() + ".tmp");
+        try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, DISK_QUALITY, outputStream);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing thumbnail: " + e.getMessage());
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            tempFile.delete();
+            return;
+        }
+
+        if (diskBytes.get() < 0) {
+            diskBytes.compareAndSet(-1, directorySize());
+        } else {
+            diskBytes.addAndGet(cacheFile.length());
+        }
+        if (diskBytes.get() > MAX_DISK_BYTES) {
+            trimDisk();
+        }
+    }
+
+    /**
+     * Delete the least recently used thumbnails until the disk tier is back under three quarters of its limit
+     */
+    private synchronized void trimDisk() {
+        File[] files = diskDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        long size = directorySize();
+        for (File file : files) {
+            if (size <= MAX_DISK_BYTES * 3 / 4) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+        diskBytes.set(size);
+    }
+
+    private long directorySize() {
+        long size = 0;
+        File[] files = diskDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.geoimage.app.util;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.ImageView;
+
+import androidx.annotation.DrawableRes;
+
+import com.geoimage.app.R;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads thumbnails into ImageViews on background threads. Thumbnails in the
+ * memory cache are shown immediately; otherwise requests for the same path
+ * share one load, and a request is cancelled once no view is waiting for it
+ * any more. Each view holds a reference on the cached thumbnail it shows,
+ * which is released when the view is cancelled or shows something else.
+ * All public methods must be called on the main thread.
+ */
+public class ThumbnailLoader {
+    private static final int THREAD_COUNT =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final ThumbnailCache cache;
+    private final int width;
+    private final int height;
+    private final int placeholderResId;
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, LoadRequest> pendingRequests = new HashMap<>();
+
+    /**
+     * A decode shared by every view waiting for the same path
+     */
+    private class LoadRequest implements Runnable {
+        final String path;
+        final List<ImageView> targets = new ArrayList<>(1);
+        Future<?> future;
+
+        LoadRequest(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = ImageProcessor.loadThumbnail(cache, path, width, height);
+            mainHandler.post(() -> deliver(this, bitmap));
+        }
+    }
+
+    /**
+     * @param cache Cache holding thumbnails of the given size
+     * @param width Required thumbnail width
+     * @param height Required thumbnail height
+     * @param placeholderResId Drawable shown until the thumbnail is ready
+     */
+    public ThumbnailLoader(ThumbnailCache cache, int width, int height, @DrawableRes int placeholderResId) {
+        this.cache = cache;
+        this.width = width;
+        this.height = height;
+        this.placeholderResId = placeholderResId;
+    }
+
+    /**
+     * Show the thumbnail for a path, replacing any load in progress for the view
+     *
+     * @param path Path to the image file
+     * @param imageView View to show the thumbnail in
+     */
+    public void load(String path, ImageView imageView) {
+        if (path.equals(imageView.getTag(R.id.thumbnail_path))) {
+            // Already showing or loading this image
+            return;
+        }
+
+        cancel(imageView);
+        imageView.setTag(R.id.thumbnail_path, path);
+
+        Bitmap cached = cache.getFromMemory(path);
+        if (cached != null) {
+            show(imageView, cached);
+            return;
+        }
+        imageView.setImageResource(placeholderResId);
+
+        LoadRequest request = pendingRequests.get(path);
+        if (request == null) {
+            request = new LoadRequest(path);
+            pendingRequests.put(path, request);
+            request.future = executor.submit(request);
+        }
+        request.targets.add(imageView);
+    }
+
+    /**
+     * Show the placeholder, e.g. while the view's item itself is still loading
+     *
+     * @param imageView View to show the placeholder in
+     */
+    public void showPlaceholder(ImageView imageView) {
+        cancel(imageView);
+        imageView.setImageResource(placeholderResId);
+    }
+
+    /**
+     * Stop loading into a view, e.g. when its ViewHolder is recycled, and release
+     * the thumbnail it shows
+     *
+     * @param imageView View to detach
+     */
+    public void cancel(ImageView imageView) {
+        Bitmap shown = (Bitmap) imageView.getTag(R.id.thumbnail_bitmap);
+        if (shown != null) {
+            imageView.setTag(R.id.thumbnail_bitmap, null);
+            imageView.setImageDrawable(null);
+            cache.release(shown);
+        }
+
+        Object path = imageView.getTag(R.id.thumbnail_path);
+        if (path == null) {
+            return;
+        }
+        imageView.setTag(R.id.thumbnail_path, null);
+
+        LoadRequest request = pendingRequests.get(path);
+        if (request != null) {
+            request.targets.remove(imageView);
+            if (request.targets.isEmpty()) {
+                request.future.cancel(false);
+                pendingRequests.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Cancel all pending loads and stop the worker threads
+     */
+    public void shutdown() {
+        pendingRequests.clear();
+        executor.shutdownNow();
+    }
+
+    private void deliver(LoadRequest request, Bitmap bitmap) {
+        if (pendingRequests.get(request.path) != request) {
+            // Cancelled while decoding
+            if (bitmap != null) {
+                cache.release(bitmap);
+            }
+            return;
+        }
+        pendingRequests.remove(request.path);
+
+        if (bitmap == null) {
+            return;
+        }
+
+        for (ImageView target : request.targets) {
+            if (request.path.equals(target.getTag(R.id.thumbnail_path))) {
+                cache.retain(bitmap);
+                show(target, bitmap);
+            }
+        }
+        // Drop the reference taken for the delivery itself
+        cache.release(bitmap);
+    }
+
+    /**
+     * Show a retained thumbnail, taking over the reference
+     */
+    private void show(ImageView imageView, Bitmap bitmap) {
+        imageView.setTag(R.id.thumbnail_bitmap, bitmap);
+        imageView.setImageBitmap(bitmap);
+    }
+}
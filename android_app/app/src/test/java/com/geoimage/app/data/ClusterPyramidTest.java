@@ -0,0 +1,164 @@
+package com.geoimage.app.data;
+
+import com.geoimage.app.model.GeoImageStore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterPyramidTest {
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    @Test
+    public void matchesBruteForce() {
+        Random random = new Random(17);
+        GeoImageStore store = createStore(random, 2000);
+        ClusterPyramid pyramid = new ClusterPyramid(store);
+
+        for (int query = 0; query < 300; query++) {
+            int zoom = random.nextInt(ClusterPyramid.MAX_ZOOM + 1);
+            double[] center = point(random);
+            // About a phone screen of 64 pixel cells
+            double width = 360.0 / (1 << zoom) * (1 + random.nextDouble() * 2);
+            double height = width * 1.5;
+            double south = Math.max(-90, center[0] - height / 2);
+            double north = Math.min(90, center[0] + height / 2);
+            double west = wrap(center[1] - width / 2);
+            double east = wrap(center[1] + width / 2);
+            if (width >= 360) {
+                west = -180;
+                east = 180;
+            }
+            checkQuery(store, pyramid, zoom + random.nextFloat(), south, west, north, east);
+        }
+        // The whole world at every level
+        for (int zoom = ClusterPyramid.MIN_ZOOM; zoom <= ClusterPyramid.MAX_ZOOM; zoom++) {
+            checkQuery(store, pyramid, zoom, -90, -180, 90, 180);
+        }
+    }
+
+    @Test
+    public void listsMembersAtTheFinestLevel() {
+        // Twenty images within a few meters, which no zoom level separates
+        GeoImageStore.Builder builder = new GeoImageStore.Builder(0);
+        for (int i = 0; i < 20; i++) {
+            builder.add(i, "/a/" + i + ".jpg", 48.8584 + i * 1e-6, 2.2945, null, GeoImageStore.NO_TIMESTAMP);
+        }
+        builder.add(20, "/a/far.jpg", -33.8568, 151.2153, null, GeoImageStore.NO_TIMESTAMP);
+        ClusterPyramid pyramid = new ClusterPyramid(builder.build());
+
+        List<Long> keys = new ArrayList<>();
+        pyramid.query(ClusterPyramid.MAX_ZOOM + 3, 48.85, 2.29, 48.87, 2.30,
+                (key, latitude, longitude, count, representative) -> {
+                    assertEquals(20, count);
+                    assertEquals(0, representative);
+                    keys.add(key);
+                });
+        assertEquals(1, keys.size());
+        int[] members = pyramid.getMembers(keys.get(0));
+        assertEquals(20, members.length);
+        for (int i = 0; i < members.length; i++) {
+            assertEquals(i, members[i]);
+        }
+        assertEquals(0, pyramid.getMembers(-1).length);
+        assertEquals(0, pyramid.getMembers(1L << 62).length);
+    }
+
+    private static void checkQuery(GeoImageStore store, ClusterPyramid pyramid, float zoom,
+                                   double south, double west, double north, double east) {
+        int z = Math.min(ClusterPyramid.MAX_ZOOM, (int) Math.floor(zoom));
+        int cells = 1 << (z + 2);
+        Map<Long, List<Integer>> expected = new HashMap<>();
+        for (int i = 0; i < store.size(); i++) {
+            int row = cell(mercatorY(store.getLatitude(i)), cells);
+            int column = cell(mercatorX(store.getLongitude(i)), cells);
+            if (row >= cell(mercatorY(north), cells) && row <= cell(mercatorY(south), cells)
+                    && inColumns(column, cell(mercatorX(west), cells), cell(mercatorX(east), cells), west > east)) {
+                long cell = (long) row * cells + column;
+                List<Integer> members = expected.get(cell);
+                if (members == null) {
+                    members = new ArrayList<>();
+                    expected.put(cell, members);
+                }
+                members.add(i);
+            }
+        }
+
+        Set<Long> found = new HashSet<>();
+        pyramid.query(zoom, south, west, north, east, (key, latitude, longitude, count, representative) -> {
+            int[] members = pyramid.getMembers(key);
+            assertEquals(count, members.length);
+            assertEquals(representative, members[0]);
+            long cell = (long) cell(mercatorY(store.getLatitude(members[0])), cells) * cells
+                    + cell(mercatorX(store.getLongitude(members[0])), cells);
+            assertTrue("cell visited twice", found.add(cell));
+            List<Integer> expectedMembers = expected.get(cell);
+            assertTrue("unexpected cell at zoom " + zoom, expectedMembers != null);
+            int[] expectedArray = new int[expectedMembers.size()];
+            for (int i = 0; i < expectedArray.length; i++) {
+                expectedArray[i] = expectedMembers.get(i);
+            }
+            assertArrayEquals(expectedArray, members);
+            // The mean is taken in Mercator, so it stays within the cell
+            assertEquals(cell / cells, cell(mercatorY(latitude), cells), 1);
+            assertEquals(cell % cells, cell(mercatorX(longitude), cells), 1);
+        });
+        assertEquals("clusters at zoom " + zoom, expected.keySet(), found);
+    }
+
+    private static boolean inColumns(int column, int first, int last, boolean wraps) {
+        return wraps ? column >= first || column <= last : column >= first && column <= last;
+    }
+
+    private static GeoImageStore createStore(Random random, int count) {
+        GeoImageStore.Builder builder = new GeoImageStore.Builder(count);
+        for (int i = 0; i < count; i++) {
+            double[] point = point(random);
+            builder.add(i, "/a/" + i + ".jpg", point[0], point[1], null, GeoImageStore.NO_TIMESTAMP);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Points mostly clustered in a few cities, some spread over the world
+     */
+    private static double[] point(Random random) {
+        if (random.nextInt(4) == 0) {
+            return new double[] { random.nextDouble() * 170 - 85, random.nextDouble() * 360 - 180 };
+        }
+        int city = random.nextInt(4);
+        double spread = Math.pow(10, -random.nextInt(5));
+        double[][] cities = { { 48.8566, 2.3522 }, { 35.6762, 139.6503 }, { -33.8688, 151.2093 }, { 0, 179.99 } };
+        return new double[] {
+                cities[city][0] + random.nextGaussian() * spread,
+                wrap(cities[city][1] + random.nextGaussian() * spread),
+        };
+    }
+
+    private static double wrap(double longitude) {
+        return longitude > 180 ? longitude - 360 : longitude < -180 ? longitude + 360 : longitude;
+    }
+
+    private static int cell(double coordinate, int cellsPerAxis) {
+        return Math.max(0, Math.min(cellsPerAxis - 1, (int) (coordinate * cellsPerAxis)));
+    }
+
+    private static double mercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    private static double mercatorY(double latitude) {
+        double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+}
@@ -0,0 +1,90 @@
+package com.geoimage.app.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the merge of gallery sources, and that it touches the file system once
+ * per directory rather than once per file
+ */
+public class SourceMergeTest {
+    private static final int UNIT_SIZE = 32;
+    private static final int DIRECTORIES = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mergesSourcesOnCanonicalPaths() throws IOException {
+        File directory = folder.newFolder("DCIM");
+        File alias = new File(folder.getRoot(), "sdcard");
+        Files.createSymbolicLink(alias.toPath(), directory.toPath());
+
+        List<List<File>> units = new ArrayList<>();
+        SourceMerge merge = new SourceMerge(2, units::add);
+        assertTrue(merge.add(new File(directory, "a.jpg"), GeoImageCatalog.SOURCE_DIRECTORY));
+        assertTrue(merge.add(new File(directory, "b.jpg"), GeoImageCatalog.SOURCE_DIRECTORY));
+        assertEquals(1, units.size());
+        // The same files through the alias, and through a relative segment
+        assertFalse(merge.add(new File(alias, "a.jpg"), GeoImageCatalog.SOURCE_MEDIA_STORE));
+        assertFalse(merge.add(new File(new File(directory, "."), "b.jpg"), GeoImageCatalog.SOURCE_DIRECTORY));
+        assertTrue(merge.add(new File(alias, "c.jpg"), GeoImageCatalog.SOURCE_MEDIA_STORE));
+        assertEquals(1, units.size());
+        merge.flush();
+        merge.flush();
+        assertEquals(2, units.size());
+
+        String canonical = directory.getCanonicalPath();
+        assertEquals(new File(canonical, "a.jpg"), units.get(0).get(0));
+        assertEquals(new File(canonical, "b.jpg"), units.get(0).get(1));
+        assertEquals(new File(canonical, "c.jpg"), units.get(1).get(0));
+        assertEquals(GeoImageCatalog.SOURCE_DIRECTORY | GeoImageCatalog.SOURCE_MEDIA_STORE,
+                merge.getSource(new File(canonical, "a.jpg").getPath()));
+        assertEquals(GeoImageCatalog.SOURCE_DIRECTORY, merge.getSource(new File(canonical, "b.jpg").getPath()));
+        assertEquals(3, merge.getSources().size());
+
+        merge.remove(new File(canonical, "c.jpg").getPath());
+        assertEquals(0, merge.getSource(new File(canonical, "c.jpg").getPath()));
+        assertEquals(2, merge.getSources().size());
+    }
+
+    @Test
+    public void resolvesEachDirectoryOnce() throws IOException {
+        File root = folder.newFolder("storage");
+        int count = 20000;
+        int[] merged = new int[1];
+        SourceMerge merge = new SourceMerge(UNIT_SIZE, unit -> merged[0] += unit.size());
+        // A directory listing, then a MediaStore listing that names those files again
+        // along with as many more
+        for (int i = 0; i < count / 2; i++) {
+            assertTrue(merge.add(file(root, i), GeoImageCatalog.SOURCE_DIRECTORY));
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(i >= count / 2, merge.add(file(root, i), GeoImageCatalog.SOURCE_MEDIA_STORE));
+        }
+        merge.flush();
+
+        assertEquals(count, merged[0]);
+        assertEquals(count, merge.getSources().size());
+        assertEquals(DIRECTORIES, merge.getCanonicalLookups());
+        assertEquals(GeoImageCatalog.SOURCE_DIRECTORY | GeoImageCatalog.SOURCE_MEDIA_STORE,
+                merge.getSource(new File(root.getCanonicalFile(), "dir0/IMG_0.jpg").getPath()));
+        assertEquals(GeoImageCatalog.SOURCE_MEDIA_STORE,
+                merge.getSource(new File(root.getCanonicalFile(), "dir49/IMG_19999.jpg").getPath()));
+    }
+
+    private static File file(File root, int i) {
+        return new File(new File(root, "dir" + i % DIRECTORIES), "IMG_" + i + ".jpg");
+    }
+}
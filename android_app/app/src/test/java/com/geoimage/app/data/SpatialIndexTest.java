@@ -0,0 +1,259 @@
+package com.geoimage.app.data;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the index against brute force, and that nearest-image queries only
+ * visit the neighborhood of the point
+ */
+public class SpatialIndexTest {
+    private static final int COUNT = 20000;
+    private static final double PARIS_LATITUDE = 48.8566;
+    private static final double PARIS_LONGITUDE = 2.3522;
+
+    private static double[] latitudes;
+    private static double[] longitudes;
+    private static SpatialIndex index;
+
+    // Locations of the points in the index under test, which moves some of them
+    private double[] pointLatitudes;
+    private double[] pointLongitudes;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Random random = new Random(16);
+        latitudes = new double[COUNT];
+        longitudes = new double[COUNT];
+        index = new SpatialIndex();
+        for (int i = 0; i < COUNT; i++) {
+            double[] point = point(random);
+            latitudes[i] = point[0];
+            longitudes[i] = point[1];
+            index.put(i, latitudes[i], longitudes[i]);
+        }
+    }
+
+    @Test
+    public void matchesBruteForce() {
+        SpatialIndex copy = copy(index);
+        pointLatitudes = latitudes.clone();
+        pointLongitudes = longitudes.clone();
+        boolean[] indexed = new boolean[COUNT];
+        Arrays.fill(indexed, true);
+        check(copy, indexed, new Random(1));
+
+        // Remove points, and put about half of them back elsewhere, some next to the antimeridian
+        Random random = new Random(2);
+        for (int i = 0; i < COUNT / 5; i++) {
+            int id = random.nextInt(COUNT);
+            assertEquals(indexed[id], copy.remove(id));
+            assertFalse(copy.remove(id));
+            indexed[id] = false;
+            if (random.nextBoolean()) {
+                double[] point = random.nextBoolean() ? point(random)
+                        : new double[] { random.nextDouble() * 10 - 5, random.nextBoolean() ? 179.999 : -179.999 };
+                pointLatitudes[id] = point[0];
+                pointLongitudes[id] = point[1];
+                copy.put(id, point[0], point[1]);
+                indexed[id] = true;
+            }
+        }
+        // Moving a point by putting it again
+        copy.put(7, -45, 100);
+        pointLatitudes[7] = -45;
+        pointLongitudes[7] = 100;
+        indexed[7] = true;
+        check(copy, indexed, new Random(3));
+    }
+
+    @Test
+    public void visitsOnlyNearbyCells() {
+        // Four images in every cell of a 2 by 2 degree square
+        SpatialIndex local = new SpatialIndex();
+        long id = 0;
+        for (int row = 0; row < 40; row++) {
+            for (int column = 0; column < 40; column++) {
+                local.put(id++, 40.025 + row * 0.05, 10.025 + column * 0.05);
+            }
+        }
+        assertEquals(10, local.nearest(41.01, 11.01, 10).length);
+        // The point's cell and at most its eight neighbors
+        int visited = local.getVisitedPoints();
+        assertTrue(visited + " points visited", visited <= 9 * 4);
+
+        // Images elsewhere, however many, aren't visited
+        for (int i = 0; i < 50000; i++) {
+            local.put(id++, -33.9 + (i % 100) * 1e-4, 151.2 + (i / 100) * 1e-4);
+        }
+        assertEquals(10, local.nearest(41.01, 11.01, 10).length);
+        assertEquals(visited, local.getVisitedPoints());
+
+        // Nor is the empty space between a point and the only image, half the world away
+        SpatialIndex lonely = new SpatialIndex();
+        lonely.put(1, -40, -170);
+        assertArrayEquals(new long[] { 1 }, lonely.nearest(40, 10, 5));
+        assertEquals(1, lonely.getVisitedPoints());
+    }
+
+    @Test
+    public void countsCells() {
+        int[] total = new int[1];
+        index.visitCells(-90, -180, 90, 180, (latitude, longitude, count) -> {
+            assertTrue(latitude > -90 && latitude < 90 && longitude > -180 && longitude < 180);
+            total[0] += count;
+        });
+        assertEquals(COUNT, total[0]);
+
+        // Cells overlapping a box hold at least the points inside it
+        int[] inCells = new int[1];
+        index.visitCells(48.8, 179.5, 49.1, -179.5, (latitude, longitude, count) -> inCells[0] += count);
+        assertTrue(inCells[0] >= index.queryBox(48.8, 179.5, 49.1, -179.5).length);
+    }
+
+    @Test
+    public void savesAndLoads() throws IOException {
+        File file = folder.newFile("spatial_index.bin");
+        index.writeTo(file, 42);
+        SpatialIndex loaded = SpatialIndex.readFrom(file, 42);
+
+        assertEquals(COUNT, loaded.size());
+        assertArrayEquals(sorted(index.queryBox(48, 2, 49, 3)), sorted(loaded.queryBox(48, 2, 49, 3)));
+        assertArrayEquals(index.nearest(-33.9, 151.2, 20), loaded.nearest(-33.9, 151.2, 20));
+        assertNull(SpatialIndex.readFrom(file, 43));
+        assertNull(SpatialIndex.readFrom(new File(folder.getRoot(), "missing.bin"), 42));
+    }
+
+    private void check(SpatialIndex index, boolean[] indexed, Random random) {
+        int size = 0;
+        for (boolean isIndexed : indexed) {
+            size += isIndexed ? 1 : 0;
+        }
+        assertEquals(size, index.size());
+
+        for (int query = 0; query < 100; query++) {
+            double[] corner = point(random);
+            double side = Math.pow(10, -random.nextInt(4)) * (1 + random.nextDouble() * 9);
+            double south = corner[0];
+            double north = Math.min(90, south + side);
+            double west = corner[1];
+            double east = west + side * 2;
+            if (east > 180) {
+                east -= 360;
+            }
+            long[] expected = bruteForceBox(indexed, south, west, north, east);
+            assertArrayEquals("box " + south + ", " + west, expected, sorted(index.queryBox(south, west, north, east)));
+        }
+
+        for (int query = 0; query < 40; query++) {
+            double[] center = query % 10 == 0 ? new double[] { 89.99 * Math.signum(random.nextGaussian()), 0 }
+                    : point(random);
+            double radius = Math.pow(10, 2 + random.nextInt(5));
+            assertArrayEquals("radius " + radius + " around " + center[0] + ", " + center[1],
+                    bruteForceRadius(indexed, center[0], center[1], radius),
+                    sorted(index.queryRadius(center[0], center[1], radius)));
+        }
+
+        for (int query = 0; query < 20; query++) {
+            double[] center = point(random);
+            int k = 1 + random.nextInt(50);
+            long[] found = index.nearest(center[0], center[1], k);
+            assertEquals(Math.min(k, size), found.length);
+            // Nothing nearer than the farthest found may have been left out
+            int last = (int) found[found.length - 1];
+            double[] expected = bruteForceNearestDistances(indexed, center[0], center[1], k,
+                    SpatialIndex.distanceMeters(center[0], center[1], pointLatitudes[last], pointLongitudes[last]));
+            assertEquals(found.length, expected.length);
+            for (int i = 0; i < found.length; i++) {
+                // Ties may come in either order, but the distances must be the nearest ones
+                int id = (int) found[i];
+                assertTrue(indexed[id]);
+                assertEquals(expected[i], SpatialIndex.distanceMeters(center[0], center[1],
+                        pointLatitudes[id], pointLongitudes[id]), 0);
+            }
+        }
+    }
+
+    private long[] bruteForceBox(boolean[] indexed, double south, double west, double north, double east) {
+        long[] ids = new long[COUNT];
+        int size = 0;
+        for (int i = 0; i < COUNT; i++) {
+            double longitude = pointLongitudes[i];
+            boolean inLongitude = west > east ? longitude >= west || longitude <= east
+                    : longitude >= west && longitude <= east;
+            if (indexed[i] && pointLatitudes[i] >= south && pointLatitudes[i] <= north && inLongitude) {
+                ids[size++] = i;
+            }
+        }
+        return Arrays.copyOf(ids, size);
+    }
+
+    private long[] bruteForceRadius(boolean[] indexed, double latitude, double longitude, double radius) {
+        long[] ids = new long[COUNT];
+        int size = 0;
+        for (int i = 0; i < COUNT; i++) {
+            if (indexed[i] && SpatialIndex.distanceMeters(latitude, longitude, pointLatitudes[i],
+                    pointLongitudes[i]) <= radius) {
+                ids[size++] = i;
+            }
+        }
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * @return Distances to the k nearest points, at most maxDistance away
+     */
+    private double[] bruteForceNearestDistances(boolean[] indexed, double latitude, double longitude, int k,
+                                                double maxDistance) {
+        double[] distances = new double[COUNT];
+        int size = 0;
+        for (int i = 0; i < COUNT; i++) {
+            if (indexed[i]) {
+                double distance = SpatialIndex.distanceMeters(latitude, longitude, pointLatitudes[i], pointLongitudes[i]);
+                if (distance <= maxDistance) {
+                    distances[size++] = distance;
+                }
+            }
+        }
+        distances = Arrays.copyOf(distances, size);
+        Arrays.sort(distances);
+        return Arrays.copyOf(distances, Math.min(k, size));
+    }
+
+    private static SpatialIndex copy(SpatialIndex source) {
+        SpatialIndex copy = new SpatialIndex();
+        source.visitBox(-90, -180, 90, 180, copy::put);
+        return copy;
+    }
+
+    /**
+     * Half clustered around one city, half spread evenly over the globe
+     */
+    private static double[] point(Random random) {
+        if (random.nextBoolean()) {
+            return new double[] { PARIS_LATITUDE + random.nextGaussian() * 0.5, PARIS_LONGITUDE + random.nextGaussian() * 0.5 };
+        }
+        return new double[] { Math.toDegrees(Math.asin(2 * random.nextDouble() - 1)), random.nextDouble() * 360 - 180 };
+    }
+
+    private static long[] sorted(long[] ids) {
+        Arrays.sort(ids);
+        return ids;
+    }
+}
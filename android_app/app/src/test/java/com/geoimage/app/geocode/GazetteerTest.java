@@ -0,0 +1,178 @@
+package com.geoimage.app.geocode;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class GazetteerTest {
+    // Coordinates are stored as float unit vectors, good to well under a meter
+    private static final double DEGREES_TOLERANCE = 1e-4;
+
+    @Test
+    public void roundTripsPlaces() throws IOException {
+        Gazetteer gazetteer = build(
+                "# name\tadmin\tcountry\tlat\tlng\tpopulation",
+                "Lyon\tAuvergne-Rhône-Alpes\tFrance\t45.764\t4.8357\t513275",
+                "",
+                "Singapore\tSingapore\tSingapore\t1.2897\t103.8501\t5638700",
+                "Reykjavík\t\tIceland\t64.1466\t-21.9426\t131136",
+                "Nowhere\t\t\t-12.5\t-170.25\t");
+
+        assertEquals(4, gazetteer.size());
+        int lyon = gazetteer.nearest(45.764, 4.8357);
+        assertEquals("Lyon", gazetteer.getName(lyon));
+        assertEquals("Auvergne-Rhône-Alpes, France", gazetteer.getRegion(lyon));
+        assertEquals("Lyon, Auvergne-Rhône-Alpes, France", gazetteer.getDisplayName(lyon));
+        assertEquals(513275, gazetteer.getPopulation(lyon));
+        assertEquals(45.764, gazetteer.getLatitude(lyon), DEGREES_TOLERANCE);
+        assertEquals(4.8357, gazetteer.getLongitude(lyon), DEGREES_TOLERANCE);
+
+        // An admin region equal to the country isn't repeated
+        assertEquals("Singapore", gazetteer.getRegion(gazetteer.nearest(1.29, 103.85)));
+        int reykjavik = gazetteer.nearest(64.1466, -21.9426);
+        assertEquals("Reykjavík, Iceland", gazetteer.getDisplayName(reykjavik));
+        assertEquals(-21.9426, gazetteer.getLongitude(reykjavik), DEGREES_TOLERANCE);
+
+        int nowhere = gazetteer.nearest(-12.5, -170.25);
+        assertEquals("Nowhere", gazetteer.getDisplayName(nowhere));
+        assertEquals(0, gazetteer.getPopulation(nowhere));
+    }
+
+    @Test
+    public void findsNearestAcrossTheAntimeridian() throws IOException {
+        Gazetteer gazetteer = build(
+                "East\t\t\t0\t179.9\t1",
+                "West\t\t\t0\t-179.9\t1",
+                "Farther west\t\t\t0\t-179\t1");
+
+        assertEquals("West", gazetteer.getName(gazetteer.nearest(0, -179.95)));
+        assertEquals("East", gazetteer.getName(gazetteer.nearest(0, 179.99)));
+        assertEquals("West", gazetteer.getName(gazetteer.nearest(0, -179.98)));
+        // 0.1 degrees either way, not 359.9
+        assertEquals(11119.5, gazetteer.distanceMeters(0, 180, gazetteer.nearest(0, 180)), 50);
+    }
+
+    @Test
+    public void findsNearestAcrossThePoles() throws IOException {
+        Gazetteer gazetteer = build(
+                "Near side\t\t\t89.5\t0\t1",
+                "Far side\t\t\t89.9\t180\t1",
+                "South\t\t\t-89.9\t-90\t1",
+                "Equator\t\t\t0\t0\t1");
+
+        // 0.25 degrees over the pole, against 0.35 degrees down the same meridian
+        assertEquals("Far side", gazetteer.getName(gazetteer.nearest(89.85, 0)));
+        assertEquals("Near side", gazetteer.getName(gazetteer.nearest(89.6, 0)));
+        assertEquals("South", gazetteer.getName(gazetteer.nearest(-89.95, 90)));
+        assertEquals("South", gazetteer.getName(gazetteer.nearest(-90, 0)));
+    }
+
+    @Test
+    public void limitsTheDistance() throws IOException {
+        Gazetteer gazetteer = build("Paris\tÎle-de-France\tFrance\t48.8566\t2.3522\t2148000");
+
+        // One degree of latitude is about 111.2 km
+        assertEquals(-1, gazetteer.nearest(49.8566, 2.3522, 100000));
+        int paris = gazetteer.nearest(49.8566, 2.3522, 120000);
+        assertEquals("Paris", gazetteer.getName(paris));
+        assertEquals(111195, gazetteer.distanceMeters(49.8566, 2.3522, paris), 100);
+        assertEquals(paris, gazetteer.nearest(48.8566, 2.3522, 0.5));
+    }
+
+    @Test
+    public void emptyGazetteerFindsNothing() throws IOException {
+        Gazetteer gazetteer = build("# nothing but a comment", "");
+
+        assertEquals(0, gazetteer.size());
+        assertEquals(-1, gazetteer.nearest(0, 0));
+        assertEquals(-1, gazetteer.nearest(45, 45, 1000));
+    }
+
+    @Test
+    public void matchesBruteForce() throws IOException {
+        Random random = new Random(23);
+        StringBuilder tsv = new StringBuilder();
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            // Half clustered like real places, half spread evenly over the sphere
+            double[] point = i % 2 == 0 ? clustered(random) : uniform(random);
+            double latitude = point[0];
+            double longitude = point[1];
+            tsv.append("P").append(i).append("\t\t\t").append(latitude).append('\t')
+                    .append(longitude).append('\t').append(i).append('\n');
+        }
+        Gazetteer gazetteer = build(tsv.toString());
+
+        for (int query = 0; query < 500; query++) {
+            double[] point = query % 2 == 0 ? clustered(random) : uniform(random);
+            double latitude = point[0];
+            double longitude = point[1];
+
+            double expectedDistance = Double.POSITIVE_INFINITY;
+            for (int place = 0; place < count; place++) {
+                expectedDistance = Math.min(expectedDistance, gazetteer.distanceMeters(latitude, longitude, place));
+            }
+
+            int found = gazetteer.nearest(latitude, longitude);
+            // Ties are broken differently, but the distance must be the same
+            assertEquals("query " + latitude + ", " + longitude, expectedDistance,
+                    gazetteer.distanceMeters(latitude, longitude, found), 1e-6);
+
+            double limit = 50000;
+            int limited = gazetteer.nearest(latitude, longitude, limit);
+            if (expectedDistance <= limit * 0.999) {
+                assertEquals(expectedDistance, gazetteer.distanceMeters(latitude, longitude, limited), 1e-6);
+            } else if (expectedDistance > limit * 1.001) {
+                assertEquals(-1, limited);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMalformedInput() throws IOException {
+        try {
+            build("Lyon\tFrance\t45.764\t4.8357\t513275");
+            fail("Expected a missing column to be rejected");
+        } catch (IOException expected) {
+            // Expected
+        }
+        try {
+            build("Lyon\t\tFrance\tnorth\t4.8357\t513275");
+            fail("Expected a malformed latitude to be rejected");
+        } catch (IOException expected) {
+            // Expected
+        }
+        try {
+            new Gazetteer(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0, 0 }));
+            fail("Expected a bad magic number to be rejected");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    private static double[] clustered(Random random) {
+        return new double[] { 40 + random.nextGaussian() * 5, 10 + random.nextGaussian() * 5 };
+    }
+
+    private static double[] uniform(Random random) {
+        return new double[] { Math.toDegrees(Math.asin(2 * random.nextDouble() - 1)), random.nextDouble() * 360 - 180 };
+    }
+
+    private static Gazetteer build(String... lines) throws IOException {
+        StringBuilder tsv = new StringBuilder();
+        for (String line : lines) {
+            tsv.append(line).append('\n');
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GazetteerWriter.write(new BufferedReader(new StringReader(tsv.toString())), out);
+        return new Gazetteer(ByteBuffer.wrap(out.toByteArray()));
+    }
+}
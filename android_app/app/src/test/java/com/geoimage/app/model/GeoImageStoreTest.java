@@ -0,0 +1,130 @@
+package com.geoimage.app.model;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GeoImageStoreTest {
+    // Coordinates are stored in units of 1e-7 degrees
+    private static final double DEGREES_TOLERANCE = 5e-8;
+    private static final String DIRECTORY = "/storage/emulated/0/Android/data/com.geoimage.app/files/Pictures/GeoImage/";
+    private static final String[] PLACES = {
+            "Lyon, Auvergne-Rhône-Alpes, France", "Reykjavík, Iceland", "Singapore", "Kyoto, Japan",
+    };
+
+    @Test
+    public void roundTripsImages() {
+        Random random = new Random(15);
+        List<GeoImage> images = createImages(random, 5000);
+        GeoImageStore.Builder builder = new GeoImageStore.Builder(0);
+        for (GeoImage image : images) {
+            builder.add(image);
+        }
+        GeoImageStore store = builder.build();
+
+        assertEquals(images.size(), store.size());
+        for (int i = 0; i < images.size(); i++) {
+            GeoImage expected = images.get(i);
+            GeoImage actual = store.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getPath(), actual.getPath());
+            assertEquals(expected.getFilename(), actual.getFilename());
+            assertEquals(expected.getLatitude(), actual.getLatitude(), DEGREES_TOLERANCE);
+            assertEquals(expected.getLongitude(), actual.getLongitude(), DEGREES_TOLERANCE);
+            assertEquals(expected.getLocationName(), actual.getLocationName());
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        }
+    }
+
+    @Test
+    public void keepsEdgeValues() {
+        GeoImageStore store = new GeoImageStore.Builder(1)
+                .add(1, "/a/b.jpg", 90, 180, null, GeoImageStore.NO_TIMESTAMP)
+                .add(2, "c.jpg", -90, -180, "", 0)
+                .add(3L << 40, "/é/ü.jpg", -0.00000005, 0.00000015, "Nowhere", -1)
+                .build();
+
+        // An ID past the int range widens the whole column
+        assertEquals(1, store.getId(0));
+        assertEquals(2, store.getId(1));
+        assertEquals(3L << 40, store.getId(2));
+        assertEquals(90, store.getLatitude(0), 0);
+        assertEquals(180, store.getLongitude(0), 0);
+        assertEquals(-90, store.getLatitude(1), 0);
+        assertEquals(-180, store.getLongitude(1), 0);
+        assertEquals(-0.00000005, store.getLatitude(2), DEGREES_TOLERANCE);
+        assertEquals(0.00000015, store.getLongitude(2), DEGREES_TOLERANCE);
+
+        assertEquals("/a/b.jpg", store.getPath(0));
+        assertEquals("b.jpg", store.getFilename(0));
+        assertEquals("c.jpg", store.getPath(1));
+        assertEquals("/é/ü.jpg", store.getPath(2));
+        assertEquals("ü.jpg", store.getFilename(2));
+
+        assertNull(store.getLocationName(0));
+        assertEquals("", store.getLocationName(1));
+        assertNull(store.get(0).getTimestamp());
+        assertEquals(new Date(0), store.get(1).getTimestamp());
+        assertEquals(new Date(-1), store.get(2).getTimestamp());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void viewsAreReadOnly() {
+        new GeoImageStore.Builder(1).add(1, "/a.jpg", 0, 0, null, 0).build().get(0).setLatitude(1);
+    }
+
+    @Test
+    public void keepsTheFootprintSmall() {
+        int count = 1000;
+        List<GeoImage> images = createImages(new Random(15), count);
+        GeoImageStore.Builder builder = new GeoImageStore.Builder(count);
+        long nameBytes = 0;
+        for (GeoImage image : images) {
+            builder.add(image);
+            nameBytes += image.getFilename().getBytes(StandardCharsets.UTF_8).length;
+        }
+        GeoImageStore store = builder.build();
+
+        // The columns, the file names, and one entry per distinct directory and place
+        long dictionaryBytes = 40 + 2L * DIRECTORY.length();
+        for (String place : PLACES) {
+            dictionaryBytes += 40 + 2L * place.length();
+        }
+        assertEquals(count * 32L + nameBytes + dictionaryBytes, store.getFootprintBytes());
+        // About 60 bytes for a camera named file
+        assertTrue(store.getFootprintBytes() / count + " bytes per image", store.getFootprintBytes() / count <= 64);
+
+        GeoImageStore wide = new GeoImageStore.Builder(2)
+                .add(1, "/a/b.jpg", 0, 0, null, 0)
+                .add(1L << 40, "/a/c.jpg", 0, 0, null, 0)
+                .build();
+        assertEquals(2 * 36L + 10 + 40 + 2 * "/a/".length(), wide.getFootprintBytes());
+    }
+
+    /**
+     * Images as the catalog loads them: every field its own object, as read from a cursor
+     */
+    private static List<GeoImage> createImages(Random random, int count) {
+        List<GeoImage> images = new ArrayList<>(count);
+        long time = 1700000000000L;
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(600000);
+            String filename = String.format(Locale.ROOT, "GeoImage_%1$tY%1$tm%1$td_%1$tH%1$tM%1$tS.jpg", time);
+            String path = DIRECTORY + filename;
+            String place = PLACES[random.nextInt(PLACES.length)];
+            images.add(new GeoImage(i + 1, new String(filename), path,
+                    random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180,
+                    i % 10 == 0 ? null : new String(place), i % 50 == 0 ? null : new Date(time)));
+        }
+        return images;
+    }
+}
@@ -0,0 +1,67 @@
+package com.geoimage.app.util;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class DisplayFormatterTest {
+    private static final double[] POWERS = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000 };
+
+    @Test
+    public void matchesStringFormat() {
+        Random random = new Random(20);
+        StringBuilder builder = new StringBuilder(32);
+        for (int i = 0; i < 1000000; i++) {
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = random.nextDouble() * 360 - 180;
+                    break;
+                case 1:
+                    // Coordinates with five decimals land on ties of "%.4f"
+                    value = (random.nextInt(36000001) - 18000000) / 1e5;
+                    break;
+                case 2:
+                    value = (random.nextInt(2000001) - 1000000) / 1e8;
+                    break;
+                default:
+                    value = (random.nextInt(2001) - 1000) / 2.0 / POWERS[random.nextInt(POWERS.length)];
+                    break;
+            }
+            int decimals = i % 8;
+            assertFormats(builder, value, decimals);
+        }
+    }
+
+    @Test
+    public void matchesStringFormatAtEdges() {
+        StringBuilder builder = new StringBuilder(32);
+        double[] values = {
+                41.81455, -41.81455, 0.15, 2.5, -2.5, 0.5, 0.05, 1.005, -0.00001, -0.00005, -0.0, 0.0,
+                1e-300, -1e-300, 179.99999995, -179.99999995, 1e14, 1e15, 1e20, Math.pow(2, 60), Double.MAX_VALUE,
+                -Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+        };
+        for (double value : values) {
+            for (int decimals = 0; decimals <= 7; decimals++) {
+                assertFormats(builder, value, decimals);
+            }
+        }
+    }
+
+    @Test
+    public void formatsCoordinates() {
+        assertEquals("41.8146, -0.0000", DisplayFormatter.coordinates(41.81455, -0.00001, 4));
+        assertEquals(String.format(Locale.ROOT, "%.4f, %.4f", 48.8566, 2.3522),
+                DisplayFormatter.coordinates(48.8566, 2.3522, 4));
+    }
+
+    private static void assertFormats(StringBuilder builder, double value, int decimals) {
+        builder.setLength(0);
+        DisplayFormatter.appendFixed(builder, value, decimals);
+        assertEquals(value + " to " + decimals, String.format(Locale.ROOT, "%." + decimals + "f", value),
+                builder.toString());
+    }
+}